@@ -0,0 +1,118 @@
+package org.cobbzilla.util.mq;
+
+import org.cobbzilla.util.mq.kestrel.KestrelClient;
+import org.cobbzilla.util.mq.kestrel.KestrelServer;
+import org.cobbzilla.util.mq.virtual.InMemoryMqClient;
+import org.cobbzilla.util.mq.virtual.JournalMqClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages per second sent and received through each MqClient on the same box: every invocation sends a batch
+ * of messages and waits until one consumer thread has received them all, so the score covers the whole round
+ * trip, acks included.
+ *
+ * The kestrel runs go through an embedded KestrelServer on the same box.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MqClientThroughputBenchmark {
+
+    public static final int BATCH = 1000;
+
+    @Param({"memory", "journal", "kestrel"})
+    public String client;
+
+    @Param({"100", "4096"})
+    public int messageSize;
+
+    private final MqClientFactory clientFactory = new MqClientFactory();
+    private MqClient mqClient;
+    private MqProducer<Object> producer;
+    private String queueName;
+    private File journalDir;
+    private KestrelServer kestrelServer;
+    private String message;
+    private volatile CountDownLatch received;
+
+    @Setup
+    public void setUp() throws Exception {
+        final Properties properties = new Properties();
+        final Class<? extends MqClient> clientClass;
+        switch (client) {
+            case "memory":
+                clientClass = InMemoryMqClient.class;
+                break;
+            case "journal":
+                journalDir = File.createTempFile("journal", ".bench");
+                journalDir.delete();
+                properties.setProperty(JournalMqClient.PROP_JOURNAL_DIR, journalDir.getAbsolutePath());
+                clientClass = JournalMqClient.class;
+                break;
+            case "kestrel":
+                kestrelServer = new KestrelServer();
+                kestrelServer.start();
+                properties.setProperty(KestrelClient.PROP_KESTREL_HOSTS, kestrelServer.getHosts());
+                clientClass = KestrelClient.class;
+                break;
+            default: throw new IllegalArgumentException("setUp: unknown client: "+client);
+        }
+        mqClient = clientFactory.createClient(clientClass, properties);
+        queueName = "bench_"+System.currentTimeMillis();
+        producer = mqClient.getProducer(queueName);
+
+        final StringBuilder b = new StringBuilder();
+        while (b.length() < messageSize) b.append("{\"some\":\"json\",\"n\":").append(b.length()).append("}");
+        message = b.substring(0, messageSize);
+
+        mqClient.registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) { received.countDown(); }
+        }, queueName, null);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void sendAndReceive() throws Exception {
+        received = new CountDownLatch(BATCH);
+        for (int i=0; i<BATCH; i++) producer.send(message);
+        if (!received.await(60, TimeUnit.SECONDS)) throw new IllegalStateException("sendAndReceive: messages didn't arrive");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mqClient.deleteQueue(queueName);
+        mqClient.shutdown();
+        if (journalDir != null) deleteAll(journalDir);
+        if (kestrelServer != null) kestrelServer.shutdown();
+    }
+
+    private static void deleteAll(File f) {
+        final File[] children = f.listFiles();
+        if (children != null) for (File child : children) deleteAll(child);
+        f.delete();
+    }
+
+}
@@ -0,0 +1,85 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What reliable reads cost over plain ones, against an embedded KestrelServer. Every invocation sends one
+ * message and reads it back, so the differences between the three are the ack:
+ *
+ * - plainRead: a get with no options; the item is gone as soon as it's read, and there's nothing to ack
+ * - openThenAck: a get with /open, then a separate /close, which is two round trips per message
+ * - closeOpen: a get with /close/open, which acks the previous item and opens the next in one round trip;
+ *   this is what the listeners do
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KestrelAckBenchmark {
+
+    private static final String QUEUE = "bench_ack";
+    private static final long TIMEOUT = 1000;
+
+    private KestrelServer server;
+    private KestrelClient client;
+    private String message;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new KestrelServer();
+        server.start();
+        client = new KestrelClient();
+        final Properties properties = new Properties();
+        properties.setProperty(KestrelClient.PROP_KESTREL_HOSTS, server.getHosts());
+        // opens and closes have to go out on the same connection
+        properties.setProperty(KestrelClient.PROP_CONSUMER_CONNECTIONS, "1");
+        client.init(properties);
+        message = KestrelBenchmarks.message(100);
+    }
+
+    @Benchmark
+    public Object plainRead() throws Exception {
+        client.set(QUEUE, message);
+        return client.get(QUEUE, "", TIMEOUT);
+    }
+
+    @Benchmark
+    public Object openThenAck() throws Exception {
+        client.set(QUEUE, message);
+        final Object item = client.get(QUEUE, KestrelClient.KPARAM_OPEN, TIMEOUT);
+        client.ack(QUEUE, TIMEOUT);
+        return item;
+    }
+
+    @Benchmark
+    public Object closeOpen() throws Exception {
+        client.set(QUEUE, message);
+        return client.get(QUEUE, KestrelClient.KPARAM_CLOSE_OPEN, TIMEOUT);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.abort(QUEUE, TIMEOUT);
+        client.shutdown();
+        server.shutdown();
+    }
+
+}
@@ -0,0 +1,40 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Payloads shared by the benchmarks.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelBenchmarks {
+
+    /** @return a JSON-ish String of exactly the given length */
+    static String message(int size) {
+        final StringBuilder b = new StringBuilder();
+        while (b.length() < size) b.append("{\"some\":\"json\",\"n\":").append(b.length()).append("}");
+        return b.substring(0, size);
+    }
+
+    /** an event, as an application might send it through a JsonCodec */
+    public static class Event {
+        public long id;
+        public String name;
+        public List<String> tags = new ArrayList<>();
+        public String body;
+    }
+
+    /** @return an Event whose JSON form is about the given size */
+    static Event event(int size) {
+        final Event event = new Event();
+        event.id = 42;
+        event.name = "bench-event";
+        event.tags.add("a");
+        event.tags.add("b");
+        event.body = message(Math.max(0, size - 80));
+        return event;
+    }
+
+}
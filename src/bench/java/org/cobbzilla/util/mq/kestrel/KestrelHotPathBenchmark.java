@@ -0,0 +1,70 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.cobbzilla.util.mq.MqConsumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the library itself costs per message on the send and receive paths, with the network taken out: the
+ * client's set() does nothing, and the reader never talks to a server. Run with -prof gc and look at
+ * gc.alloc.rate.norm, the bytes allocated per message; with logging at INFO or above it should be zero.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KestrelHotPathBenchmark {
+
+    private static final String QUEUE = "bench_queue";
+
+    private KestrelProducer producer;
+    private KestrelReaderGroup reader;
+    private KestrelLogSampler logSampler;
+    private MqConsumer<Object> consumer;
+    private String message;
+
+    @Setup
+    public void setUp() {
+        final KestrelClient client = new KestrelClient() {
+            @Override public void set(String queueName, Object message) { /* stored, as far as the producer knows */ }
+        };
+        producer = new KestrelProducer(client, QUEUE);
+        reader = new KestrelReaderGroup(Collections.singletonList(new KestrelReader(client, null, QUEUE, null)));
+        logSampler = client.getReceiveLogSampler(QUEUE);
+        consumer = new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) {}
+        };
+        final StringBuilder b = new StringBuilder();
+        while (b.length() < 512) b.append("{\"some\":\"json\",\"n\":").append(b.length()).append("}");
+        message = b.toString();
+    }
+
+    @Benchmark
+    public void send() throws Exception {
+        producer.send(message);
+    }
+
+    @Benchmark
+    public void receive(Blackhole bh) {
+        KestrelConsumerListener.doCallback(reader, consumer, message, logSampler);
+        bh.consume(reader.hasPendingAck());
+    }
+
+}
@@ -0,0 +1,111 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.cobbzilla.util.mq.MqConsumer;
+import org.cobbzilla.util.mq.MqProducer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Many THREAD_PER_LISTENER consumers whose handlers block, like handlers doing I/O, on platform threads and
+ * on virtual threads, against an embedded KestrelServer.
+ *
+ * Every listener runs on a thread of its own, so with the default 10000 listeners that's 10000 platform
+ * threads or 10000 virtual threads. Each invocation sends one message to every listener's queue and waits
+ * until every handler has slept handlerMillis and returned. Run -prof gc to compare what each costs in
+ * allocation as well as time. The virtual runs need Java 21 or later, and fail in setUp without it.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KestrelListenerThreadsBenchmark {
+
+    private static final String QUEUE = "bench_listener_threads_";
+    private static final long TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    @Param({"false", "true"})
+    public boolean virtualThreads;
+
+    @Param({"10000"})
+    public int listeners;
+
+    @Param({"50"})
+    public long handlerMillis;
+
+    private KestrelServer server;
+    private KestrelClient client;
+    private MqProducer<Object>[] producers;
+
+    private final AtomicLong handled = new AtomicLong();
+    private volatile Thread waiter;
+    private long sent;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        if (virtualThreads && !KestrelThreads.isVirtualAvailable()) {
+            throw new IllegalStateException("setUp: virtual threads need Java 21 or later, this is "+System.getProperty("java.version"));
+        }
+        server = new KestrelServer();
+        server.start();
+        client = new KestrelClient();
+        final Properties properties = new Properties();
+        properties.setProperty(KestrelClient.PROP_KESTREL_HOSTS, server.getHosts());
+        properties.setProperty(KestrelClient.PROP_CONSUMER_MODE, KestrelConsumerMode.THREAD_PER_LISTENER.name());
+        properties.setProperty(KestrelClient.PROP_VIRTUAL_THREADS, String.valueOf(virtualThreads));
+        client.init(properties);
+
+        final MqConsumer<Object> consumer = new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception {
+                Thread.sleep(handlerMillis);
+                handled.incrementAndGet();
+                final Thread t = waiter;
+                if (t != null) LockSupport.unpark(t);
+            }
+        };
+        producers = new MqProducer[listeners];
+        for (int i=0; i<listeners; i++) {
+            producers[i] = client.getProducer(QUEUE + i);
+            client.registerConsumer(consumer, QUEUE + i, null);
+        }
+    }
+
+    @Benchmark
+    public void oneMessagePerListener() throws Exception {
+        waiter = Thread.currentThread();
+        for (MqProducer<Object> producer : producers) producer.send("message");
+        sent += listeners;
+        final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (handled.get() < sent) {
+            if (System.nanoTime() > deadline) throw new IllegalStateException("oneMessagePerListener: only "+handled.get()+" of "+sent+" handled");
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.shutdown();
+        server.shutdown();
+    }
+
+}
@@ -0,0 +1,77 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.cobbzilla.util.mq.MqProducer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * KestrelProducer.send through a real connection, against an embedded KestrelServer: sends per second, and
+ * the distribution of how long each one takes, from the call until the server says STORED. With -prof gc,
+ * gc.alloc.rate.norm is what each send allocates, in this process, client and server together.
+ *
+ * The queue is flushed after every iteration so that the server doesn't fill up the heap.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KestrelProducerBenchmark {
+
+    private static final String QUEUE = "bench_send";
+
+    @Param({"100", "4096"})
+    public int messageSize;
+
+    private KestrelServer server;
+    private KestrelClient client;
+    private MqProducer<Object> producer;
+    private String message;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new KestrelServer();
+        server.start();
+        client = new KestrelClient();
+        final Properties properties = new Properties();
+        properties.setProperty(KestrelClient.PROP_KESTREL_HOSTS, server.getHosts());
+        client.init(properties);
+        producer = client.getProducer(QUEUE);
+        message = KestrelBenchmarks.message(messageSize);
+    }
+
+    @Benchmark
+    public void send() throws Exception {
+        producer.send(message);
+    }
+
+    @TearDown(Level.Iteration)
+    public void flush() throws Exception {
+        client.flushAllQueues();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.shutdown();
+        server.shutdown();
+    }
+
+}
@@ -0,0 +1,98 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.cobbzilla.util.mq.MqConsumer;
+import org.cobbzilla.util.mq.MqProducer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end latency through a registered consumer, against an embedded KestrelServer: each invocation sends
+ * one message and waits until the consumer's onMessage has seen it. Each message travels producer, server,
+ * consumer long-poll, callback, then the ack rides on the next poll's /close/open, as in production.
+ *
+ * Runs with each consumer mode: THREAD_PER_LISTENER is KestrelConsumerListener, EVENT_LOOP is KestrelEventLoop.
+ * The wait is a park/unpark on a counter, so it adds no allocation of its own to gc.alloc.rate.norm.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KestrelRoundTripBenchmark {
+
+    private static final String QUEUE = "bench_round_trip";
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    @Param({"THREAD_PER_LISTENER", "EVENT_LOOP"})
+    public String consumerMode;
+
+    @Param({"100", "4096"})
+    public int messageSize;
+
+    private KestrelServer server;
+    private KestrelClient client;
+    private MqProducer<Object> producer;
+    private String message;
+
+    private final AtomicLong received = new AtomicLong();
+    private volatile Thread waiter;
+    private long sent;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new KestrelServer();
+        server.start();
+        client = new KestrelClient();
+        final Properties properties = new Properties();
+        properties.setProperty(KestrelClient.PROP_KESTREL_HOSTS, server.getHosts());
+        properties.setProperty(KestrelClient.PROP_CONSUMER_MODE, consumerMode);
+        client.init(properties);
+        producer = client.getProducer(QUEUE);
+        message = KestrelBenchmarks.message(messageSize);
+        client.registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) {
+                received.incrementAndGet();
+                final Thread t = waiter;
+                if (t != null) LockSupport.unpark(t);
+            }
+        }, QUEUE, null);
+    }
+
+    @Benchmark
+    public void sendAndReceive() throws Exception {
+        waiter = Thread.currentThread();
+        producer.send(message);
+        sent++;
+        final long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (received.get() < sent) {
+            if (System.nanoTime() > deadline) throw new IllegalStateException("sendAndReceive: message didn't arrive");
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.shutdown();
+        server.shutdown();
+    }
+
+}
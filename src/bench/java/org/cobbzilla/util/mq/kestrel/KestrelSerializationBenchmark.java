@@ -0,0 +1,92 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import net.rubyeye.xmemcached.transcoders.CachedData;
+import org.cobbzilla.util.mq.codec.JsonCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * What it costs to turn a message into the bytes on the wire and back, with no I/O: the JsonCodec, the
+ * transcoders, compression, and the envelopes a KestrelBatchingProducer sends. Run with -prof gc;
+ * gc.alloc.rate.norm should stay close to the size of the output, since that's the only array these need.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KestrelSerializationBenchmark {
+
+    public static final int ENVELOPE_MESSAGES = 10;
+
+    @Param({"100", "4096", "65536"})
+    public int messageSize;
+
+    private final JsonCodec<KestrelBenchmarks.Event> codec = new JsonCodec<>(KestrelBenchmarks.Event.class);
+    private final KestrelCompression compression = new KestrelCompression(1, Deflater.BEST_SPEED);
+
+    private KestrelBenchmarks.Event event;
+    private byte[] json;
+    private String message;
+    private CachedData stringData;
+    private byte[] compressed;
+    private List<String> envelopeMessages;
+    private String envelope;
+
+    @Setup
+    public void setUp() throws Exception {
+        event = KestrelBenchmarks.event(messageSize);
+        json = codec.encode(event);
+        message = KestrelBenchmarks.message(messageSize);
+        stringData = KestrelStringTranscoder.INSTANCE.encode(message);
+        // a payload that doesn't get smaller is sent as it is, and decode passes it through
+        final Object encoded = compression.encode(message);
+        compressed = encoded instanceof byte[] ? (byte[]) encoded : stringData.getData();
+        envelopeMessages = new ArrayList<>();
+        for (int i=0; i<ENVELOPE_MESSAGES; i++) envelopeMessages.add(KestrelBenchmarks.message(messageSize / ENVELOPE_MESSAGES));
+        envelope = KestrelEnvelope.encode(envelopeMessages);
+    }
+
+    @Benchmark
+    public byte[] jsonEncode() throws Exception { return codec.encode(event); }
+
+    @Benchmark
+    public KestrelBenchmarks.Event jsonDecode() throws Exception { return codec.decode(json); }
+
+    @Benchmark
+    public CachedData stringEncode() { return KestrelStringTranscoder.INSTANCE.encode(message); }
+
+    @Benchmark
+    public String stringDecode() { return KestrelStringTranscoder.INSTANCE.decode(stringData); }
+
+    @Benchmark
+    public Object compress() { return compression.encode(message); }
+
+    @Benchmark
+    public byte[] decompress() { return KestrelCompression.decode(compressed); }
+
+    @Benchmark
+    public String envelopeEncode() throws Exception { return KestrelEnvelope.encode(envelopeMessages); }
+
+    @Benchmark
+    public List<String> envelopeDecode() throws Exception { return KestrelEnvelope.decode(envelope); }
+
+}
@@ -0,0 +1,67 @@
+package org.cobbzilla.util.mq.virtual;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages per second through one InMemoryQueue, with producers and consumers on threads of their own. The
+ * read score is the one that counts: every read waits for a message, so it's the rate messages got through.
+ * Producers usually run ahead of the consumers, so the queue is emptied between iterations to keep the heap
+ * from filling up.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InMemoryQueueBenchmark {
+
+    private InMemoryQueue queue;
+    private final Object message = "message";
+
+    @Setup
+    public void setUp() { queue = new InMemoryQueue("bench_queue"); }
+
+    @TearDown(Level.Iteration)
+    public void drain() { queue.clear(); }
+
+    @Benchmark @Group("oneToOne") @GroupThreads(1)
+    public void put() { queue.put(message); }
+
+    @Benchmark @Group("oneToOne") @GroupThreads(1)
+    public void read(Blackhole bh) throws InterruptedException {
+        final LocalQueue.Item item = queue.open(LocalListener.POLL_WAIT);
+        if (item != null) queue.ack(item);
+        bh.consume(item);
+    }
+
+    @Benchmark @Group("fourToFour") @GroupThreads(4)
+    public void put4() { queue.put(message); }
+
+    @Benchmark @Group("fourToFour") @GroupThreads(4)
+    public void read4(Blackhole bh) throws InterruptedException {
+        final LocalQueue.Item item = queue.open(LocalListener.POLL_WAIT);
+        if (item != null) queue.ack(item);
+        bh.consume(item);
+    }
+
+}
@@ -0,0 +1,18 @@
+package org.cobbzilla.util.mq;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public interface MqAsyncProducer extends MqProducer<Object> {
+
+    /**
+     * Queues a message for sending and returns without waiting for the server to store it.
+     * Blocks only when the client already has its maximum number of sends in flight.
+     * @return a future that completes when the message is stored, or fails once the client gives up retrying
+     */
+    public ListenableFuture<Void> sendAsync(Object thing) throws InterruptedException;
+
+}
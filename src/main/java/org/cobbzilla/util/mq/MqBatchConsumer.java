@@ -0,0 +1,17 @@
+package org.cobbzilla.util.mq;
+
+import java.util.List;
+
+/**
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public interface MqBatchConsumer extends MqConsumer<Object> {
+
+    /**
+     * Handles several messages at once. The batch succeeds or fails as a unit: if this throws,
+     * every message in it is treated as failed.
+     */
+    public void onMessages(List<Object> messages) throws Exception;
+
+}
@@ -1,6 +1,7 @@
 package org.cobbzilla.util.mq;
 
 import net.rubyeye.xmemcached.exception.MemcachedException;
+import org.reactivestreams.Publisher;
 
 import java.io.IOException;
 import java.util.Properties;
@@ -14,9 +15,54 @@ public interface MqClient {
 
     public void init(Properties properties) throws IOException;
 
-    public MqProducer getProducer(String queueName);
+    public MqProducer<Object> getProducer(String queueName);
 
-    public void registerConsumer(MqConsumer callback, String queueName, String errorQueueName);
+    public void registerConsumer(MqConsumer<Object> callback, String queueName, String errorQueueName);
+
+    /**
+     * Registers a consumer that processes messages from the queue on several threads at once
+     * @param concurrency the number of messages that may be in flight to the callback at the same time
+     */
+    public void registerConsumer(MqConsumer<Object> callback, String queueName, String errorQueueName, int concurrency);
+
+    /**
+     * Returns a producer that encodes messages with the codec and sends them as raw bytes
+     */
+    public <T> MqProducer<T> getProducer(String queueName, MqCodec<T> codec);
+
+    /**
+     * Registers a consumer for a queue written by a producer with the same codec: each message is read as
+     * raw bytes and decoded before it is handed to the callback
+     */
+    public <T> void registerConsumer(MqConsumer<T> callback, MqCodec<T> codec, String queueName, String errorQueueName, int concurrency);
+
+    /**
+     * Registers a consumer that receives each message as a stream. A message that was sent in chunks is read
+     * one chunk at a time as the stream is consumed, rather than all at once
+     */
+    public void registerStreamConsumer(MqStreamConsumer callback, String queueName, String errorQueueName, int concurrency);
+
+    /**
+     * Registers a consumer that receives messages in batches. A batch is handed over once it holds maxBatchSize
+     * messages, or maxBatchMillis after its first message arrived. If onMessages succeeds, the whole batch is acked;
+     * if it throws, every message in the batch goes to the error queue (or back on the queue if there is none).
+     * Batches written by a batching producer are never split, so with those, a batch can go past maxBatchSize.
+     */
+    public void registerBatchConsumer(MqBatchConsumer callback, String queueName, String errorQueueName, int maxBatchSize, long maxBatchMillis);
+
+    /**
+     * Registers a consumer that handles messages on numStripes threads at once while keeping messages with the
+     * same key in queue order: each key always goes to the same stripe, and each stripe handles one message at
+     * a time. Each message is acked as soon as it has been handled.
+     */
+    public void registerKeyedConsumer(MqConsumer<Object> callback, MqKeyExtractor keyExtractor, String queueName, String errorQueueName, int numStripes);
+
+    /**
+     * Exposes a queue as a Reactive Streams Publisher. Each subscriber gets its own reads: a message is only
+     * read from the queue once the subscriber has requested it, and each one arrives as an MqDelivery whose
+     * read stays open until the subscriber acks, aborts or fails it.
+     */
+    public Publisher<MqDelivery> getPublisher(String queueName, String errorQueueName);
 
     public void flushAllQueues() throws InterruptedException, MemcachedException, TimeoutException;
 
@@ -0,0 +1,17 @@
+package org.cobbzilla.util.mq;
+
+import java.io.IOException;
+
+/**
+ * Turns typed messages into the bytes stored in the queue, and back. See org.cobbzilla.util.mq.codec.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public interface MqCodec<T> {
+
+    public byte[] encode(T message) throws IOException;
+
+    public T decode(byte[] data) throws IOException;
+
+}
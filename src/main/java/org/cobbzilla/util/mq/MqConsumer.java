@@ -4,8 +4,8 @@ package org.cobbzilla.util.mq;
  * (c) Copyright 2013 Jonathan Cobb
  * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
  */
-public interface MqConsumer {
+public interface MqConsumer<T> {
 
-    public void onMessage(Object message) throws Exception;
+    public void onMessage(T message) throws Exception;
 
 }
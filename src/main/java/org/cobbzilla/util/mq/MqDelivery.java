@@ -0,0 +1,23 @@
+package org.cobbzilla.util.mq;
+
+/**
+ * A message handed out by a queue's Publisher. Its read stays open on the server until the subscriber
+ * settles it by calling exactly one of ack, abort or fail, from any thread.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public interface MqDelivery {
+
+    public Object getMessage();
+
+    /** The message was handled, remove it from the queue */
+    public void ack();
+
+    /** Put the message back on the queue, to be delivered again */
+    public void abort();
+
+    /** The message failed: move it to the error queue, or back onto the queue if there is none */
+    public void fail(Exception e);
+
+}
@@ -0,0 +1,14 @@
+package org.cobbzilla.util.mq;
+
+/**
+ * Picks the ordering key of a message: messages with equal keys are handled one at a time, in queue order.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public interface MqKeyExtractor {
+
+    /** @return the message's key; null is a key like any other */
+    public Object getKey(Object message);
+
+}
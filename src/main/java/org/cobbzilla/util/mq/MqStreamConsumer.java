@@ -0,0 +1,21 @@
+package org.cobbzilla.util.mq;
+
+import java.io.InputStream;
+
+/**
+ * Receives each message as a stream, for messages too big to hold in memory comfortably.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public interface MqStreamConsumer {
+
+    /**
+     * @param message the message's bytes. Only good until this returns; there's no need to read all of it
+     * @param length the message's size in bytes
+     * @exception Exception If any exception is thrown, including one from reading the stream, the message will
+     * be put onto the errorQueue (unless it was set to null when the consumer was registered)
+     */
+    public void onMessage(InputStream message, long length) throws Exception;
+
+}
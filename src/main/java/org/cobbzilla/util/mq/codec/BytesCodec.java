@@ -0,0 +1,19 @@
+package org.cobbzilla.util.mq.codec;
+
+import org.cobbzilla.util.mq.MqCodec;
+
+/**
+ * Passes byte arrays through as they are, without copying.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class BytesCodec implements MqCodec<byte[]> {
+
+    public static final BytesCodec INSTANCE = new BytesCodec();
+
+    @Override public byte[] encode(byte[] message) { return message; }
+
+    @Override public byte[] decode(byte[] data) { return data; }
+
+}
@@ -0,0 +1,40 @@
+package org.cobbzilla.util.mq.codec;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.cobbzilla.util.mq.MqCodec;
+
+import java.io.IOException;
+
+/**
+ * Messages as JSON, written and parsed by Jackson straight to and from bytes, with no String in between.
+ *
+ * The reader and writer are resolved for the type once, up front, and are safe to share between threads.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class JsonCodec<T> implements MqCodec<T> {
+
+    public static final ObjectMapper DEFAULT_MAPPER = new ObjectMapper();
+
+    private final ObjectReader reader;
+    private final ObjectWriter writer;
+
+    public JsonCodec(Class<T> type) { this(DEFAULT_MAPPER, DEFAULT_MAPPER.getTypeFactory().constructType(type)); }
+
+    public JsonCodec(ObjectMapper mapper, Class<T> type) { this(mapper, mapper.getTypeFactory().constructType(type)); }
+
+    /** for generic types, e.g. mapper.getTypeFactory().constructCollectionType(List.class, Foo.class) */
+    public JsonCodec(ObjectMapper mapper, JavaType type) {
+        this.reader = mapper.reader(type);
+        this.writer = mapper.writerWithType(type);
+    }
+
+    @Override public byte[] encode(T message) throws IOException { return writer.writeValueAsBytes(message); }
+
+    @Override public T decode(byte[] data) throws IOException { return reader.readValue(data); }
+
+}
@@ -0,0 +1,23 @@
+package org.cobbzilla.util.mq.codec;
+
+import org.cobbzilla.util.mq.MqCodec;
+
+import java.nio.charset.Charset;
+
+/**
+ * Strings as UTF-8, the same bytes an untyped producer writes for a String message.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class StringCodec implements MqCodec<String> {
+
+    public static final StringCodec INSTANCE = new StringCodec();
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Override public byte[] encode(String message) { return message.getBytes(UTF8); }
+
+    @Override public String decode(byte[] data) { return new String(data, UTF8); }
+
+}
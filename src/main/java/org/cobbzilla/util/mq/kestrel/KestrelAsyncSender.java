@@ -0,0 +1,148 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.cobbzilla.util.mq.MqProducer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends messages on a small pool of sender threads so callers don't wait for each STORED reply.
+ *
+ * This is not protocol-level pipelining: each of the N sender threads does an ordinary blocking set,
+ * so at most N sets are outstanding at once. A semaphore caps the number of accepted-but-unfinished
+ * sends; callers block in sendAsync once it is exhausted. Failed sends are retried on the same pool
+ * after a short delay, without parking a sender thread. Sends only reach kestrel in the order they
+ * were accepted when there is a single sender thread and nothing has to be retried.
+ *
+ * On shutdown, every send that hasn't finished yet fails its future and gives back its permit, so
+ * nobody is left waiting on a future that will never complete.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelAsyncSender {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KestrelAsyncSender.class);
+
+    private static final long RETRY_DELAY = 50;
+
+    private final KestrelClient client;
+    private final int maxRetries;
+    private final Semaphore inFlight;
+    private final ScheduledExecutorService executor;
+    private final Set<SendTask> pending = Collections.newSetFromMap(new ConcurrentHashMap<SendTask, Boolean>());
+
+    public KestrelAsyncSender(KestrelClient client, KestrelThreads threads, int senderThreads, int maxInFlight, int maxRetries) {
+        this.client = client;
+        this.maxRetries = maxRetries;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.executor = new ScheduledThreadPoolExecutor(senderThreads, threads.factory("kestrel-async-send-"));
+    }
+
+    public ListenableFuture<Void> send(String queueName, Object message) throws InterruptedException {
+        return send(queueName, message, null);
+    }
+
+    /**
+     * @param producer if not null, the send is one call to its send(), which deals with failures its own way
+     *                 (a spooling producer spools the message), rather than our retries
+     */
+    public ListenableFuture<Void> send(String queueName, Object message, MqProducer<Object> producer) throws InterruptedException {
+        inFlight.acquire();
+        final SendTask task = new SendTask(queueName, message, producer);
+        pending.add(task);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.fail(e);
+        }
+        return task.future;
+    }
+
+    public int getPending() { return pending.size(); }
+
+    public void shutdown() {
+        // what shutdownNow hands back are the executor's own wrappers, not our tasks, so fail from our own list
+        executor.shutdownNow();
+        for (SendTask task : pending) {
+            task.fail(new RejectedExecutionException("sender was shut down before the send to "+task.queueName+" finished"));
+        }
+    }
+
+    private class SendTask implements Runnable {
+
+        private final String queueName;
+        private Object message;
+        private final MqProducer<Object> producer;
+        private final SettableFuture<Void> future = SettableFuture.create();
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        private int tries = 0;
+
+        SendTask(String queueName, Object message, MqProducer<Object> producer) {
+            this.queueName = queueName;
+            this.message = message;
+            this.producer = producer;
+        }
+
+        @Override
+        public void run() {
+            if (producer != null) {
+                try {
+                    producer.send(message);
+                    if (finish()) future.set(null);
+                } catch (Exception e) {
+                    fail(e);
+                }
+                return;
+            }
+            tries++;
+            try {
+                // compress once, on a sender thread, not again on every retry
+                if (tries == 1) message = client.compress(message);
+                client.set(queueName, message);
+                if (finish()) future.set(null);
+
+            } catch (InterruptedException e) {
+                fail(e);
+
+            } catch (Exception e) {
+                if (tries > maxRetries) {
+                    LOG.warn("send: giving up sending to "+queueName+" after "+tries+" tries: "+e);
+                    fail(e);
+                    return;
+                }
+                LOG.warn("send: error sending to "+queueName+" (try #"+tries+"), retrying: "+e);
+                client.getMetrics().queue(queueName).recordSendRetry();
+                try {
+                    executor.schedule(this, RETRY_DELAY, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ree) {
+                    fail(ree);
+                }
+            }
+        }
+
+        void fail(Throwable t) {
+            if (finish()) future.setException(t);
+        }
+
+        /** @return true only the first time, so a send that shutdown has already failed gives back just one permit */
+        private boolean finish() {
+            if (!done.compareAndSet(false, true)) return false;
+            pending.remove(this);
+            inFlight.release();
+            return true;
+        }
+    }
+
+}
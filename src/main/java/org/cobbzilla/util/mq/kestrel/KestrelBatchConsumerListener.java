@@ -0,0 +1,198 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import net.rubyeye.xmemcached.exception.MemcachedException;
+import org.cobbzilla.util.mq.MqBatchConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Accumulates up to maxBatchSize messages, or whatever arrived within maxBatchMillis of the first one,
+ * and hands them to the consumer in a single onMessages call.
+ *
+ * Here a "reader" is a KestrelReaderGroup: with hosts spread by KestrelHostDistribution, each slot polls every
+ * server, and its open item lives on whichever server it came from.
+ *
+ * Every item in a batch stays open until the batch is done, and kestrel allows one open read per queue
+ * per connection, so the listener keeps one reader (and connection) per item. Readers are created as
+ * batches need them, up to maxBatchSize. Envelope items count once per message they carry, but only
+ * take up one reader, so batching producers keep the connection count down.
+ *
+ * With envelopes, maxBatchSize is a soft limit. A batch stops reading once it holds maxBatchSize messages,
+ * but an envelope is one open item, acked or failed as a whole, so it's never split across two batches: the
+ * last one read goes in whole. A batch can hold up to maxBatchSize - 1 messages plus one full envelope.
+ *
+ * When onMessages returns, every item in the batch is acked; the acks ride along with the next batch's
+ * reads as close/open requests. When it throws, every item goes through KestrelReader.fail, the same
+ * error-queue-or-abort rules that apply to a single message. Each onMessages call counts as one callback in
+ * the queue's metrics.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelBatchConsumerListener extends KestrelListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KestrelBatchConsumerListener.class);
+
+    private final KestrelClient client;
+    private final MqBatchConsumer callback;
+    private final String queueName;
+    private final String errorQueueName;
+    private final int maxBatchSize;
+    private final long maxBatchMillis;
+    private final KestrelLongPoll poll;
+    private final KestrelLogSampler logSampler;
+
+    private final List<KestrelReaderGroup> readers = new ArrayList<>();
+
+    public KestrelBatchConsumerListener(KestrelClient client, MqBatchConsumer callback, String queueName, String errorQueueName,
+                                        int maxBatchSize, long maxBatchMillis, KestrelLongPoll poll) {
+        this.client = client;
+        this.callback = callback;
+        this.queueName = queueName;
+        this.errorQueueName = errorQueueName;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchMillis = maxBatchMillis;
+        this.poll = poll;
+        this.logSampler = client.getReceiveLogSampler(queueName);
+    }
+
+    private KestrelReaderGroup getReader(int i) throws IOException {
+        while (readers.size() <= i) {
+            readers.add(client.newReaderGroup(queueName, errorQueueName));
+        }
+        return readers.get(i);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (alive) {
+                final List<Object> batch = new ArrayList<>();
+                final List<Object> openItems = new ArrayList<>();
+                boolean kestrelError = false;
+                long deadline = 0;
+
+                try {
+                    while (batch.size() < maxBatchSize) {
+                        final long timeout;
+                        if (batch.isEmpty()) {
+                            timeout = poll.getWait();
+                        } else {
+                            timeout = deadline - System.currentTimeMillis();
+                            if (timeout <= 0) break;
+                        }
+
+                        final KestrelReaderGroup reader = getReader(openItems.size());
+                        final Object item = reader.open(timeout);
+                        if (item == null) {
+                            if (!batch.isEmpty()) break;
+                            // idle: don't leave the previous batch's acks waiting for traffic
+                            closeDeferredAcks(1);
+                            poll.onEmpty();
+                            if (notAlive()) break;
+                            continue;
+                        }
+
+                        if (KestrelEnvelope.isEnvelope(item)) {
+                            try {
+                                batch.addAll(KestrelEnvelope.decode(item));
+                            } catch (Exception e) {
+                                reader.fail(item, e);
+                                continue;
+                            }
+                        } else {
+                            batch.add(item);
+                        }
+                        openItems.add(item);
+                        poll.onMessage();
+                        if (deadline == 0) deadline = System.currentTimeMillis() + maxBatchMillis;
+                    }
+
+                } catch (InterruptedException e) {
+                    LOG.info("runloop: interrupted while reading from kestrel");
+
+                } catch (TimeoutException e) {
+                    LOG.debug("runloop: timed out, delivering what we have");
+
+                } catch (MemcachedException | IOException e) {
+                    LOG.error("runloop: Error talking to Kestrel: "+e, e);
+                    kestrelError = true;
+                }
+
+                closeDeferredAcks(openItems.size());
+                if (!openItems.isEmpty()) {
+                    if (notAlive()) {
+                        abortAll(openItems.size());
+                        return;
+                    }
+                    deliver(batch, openItems);
+                }
+                if (notAlive()) return;
+
+                if (kestrelError) {
+                    // sleep for a bit so we don't spin if Kestrel is down
+                    try {
+                        Thread.sleep(2000);
+                    } catch (InterruptedException e1) {
+                        if (notAlive()) return;
+                    }
+                }
+            }
+        } finally {
+            LOG.info("runloop: exiting");
+            for (KestrelReaderGroup reader : readers) {
+                reader.shutdown();
+            }
+        }
+    }
+
+    private void deliver(List<Object> batch, List<Object> openItems) {
+        try {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("deliver: sending batch of "+batch.size()+" messages ("+openItems.size()+" items) to worker");
+            } else if (LOG.isInfoEnabled() && logSampler.sample()) {
+                LOG.info("deliver: sending batch of "+batch.size()+" messages ("+openItems.size()+" items) to worker"+logSampler.skippedSuffix());
+            }
+            final long start = System.nanoTime();
+            try {
+                callback.onMessages(batch);
+            } finally {
+                readers.get(0).getMetrics().recordCallback(System.nanoTime() - start);
+            }
+            for (int i=0; i<openItems.size(); i++) {
+                readers.get(i).deferAck();
+            }
+
+        } catch (Exception e) {
+            LOG.error("deliver: batch of "+batch.size()+" messages failed: "+e, e);
+            for (int i=0; i<openItems.size(); i++) {
+                readers.get(i).fail(openItems.get(i), e);
+            }
+        }
+    }
+
+    /** Readers at or after index 'from' didn't read in this round, so their deferred acks need a separate close. */
+    private void closeDeferredAcks(int from) {
+        for (int i=from; i<readers.size(); i++) {
+            readers.get(i).closePending();
+        }
+    }
+
+    private void abortAll(int count) {
+        // clear the interrupt flag while we abort, the abort's retry loop bails out on interrupt
+        final boolean interrupted = Thread.interrupted();
+        try {
+            for (int i=0; i<count; i++) {
+                readers.get(i).abort();
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.cobbzilla.util.mq.MqProducer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Collects messages for a queue and writes them to kestrel as a single envelope item, once the batch
+ * reaches maxMessages or maxBytes, or maxDelayMillis after its first message arrived.
+ *
+ * Messages are sent as their toString() value. send() returns as soon as the message is buffered, so a
+ * message is not stored on the server until its batch is flushed; call flush() to force it out.
+ * Batches are written in the order they were filled, through the client's own producer: with the same retry
+ * loop as KestrelProducer.send, or into the spool if the client has one.
+ *
+ * A full batch is written on the thread that filled it. A timed flush runs on the client's flusher threads,
+ * never on its scheduler, so a flush stuck retrying while kestrel is down holds up nothing else. A batch
+ * whose write is interrupted goes back to the head of the buffer, to be sent with the next flush.
+ *
+ * close() flushes what's left; KestrelClient.shutdown flushes every batching producer still open.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class KestrelBatchingProducer implements MqProducer<Object> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KestrelBatchingProducer.class);
+
+    private final KestrelClient client;
+    private final String queueName;
+    private final MqProducer<Object> producer;
+
+    private final int maxMessages;
+    private final int maxBytes;
+    private final long maxDelayMillis;
+
+    // locks rather than synchronized blocks: flush holds flushLock across a network write, which would pin a virtual thread
+    private final ReentrantLock bufferLock = new ReentrantLock();
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private List<String> buffer = new ArrayList<>();
+    private int bufferBytes = 0;
+    /** set from when a timed flush is scheduled until it's done, so there's never more than one at a time */
+    private ScheduledFuture<?> scheduledFlush = null;
+    private boolean closed = false;
+
+    /** the timed flush: the scheduler only hands it to a flusher thread */
+    private final Runnable timedFlush = new Runnable() {
+        @Override public void run() {
+            try {
+                flush();
+            } catch (InterruptedException e) {
+                LOG.info("flush: scheduled flush to "+queueName+" interrupted, its batch stays buffered");
+            } catch (Exception e) {
+                LOG.error("flush: scheduled flush to "+queueName+" failed: "+e, e);
+            } finally {
+                bufferLock.lock();
+                try {
+                    scheduledFlush = null;
+                    if (!buffer.isEmpty() && !closed) scheduleFlush();
+                } finally {
+                    bufferLock.unlock();
+                }
+            }
+        }
+    };
+
+    public KestrelBatchingProducer(KestrelClient client, String queueName, int maxMessages, int maxBytes, long maxDelayMillis) {
+        this.client = client;
+        this.queueName = queueName;
+        // with a spool, a batch that can't be sent is spooled like any other message, instead of retried forever
+        this.producer = client.getProducer(queueName);
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    @Override
+    public void send(Object message) throws IOException, InterruptedException {
+        final String msgString = message.toString();
+        boolean full;
+        bufferLock.lock();
+        try {
+            if (closed) throw new IllegalStateException("send: producer for "+queueName+" is closed");
+            buffer.add(msgString);
+            bufferBytes += KestrelEnvelope.sizeOf(msgString);
+            full = buffer.size() >= maxMessages || bufferBytes >= maxBytes;
+            if (!full) scheduleFlush();
+        } finally {
+            bufferLock.unlock();
+        }
+        if (full) flush();
+    }
+
+    /** called with bufferLock held */
+    private void scheduleFlush() {
+        if (scheduledFlush != null) return;
+        try {
+            scheduledFlush = client.getScheduler().schedule(new Runnable() {
+                @Override public void run() {
+                    try {
+                        client.getFlusher().execute(timedFlush);
+                    } catch (RejectedExecutionException e) {
+                        // shutting down; shutdown flushes us itself
+                    }
+                }
+            }, maxDelayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down; shutdown flushes us itself
+        }
+    }
+
+    /** @return how many messages are buffered, waiting to be flushed */
+    public int getPending() {
+        bufferLock.lock();
+        try {
+            return buffer.size();
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    /**
+     * Writes whatever is buffered as one envelope, and returns once the server has stored it.
+     */
+    public void flush() throws IOException, InterruptedException {
+        flushLock.lockInterruptibly();
+        try {
+            final List<String> batch;
+            bufferLock.lock();
+            try {
+                if (buffer.isEmpty()) return;
+                batch = buffer;
+                buffer = new ArrayList<>(batch.size());
+                bufferBytes = 0;
+                // a timed flush that has already started clears this itself when it's done
+                if (scheduledFlush != null && scheduledFlush.cancel(false)) scheduledFlush = null;
+            } finally {
+                bufferLock.unlock();
+            }
+            if (LOG.isDebugEnabled()) LOG.debug("flush: sending batch of "+batch.size()+" messages to "+queueName);
+            boolean sent = false;
+            try {
+                producer.send(KestrelEnvelope.encode(batch));
+                sent = true;
+            } finally {
+                if (!sent) putBack(batch);
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /** the batch wasn't stored: it goes back ahead of anything buffered since, and waits for the next flush */
+    private void putBack(List<String> batch) {
+        bufferLock.lock();
+        try {
+            batch.addAll(buffer);
+            buffer = batch;
+            bufferBytes = 0;
+            for (String message : batch) bufferBytes += KestrelEnvelope.sizeOf(message);
+            if (!closed) scheduleFlush();
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    /**
+     * Flushes what's left and stops taking messages. If the flush doesn't get through, the messages stay
+     * buffered (see getPending) and the error is thrown.
+     */
+    public void close() throws IOException, InterruptedException {
+        bufferLock.lock();
+        try {
+            closed = true;
+        } finally {
+            bufferLock.unlock();
+        }
+        client.removeBatchingProducer(this);
+        flush();
+    }
+
+    public String getQueueName() { return queueName; }
+
+}
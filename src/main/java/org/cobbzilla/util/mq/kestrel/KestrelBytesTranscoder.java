@@ -0,0 +1,34 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import net.rubyeye.xmemcached.transcoders.CachedData;
+import net.rubyeye.xmemcached.transcoders.CompressionMode;
+import net.rubyeye.xmemcached.transcoders.Transcoder;
+
+/**
+ * Hands bytes to and from the wire untouched.
+ *
+ * The default transcoder turns everything into a String on the way in (we set primitiveAsString), and may
+ * compress large values on the way out, marking that only in the item's flags, which kestrel doesn't keep.
+ * This one does neither, so a byte[] comes back exactly as it was sent. The one exception is an item that
+ * KestrelCompression compressed, which is inflated back to what was sent.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelBytesTranscoder implements Transcoder<byte[]> {
+
+    public static final KestrelBytesTranscoder INSTANCE = new KestrelBytesTranscoder();
+
+    @Override public CachedData encode(byte[] bytes) { return new CachedData(0, bytes); }
+
+    @Override public byte[] decode(CachedData data) { return KestrelCompression.decode(data.getData()); }
+
+    // none of the knobs apply to raw bytes
+    @Override public void setPrimitiveAsString(boolean primitiveAsString) {}
+    @Override public void setPackZeros(boolean packZeros) {}
+    @Override public void setCompressionThreshold(int to) {}
+    @Override public boolean isPrimitiveAsString() { return false; }
+    @Override public boolean isPackZeros() { return false; }
+    @Override public void setCompressionMode(CompressionMode compressMode) {}
+
+}
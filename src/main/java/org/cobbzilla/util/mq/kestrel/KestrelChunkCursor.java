@@ -0,0 +1,93 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import net.rubyeye.xmemcached.exception.MemcachedException;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reads the chunks of one message in order, without using them up.
+ *
+ * Kestrel can't read an item without taking it off the queue, and a connection holds only one open read per
+ * queue, so the chunks can't all be held open until the message is done. Instead, each chunk is opened, put
+ * back at the end of the chunk queue, and only then closed. Once every chunk has been read, the queue holds
+ * them all again, in the same order, so if the message is aborted or fails, the next reader finds them intact.
+ *
+ * If a reader dies between putting a chunk back and closing it, kestrel puts the open chunk back at the front
+ * and the queue briefly holds a duplicate. That's why chunks are matched by sequence number: anything that
+ * isn't the next chunk wanted is simply passed along to the end of the queue.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelChunkCursor {
+
+    /** how long to wait for a chunk; they were all written before the manifest, so they should be there */
+    public static final long CHUNK_WAIT = 1000;
+
+    private final KestrelConnection connection;
+    private final KestrelChunks.Manifest manifest;
+    private int next = 0;
+    private int reads = 0;
+
+    public KestrelChunkCursor(KestrelConnection connection, KestrelChunks.Manifest manifest) {
+        this.connection = connection;
+        this.manifest = manifest;
+    }
+
+    public KestrelChunks.Manifest getManifest() { return manifest; }
+
+    public boolean hasNext() { return next < manifest.chunks; }
+
+    /**
+     * @return the next chunk, header included (its data starts at KestrelChunks.HEADER_LENGTH)
+     * @throws IOException if the chunk can't be found
+     */
+    public byte[] nextChunk() throws IOException, InterruptedException, TimeoutException, MemcachedException {
+        if (!hasNext()) throw new IllegalStateException("nextChunk: all "+manifest.chunks+" chunks of "+manifest.queue+" were already read");
+        // the queue holds every chunk at most twice, unless something's badly wrong
+        final int maxReads = 2 * manifest.chunks + 2;
+        while (true) {
+            if (reads++ >= maxReads) {
+                throw new IOException("nextChunk: chunk "+next+" of "+manifest.chunks+" not found on "+manifest.queue+" after "+maxReads+" reads");
+            }
+            final byte[] chunk = connection.getBytes(manifest.queue, KestrelClient.KPARAM_OPEN, CHUNK_WAIT);
+            if (chunk == null) {
+                throw new IOException("nextChunk: "+manifest.queue+" ran out before chunk "+next+" of "+manifest.chunks);
+            }
+            try {
+                connection.set(manifest.queue, chunk);
+            } catch (InterruptedException | TimeoutException | MemcachedException e) {
+                // couldn't put it back, so don't take it
+                connection.abort(manifest.queue, KestrelReader.ACK_TIMEOUT);
+                throw e;
+            }
+            connection.ack(manifest.queue, KestrelReader.ACK_TIMEOUT);
+
+            if (!KestrelChunks.isChunk(chunk)) {
+                throw new IOException("nextChunk: found something other than a chunk on "+manifest.queue);
+            }
+            if (KestrelChunks.sequenceOf(chunk) == next) {
+                next++;
+                return chunk;
+            }
+        }
+    }
+
+    /** @return the whole payload, inflated if it was compressed */
+    public byte[] readAll() throws IOException, InterruptedException, TimeoutException, MemcachedException {
+        if (manifest.bytes > Integer.MAX_VALUE) throw new IOException("readAll: "+manifest.bytes+" bytes won't fit in an array, use a stream consumer");
+        final byte[] payload = new byte[(int) manifest.bytes];
+        int offset = 0;
+        while (hasNext()) {
+            final byte[] chunk = nextChunk();
+            final int length = chunk.length - KestrelChunks.HEADER_LENGTH;
+            if (offset + length > payload.length) throw new IOException("readAll: chunks of "+manifest.queue+" add up to more than "+manifest.bytes+" bytes");
+            System.arraycopy(chunk, KestrelChunks.HEADER_LENGTH, payload, offset, length);
+            offset += length;
+        }
+        if (offset != payload.length) throw new IOException("readAll: chunks of "+manifest.queue+" add up to "+offset+" of "+manifest.bytes+" bytes");
+        return manifest.compressed ? KestrelCompression.decode(payload) : payload;
+    }
+
+}
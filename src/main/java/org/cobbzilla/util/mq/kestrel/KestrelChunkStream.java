@@ -0,0 +1,93 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A chunked message as a stream: chunks are read from kestrel as the stream gets to them, and let go of as soon
+ * as it's past them, so only one chunk is in memory at a time. Compressed messages are inflated on the fly.
+ *
+ * Only good while the message's manifest is open, that is, until the consumer returns.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelChunkStream extends InputStream {
+
+    private final long length;
+    private final InputStream in;
+    private final Inflater inflater;
+
+    public KestrelChunkStream(KestrelChunkCursor cursor) throws IOException {
+        final KestrelChunks.Manifest manifest = cursor.getManifest();
+        this.length = manifest.length;
+        final InputStream raw = new Chunks(cursor);
+        if (manifest.compressed) {
+            long skipped = 0;
+            while (skipped < KestrelCompression.HEADER_LENGTH) {
+                if (raw.read() == -1) throw new IOException("chunks of "+manifest.queue+" end inside the compression header");
+                skipped++;
+            }
+            this.inflater = new Inflater(true);
+            this.in = new InflaterInputStream(raw, inflater);
+        } else {
+            this.inflater = null;
+            this.in = raw;
+        }
+    }
+
+    /** the size of the message, once inflated */
+    public long length() { return length; }
+
+    @Override public int read() throws IOException { return in.read(); }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException { return in.read(b, off, len); }
+
+    @Override public void close() throws IOException {
+        if (inflater != null) inflater.end();
+    }
+
+    private static class Chunks extends InputStream {
+
+        private final KestrelChunkCursor cursor;
+        private byte[] chunk = null;
+        private int pos = 0;
+
+        Chunks(KestrelChunkCursor cursor) { this.cursor = cursor; }
+
+        /** @return false at the end of the message */
+        private boolean fill() throws IOException {
+            while (chunk == null || pos == chunk.length) {
+                if (!cursor.hasNext()) return false;
+                try {
+                    chunk = cursor.nextChunk();
+                } catch (IOException e) {
+                    throw e;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while reading a chunk", e);
+                } catch (Exception e) {
+                    throw new IOException("error reading a chunk: "+e, e);
+                }
+                pos = KestrelChunks.HEADER_LENGTH;
+            }
+            return true;
+        }
+
+        @Override public int read() throws IOException {
+            return fill() ? chunk[pos++] & 0xff : -1;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            final int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.rubyeye.xmemcached.exception.MemcachedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Splits a message that's too big for one kestrel item into chunks.
+ *
+ * The chunks go, in order, onto a queue of their own, named after the message's queue plus a random suffix.
+ * Then a small manifest goes onto the message's queue, naming the chunk queue. A consumer that opens the
+ * manifest reads the chunks while holding the manifest open, so the message is acked or aborted as a whole:
+ * the chunk queue is only deleted once the manifest is acked, and a failed message's manifest goes to the
+ * error queue with its chunks left in place. See KestrelChunkCursor for how the chunks are read.
+ *
+ * A manifest is a NUL-delimited marker followed by JSON, like an envelope. A chunk is a binary header (a NUL,
+ * 'k', 'c', a format byte, then its sequence number and the chunk count as big-endian ints) and the bytes.
+ *
+ * The chunks and the manifest are all written on one connection, so that without HASH distribution they
+ * land on the same server, and the consumer that reads the manifest finds the chunks there too.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelChunks {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KestrelChunks.class);
+
+    public static final String MANIFEST_PREFIX = "\u0000jestrel-chunks\u0000";
+    public static final int HEADER_LENGTH = 12;
+    private static final byte[] MAGIC = { 0, 'k', 'c' };
+    private static final byte FORMAT = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] MANIFEST_PREFIX_BYTES = MANIFEST_PREFIX.getBytes(UTF8);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    public static class Manifest {
+        /** the queue holding the chunks */
+        public String queue;
+        public int chunks;
+        /** the size of the payload as chunked, which is compressed if the client compresses */
+        public long bytes;
+        /** the size of the message itself */
+        public long length;
+        public boolean compressed;
+    }
+
+    /**
+     * @return the payload as bytes if it's bigger than chunkSize, otherwise null
+     */
+    public static byte[] bytesIfOver(Object payload, int chunkSize) {
+        if (payload instanceof byte[]) {
+            final byte[] bytes = (byte[]) payload;
+            return bytes.length > chunkSize ? bytes : null;
+        }
+        if (payload instanceof String) {
+            final String s = (String) payload;
+            // a char is at most 3 UTF-8 bytes
+            if (s.length() * 3L <= chunkSize) return null;
+            final byte[] bytes = s.getBytes(UTF8);
+            return bytes.length > chunkSize ? bytes : null;
+        }
+        return null;
+    }
+
+    /**
+     * Writes the chunks, then the manifest. If any write fails, the chunks written so far are deleted (as far as
+     * possible) and the error is thrown, so the caller can retry the whole message.
+     */
+    public static void write(KestrelConnection connection, String queueName, byte[] payload, int chunkSize)
+            throws InterruptedException, TimeoutException, MemcachedException {
+
+        final Manifest manifest = new Manifest();
+        manifest.queue = queueName + "_chunks_" + Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+        manifest.chunks = (int) ((payload.length + (long) chunkSize - 1) / chunkSize);
+        manifest.bytes = payload.length;
+        manifest.compressed = KestrelCompression.isCompressed(payload);
+        manifest.length = manifest.compressed ? KestrelCompression.originalLength(payload) : payload.length;
+
+        final String manifestString;
+        try {
+            manifestString = MANIFEST_PREFIX + MAPPER.writeValueAsString(manifest);
+        } catch (IOException e) {
+            throw new IllegalStateException("write: error writing manifest: "+e, e);
+        }
+
+        boolean done = false;
+        try {
+            for (int i=0; i<manifest.chunks; i++) {
+                final int offset = i * chunkSize;
+                final int length = Math.min(chunkSize, payload.length - offset);
+                final byte[] chunk = new byte[HEADER_LENGTH + length];
+                System.arraycopy(MAGIC, 0, chunk, 0, MAGIC.length);
+                chunk[3] = FORMAT;
+                writeInt(chunk, 4, i);
+                writeInt(chunk, 8, manifest.chunks);
+                System.arraycopy(payload, offset, chunk, HEADER_LENGTH, length);
+                connection.set(manifest.queue, chunk);
+            }
+            connection.set(queueName, manifestString);
+            done = true;
+
+        } finally {
+            if (!done) delete(connection, manifest.queue);
+        }
+    }
+
+    public static boolean isManifest(Object item) {
+        if (item instanceof String) return ((String) item).startsWith(MANIFEST_PREFIX);
+        if (item instanceof byte[]) {
+            final byte[] bytes = (byte[]) item;
+            if (bytes.length < MANIFEST_PREFIX_BYTES.length) return false;
+            for (int i=0; i<MANIFEST_PREFIX_BYTES.length; i++) {
+                if (bytes[i] != MANIFEST_PREFIX_BYTES[i]) return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /** @return the manifest as a String, however it was read */
+    public static String manifestString(Object item) {
+        return item instanceof byte[] ? new String((byte[]) item, UTF8) : item.toString();
+    }
+
+    public static Manifest parseManifest(String manifest) throws IOException {
+        return MAPPER.readValue(manifest.substring(MANIFEST_PREFIX.length()), Manifest.class);
+    }
+
+    public static boolean isChunk(byte[] item) {
+        return item.length >= HEADER_LENGTH && item[0] == MAGIC[0] && item[1] == MAGIC[1] && item[2] == MAGIC[2] && item[3] == FORMAT;
+    }
+
+    public static int sequenceOf(byte[] chunk) { return readInt(chunk, 4); }
+
+    /** drops a message's chunks once it no longer needs them */
+    public static void delete(KestrelConnection connection, String chunkQueue) {
+        try {
+            connection.delete(chunkQueue);
+        } catch (MemcachedException e) {
+            // noop - bug in XMemcached considers "DELETED" response invalid, but it's actually correct.
+        } catch (Exception e) {
+            LOG.warn("delete: error deleting chunk queue "+chunkQueue+", it will stay on the server: "+e);
+        }
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset]     = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+}
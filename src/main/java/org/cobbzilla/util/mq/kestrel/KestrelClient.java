@@ -1,24 +1,39 @@
 package org.cobbzilla.util.mq.kestrel;
 
+import org.cobbzilla.util.mq.MqBatchConsumer;
 import org.cobbzilla.util.mq.MqClient;
+import org.cobbzilla.util.mq.MqCodec;
 import org.cobbzilla.util.mq.MqConsumer;
+import org.cobbzilla.util.mq.MqDelivery;
+import org.cobbzilla.util.mq.MqKeyExtractor;
 import org.cobbzilla.util.mq.MqProducer;
-import net.rubyeye.xmemcached.MemcachedClient;
-import net.rubyeye.xmemcached.MemcachedClientBuilder;
-import net.rubyeye.xmemcached.XMemcachedClientBuilder;
-import net.rubyeye.xmemcached.command.KestrelCommandFactory;
+import org.cobbzilla.util.mq.MqStreamConsumer;
+import org.cobbzilla.util.mq.metrics.MqMetrics;
+import org.cobbzilla.util.mq.metrics.MqMetricsExporter;
+import org.cobbzilla.util.mq.metrics.MqQueueMetrics;
 import net.rubyeye.xmemcached.exception.MemcachedException;
 import net.rubyeye.xmemcached.utils.AddrUtil;
+import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 /**
  * (c) Copyright 2013 Jonathan Cobb
@@ -29,27 +44,128 @@ public class KestrelClient implements MqClient {
     public static final String KPARAM_OPEN = "/open";
     public static final String KPARAM_CLOSE = "/close";
     public static final String KPARAM_ABORT = "/abort";
+    public static final String KPARAM_CLOSE_OPEN = KPARAM_CLOSE + KPARAM_OPEN;
     private static final Logger LOG = LoggerFactory.getLogger(KestrelClient.class);
 
     public static final String PROP_KESTREL_HOSTS = "kestrelHosts";
     public static final String PROP_RECONNECT_INTERVAL_IN_MINUTES = "kestrelReconnectIntervalInMinutes";
     public static final String PROP_KESTREL_CONNECTIONS = "kestrelConnectionPoolSize";
+    public static final String PROP_PRODUCER_CONNECTIONS = "kestrelProducerConnectionPoolSize";
+    public static final String PROP_PRODUCER_CONNECT_TIMEOUT_MILLIS = "kestrelProducerConnectTimeoutMillis";
+    public static final String PROP_PRODUCER_TIMEOUT_MILLIS = "kestrelProducerTimeoutMillis";
+    public static final String PROP_CONSUMER_CONNECTIONS = "kestrelConsumerConnectionPoolSize";
+    public static final String PROP_CONSUMER_CONNECT_TIMEOUT_MILLIS = "kestrelConsumerConnectTimeoutMillis";
+    public static final String PROP_CONSUMER_TIMEOUT_MILLIS = "kestrelConsumerTimeoutMillis";
+    public static final String PROP_CONSUMER_READ_SLACK_MILLIS = "kestrelConsumerReadSlackMillis";
+    public static final String PROP_VIRTUAL_THREADS = "kestrelVirtualThreads";
+    public static final String PROP_CONSUMER_MODE = "kestrelConsumerMode";
+    public static final String PROP_EVENT_LOOP_THREADS = "kestrelEventLoopThreads";
+    public static final String PROP_EVENT_LOOP_WORKERS = "kestrelEventLoopWorkers";
+    public static final String PROP_EVENT_LOOP_MAX_IDLE_MILLIS = "kestrelEventLoopMaxIdleMillis";
+    public static final String PROP_KEYED_MAX_OPEN = "kestrelKeyedMaxOpen";
+    public static final String PROP_PUBLISHER_MAX_OPEN = "kestrelPublisherMaxOpen";
+    public static final String PROP_CONSUMER_MIN_WAIT_MILLIS = "kestrelConsumerMinWaitMillis";
+    public static final String PROP_CONSUMER_MAX_WAIT_MILLIS = "kestrelConsumerMaxWaitMillis";
+    public static final String PROP_CONSUMER_CONCURRENCY = "kestrelConsumerConcurrency";
+    public static final String PROP_ASYNC_SEND_THREADS = "kestrelAsyncSendThreads";
+    public static final String PROP_ASYNC_MAX_IN_FLIGHT = "kestrelAsyncMaxInFlight";
+    public static final String PROP_ASYNC_SEND_RETRIES = "kestrelAsyncSendRetries";
+    public static final String PROP_HOST_DISTRIBUTION = "kestrelHostDistribution";
+    public static final String PROP_HOST_MAX_LATENCY_MILLIS = "kestrelHostMaxLatencyMillis";
+    public static final String PROP_HOST_MAX_ERROR_PERCENT = "kestrelHostMaxErrorPercent";
+    public static final String PROP_HOST_EJECT_MILLIS = "kestrelHostEjectMillis";
+    public static final String PROP_LOG_SAMPLE_MILLIS = "kestrelLogSampleMillis";
+    public static final String PROP_COMPRESS_THRESHOLD_BYTES = "kestrelCompressThresholdBytes";
+    public static final String PROP_COMPRESS_LEVEL = "kestrelCompressLevel";
+    public static final String PROP_CHUNK_SIZE_BYTES = "kestrelChunkSizeBytes";
+    public static final String PROP_SPOOL_DIR = "kestrelSpoolDir";
+    public static final String PROP_SPOOL_MAX_BYTES = "kestrelSpoolMaxBytes";
+    public static final String PROP_SPOOL_LATENCY_BUDGET_MILLIS = "kestrelSpoolLatencyBudgetMillis";
+    public static final String PROP_SPOOL_FULL_POLICY = "kestrelSpoolFullPolicy";
+    public static final String PROP_SPOOL_DRAIN_BATCH = "kestrelSpoolDrainBatch";
+    public static final String PROP_METRICS_JMX = "kestrelMetricsJmx";
+    public static final String PROP_METRICS_EXPORTERS = "kestrelMetricsExporters";
+    public static final String PROP_METRICS_EXPORT_MILLIS = "kestrelMetricsExportMillis";
 
     private Properties initProperties;
 
-    protected volatile MemcachedClient client;
+    /** for reads, acks and aborts made directly on the client. listeners have connections of their own */
+    protected volatile KestrelConnection connection;
 
-    private KestrelConsumerListener listener = null;
-    private volatile Thread listenerThread = null;
+    private KestrelPoolSettings producerSettings;
+    private KestrelPoolSettings consumerSettings;
+
+    private KestrelHostDistribution hostDistribution = KestrelHostDistribution.HASH;
+    private List<String> hosts;
+    private KestrelHostPool producerPool;
+
+    /** every connection this client has opened, so they can all be rotated */
+    private final Set<KestrelConnection> connections = Collections.newSetFromMap(new ConcurrentHashMap<KestrelConnection, Boolean>());
+
+    /** keyed by the hosts string of a connection, so a server's senders and readers share what they learn about it */
+    private final ConcurrentHashMap<String, KestrelHostHealth> health = new ConcurrentHashMap<>();
+    private int hostMaxLatencyMillis = 500;
+    private int hostMaxErrorPercent = 50;
+    private int hostEjectMillis = 10 * 1000;
+
+    /** per queue, one for sends and one for receives, so busy producers don't crowd out the consumers' lines */
+    private final ConcurrentHashMap<String, KestrelLogSampler> sendLogSamplers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, KestrelLogSampler> receiveLogSamplers = new ConcurrentHashMap<>();
+    private int logSampleMillis = 1000;
+
+    /** applied to everything this client sends; reads inflate compressed items no matter what */
+    private KestrelCompression compression = KestrelCompression.NONE;
+
+    /** messages bigger than this are sent in chunks; 0 never chunks, but chunked messages are always read */
+    private int chunkSizeBytes = 0;
+
+    // sends that kestrel can't take right away go to disk (see KestrelSpoolingProducer); off unless a dir is set
+    private volatile KestrelSpool spool = null;
+    private long spoolMaxBytes = 1024L * 1024 * 1024;
+    private int spoolLatencyBudgetMillis = 100;
+    private KestrelSpoolFullPolicy spoolFullPolicy = KestrelSpoolFullPolicy.FAIL;
+    private int spoolDrainBatch = 100;
+
+    /** latencies and counts per queue and per host; always on, the hot path only touches atomics */
+    private final MqMetrics metrics = new MqMetrics("kestrel-");
+    private int metricsExportMillis = 60 * 1000;
+
+    private final List<KestrelListener> listeners = new ArrayList<>();
+    private final List<Thread> listenerThreads = new ArrayList<>();
 
     private long reconnectIntervalMillis = 5 * 60 * 1000; // 5 minutes
 
-    /** for debugging */
+    /** for debugging. takes effect after the next scheduled rotation */
     public void setReconnectIntervalMillis(long reconnectIntervalMillis) {
         this.reconnectIntervalMillis = reconnectIntervalMillis;
     }
 
-    private volatile long lastConnect;
+    private int consumerConcurrency = 1;
+    private KestrelThreads threads = new KestrelThreads(false);
+    private KestrelConsumerMode consumerMode = KestrelConsumerMode.THREAD_PER_LISTENER;
+    private int eventLoopThreads = 2;
+    private int eventLoopWorkers = 16;
+    private int eventLoopMaxIdleMillis = 1000;
+    private volatile KestrelEventLoop eventLoop = null;
+    private int publisherMaxOpen = 64;
+    private int keyedMaxOpen = 64;
+    private int consumerMinWaitMillis = (int) KestrelLongPoll.DEFAULT_MIN_WAIT;
+    private int consumerMaxWaitMillis = (int) KestrelLongPoll.DEFAULT_MAX_WAIT;
+
+    private int asyncSendThreads = 16;
+    private int asyncMaxInFlight = 1000;
+    private int asyncSendRetries = 10;
+    private volatile KestrelAsyncSender asyncSender = null;
+    private volatile ScheduledExecutorService scheduler = null;
+
+    /** timed flushes of batching producers, off the scheduler thread; their buffers are flushed at shutdown */
+    private volatile ExecutorService flusher = null;
+    private final Set<KestrelBatchingProducer> batchingProducers = Collections.newSetFromMap(new ConcurrentHashMap<KestrelBatchingProducer, Boolean>());
+
+    /** how long shutdown waits for batching producers to flush what they have left */
+    private static final long SHUTDOWN_FLUSH_MILLIS = 10 * 1000;
+
+    private volatile boolean isShutdown = false;
 
     @Override
     public synchronized void init(Properties properties) throws IOException {
@@ -63,161 +179,601 @@ public class KestrelClient implements MqClient {
         } catch (Exception e) {
             LOG.warn(PROP_KESTREL_CONNECTIONS+" undefined, using default of "+connectionPoolSize);
         }
+        // each side can be sized on its own, and falls back to the shared setting
+        producerSettings = KestrelPoolSettings.fromProperties(properties, "producer", connectionPoolSize,
+                PROP_PRODUCER_CONNECTIONS, PROP_PRODUCER_CONNECT_TIMEOUT_MILLIS, PROP_PRODUCER_TIMEOUT_MILLIS, null);
+        consumerSettings = KestrelPoolSettings.fromProperties(properties, "consumer", connectionPoolSize,
+                PROP_CONSUMER_CONNECTIONS, PROP_CONSUMER_CONNECT_TIMEOUT_MILLIS, PROP_CONSUMER_TIMEOUT_MILLIS, PROP_CONSUMER_READ_SLACK_MILLIS);
+
+        consumerConcurrency = intProperty(properties, PROP_CONSUMER_CONCURRENCY, consumerConcurrency);
+        consumerMinWaitMillis = intProperty(properties, PROP_CONSUMER_MIN_WAIT_MILLIS, consumerMinWaitMillis);
+        consumerMaxWaitMillis = intProperty(properties, PROP_CONSUMER_MAX_WAIT_MILLIS, consumerMaxWaitMillis);
+        newLongPoll(); // fail fast on bad settings
+
+        threads = new KestrelThreads(Boolean.parseBoolean(properties.getProperty(PROP_VIRTUAL_THREADS, "false").trim()));
+
+        final String mode = properties.getProperty(PROP_CONSUMER_MODE);
+        if (mode != null) consumerMode = KestrelConsumerMode.fromString(mode);
+        eventLoopThreads = intProperty(properties, PROP_EVENT_LOOP_THREADS, eventLoopThreads);
+        eventLoopWorkers = intProperty(properties, PROP_EVENT_LOOP_WORKERS, eventLoopWorkers);
+        eventLoopMaxIdleMillis = intProperty(properties, PROP_EVENT_LOOP_MAX_IDLE_MILLIS, eventLoopMaxIdleMillis);
+        publisherMaxOpen = intProperty(properties, PROP_PUBLISHER_MAX_OPEN, publisherMaxOpen);
+        keyedMaxOpen = intProperty(properties, PROP_KEYED_MAX_OPEN, keyedMaxOpen);
+        asyncSendThreads = intProperty(properties, PROP_ASYNC_SEND_THREADS, asyncSendThreads);
+        asyncMaxInFlight = intProperty(properties, PROP_ASYNC_MAX_IN_FLIGHT, asyncMaxInFlight);
+        asyncSendRetries = intProperty(properties, PROP_ASYNC_SEND_RETRIES, asyncSendRetries);
+        hostMaxLatencyMillis = intProperty(properties, PROP_HOST_MAX_LATENCY_MILLIS, hostMaxLatencyMillis);
+        hostMaxErrorPercent = intProperty(properties, PROP_HOST_MAX_ERROR_PERCENT, hostMaxErrorPercent);
+        hostEjectMillis = intProperty(properties, PROP_HOST_EJECT_MILLIS, hostEjectMillis);
+        logSampleMillis = intProperty(properties, PROP_LOG_SAMPLE_MILLIS, logSampleMillis);
+        compression = new KestrelCompression(intProperty(properties, PROP_COMPRESS_THRESHOLD_BYTES, 0),
+                                             intProperty(properties, PROP_COMPRESS_LEVEL, Deflater.BEST_SPEED));
+        chunkSizeBytes = intProperty(properties, PROP_CHUNK_SIZE_BYTES, chunkSizeBytes);
+        if (chunkSizeBytes < 0) throw new IllegalArgumentException(PROP_CHUNK_SIZE_BYTES+" can't be negative: "+chunkSizeBytes);
+
+        final String spoolMax = properties.getProperty(PROP_SPOOL_MAX_BYTES);
+        if (spoolMax != null) spoolMaxBytes = Long.parseLong(spoolMax.trim());
+        if (spoolMaxBytes < 1024 * 1024) throw new IllegalArgumentException(PROP_SPOOL_MAX_BYTES+" must be at least 1MB: "+spoolMaxBytes);
+        spoolLatencyBudgetMillis = intProperty(properties, PROP_SPOOL_LATENCY_BUDGET_MILLIS, spoolLatencyBudgetMillis);
+        final String fullPolicy = properties.getProperty(PROP_SPOOL_FULL_POLICY);
+        if (fullPolicy != null) spoolFullPolicy = KestrelSpoolFullPolicy.fromString(fullPolicy);
+        spoolDrainBatch = intProperty(properties, PROP_SPOOL_DRAIN_BATCH, spoolDrainBatch);
+
+        if (Boolean.parseBoolean(properties.getProperty(PROP_METRICS_JMX, "true").trim())) metrics.enableJmx();
+        final String exporters = properties.getProperty(PROP_METRICS_EXPORTERS);
+        if (exporters != null) {
+            for (String exporter : exporters.split(",")) {
+                if (exporter.trim().length() > 0) metrics.addExporter(newExporter(exporter.trim()));
+            }
+        }
+        metricsExportMillis = intProperty(properties, PROP_METRICS_EXPORT_MILLIS, metricsExportMillis);
 
-        final List<InetSocketAddress> memcachedHosts = getMemcachedHosts(properties.getProperty(PROP_KESTREL_HOSTS));
+        final String distribution = properties.getProperty(PROP_HOST_DISTRIBUTION);
+        if (distribution != null) hostDistribution = KestrelHostDistribution.fromString(distribution);
 
-        final String hosts = properties.getProperty(PROP_KESTREL_HOSTS);
-        final MemcachedClientBuilder builder = new XMemcachedClientBuilder(AddrUtil.getAddresses(hosts));
-        builder.setCommandFactory(new KestrelCommandFactory());
-        builder.setConnectionPoolSize(connectionPoolSize);
-        client = builder.build();
-        client.setPrimitiveAsString(true);
+        final List<InetSocketAddress> memcachedHosts = AddrUtil.getAddresses(properties.getProperty(PROP_KESTREL_HOSTS));
+        hosts = new ArrayList<>();
+        for (InetSocketAddress address : memcachedHosts) {
+            hosts.add(address.getHostString() + ":" + address.getPort());
+        }
 
         final String reconnectIntervalString = properties.getProperty(PROP_RECONNECT_INTERVAL_IN_MINUTES);
         if (reconnectIntervalString != null) {
             reconnectIntervalMillis = 60 * 1000 * Long.parseLong(reconnectIntervalString);
         }
-        lastConnect = System.currentTimeMillis();
-        LOG.info("init: KestrelClient fully initialized with hosts="+memcachedHosts+", reconnecting every "+(reconnectIntervalMillis/1000/60)+" minutes");
+
+        final String allHosts = properties.getProperty(PROP_KESTREL_HOSTS);
+        connection = newConnection(allHosts, consumerSettings, false);
+        if (isSingleRoute()) {
+            producerPool = new KestrelHostPool(Collections.singletonList(newConnection(allHosts, producerSettings, false)), hostDistribution);
+        } else {
+            final List<KestrelConnection> hostConnections = new ArrayList<>();
+            for (String host : hosts) {
+                hostConnections.add(newConnection(host, producerSettings, false));
+            }
+            producerPool = new KestrelHostPool(hostConnections, hostDistribution);
+        }
+        scheduleRotation();
+        scheduleMetricsExport();
+
+        final String spoolDir = properties.getProperty(PROP_SPOOL_DIR);
+        if (spoolDir != null) {
+            spool = new KestrelSpool(this, new File(spoolDir.trim()), spoolMaxBytes, spoolFullPolicy, spoolDrainBatch, logSampleMillis);
+            spool.start();
+        }
+        LOG.info("init: KestrelClient fully initialized with hosts="+memcachedHosts+" ("+hostDistribution+"), "+producerSettings+", "+consumerSettings+", "+compression+", chunkSize="+chunkSizeBytes+", spool="+(spool == null ? "off" : spoolDir+" ("+spoolFullPolicy+" when full)")+", reconnecting every "+(reconnectIntervalMillis/1000/60)+" minutes");
+    }
+
+    private static MqMetricsExporter newExporter(String className) {
+        try {
+            return (MqMetricsExporter) Class.forName(className).newInstance();
+        } catch (Exception e) {
+            throw new IllegalArgumentException(PROP_METRICS_EXPORTERS+": couldn't create exporter ("+className+"): "+e, e);
+        }
+    }
+
+    private int intProperty(Properties properties, String name, int defaultValue) {
+        final String value = properties.getProperty(name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /** with HASH distribution, or a single server, each queue is reachable through one connection to all servers */
+    private boolean isSingleRoute() {
+        return hostDistribution == KestrelHostDistribution.HASH || hosts.size() == 1;
+    }
+
+    private KestrelConnection newConnection(String hosts, KestrelPoolSettings settings, boolean transactional) throws IOException {
+        final KestrelConnection c = new KestrelConnection(hosts, settings, transactional, getScheduler(), getHealth(hosts), metrics.host(hosts));
+        connections.add(c);
+        return c;
+    }
+
+    private KestrelHostHealth getHealth(String hosts) {
+        KestrelHostHealth h = health.get(hosts);
+        if (h == null) {
+            final KestrelHostHealth created = new KestrelHostHealth(hosts, hostMaxLatencyMillis, hostMaxErrorPercent, hostEjectMillis);
+            h = health.putIfAbsent(hosts, created);
+            if (h == null) h = created;
+        }
+        return h;
+    }
+
+    /** Per-queue and per-host metrics for everything this client has sent and read. */
+    public MqMetrics getMetrics() { return metrics; }
+
+    /** The exporter gets the metrics every kestrelMetricsExportMillis, and once more at shutdown. */
+    public void addMetricsExporter(MqMetricsExporter exporter) { metrics.addExporter(exporter); }
+
+    KestrelLogSampler getSendLogSampler(String queueName) { return getLogSampler(sendLogSamplers, queueName); }
+
+    KestrelLogSampler getReceiveLogSampler(String queueName) { return getLogSampler(receiveLogSamplers, queueName); }
+
+    private KestrelLogSampler getLogSampler(ConcurrentHashMap<String, KestrelLogSampler> samplers, String queueName) {
+        KestrelLogSampler s = samplers.get(queueName);
+        if (s == null) {
+            final KestrelLogSampler created = new KestrelLogSampler(logSampleMillis);
+            s = samplers.putIfAbsent(queueName, created);
+            if (s == null) s = created;
+        }
+        return s;
+    }
+
+    /**
+     * Every reconnectIntervalMillis, each connection builds a fresh memcached client on the scheduler thread and
+     * swaps it in, so clients keep spreading across the kestrel servers without ever stalling a send or a poll.
+     */
+    private void scheduleRotation() {
+        getScheduler().schedule(new Runnable() {
+            @Override public void run() {
+                LOG.info("rotate: time to reconnect, building new connections in the background...");
+                for (Iterator<KestrelConnection> iter = connections.iterator(); iter.hasNext(); ) {
+                    final KestrelConnection c = iter.next();
+                    if (c.isShutdown()) {
+                        iter.remove();
+                        continue;
+                    }
+                    try {
+                        c.rotate();
+                    } catch (Exception e) {
+                        LOG.error("rotate: error building new connection, keeping the old one: "+e, e);
+                    }
+                }
+                scheduleRotation();
+            }
+        }, reconnectIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Runs on the scheduler thread, so a slow exporter holds up rotation for a while but never a send or a poll. */
+    private void scheduleMetricsExport() {
+        if (metricsExportMillis <= 0) return;
+        getScheduler().scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() { metrics.export(); }
+        }, metricsExportMillis, metricsExportMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** @return the send spool, or null if there is none */
+    KestrelSpool getSpool() { return spool; }
+
+    @Override
+    public MqProducer<Object> getProducer(String queueName) {
+        final KestrelSpool spool = this.spool;
+        return spool == null ? new KestrelProducer(this, queueName)
+                             : new KestrelSpoolingProducer(this, queueName, spool, spoolLatencyBudgetMillis);
+    }
+
+    /**
+     * Returns a producer that encodes each message with the codec and stores the bytes exactly as encoded.
+     * Read the queue with a consumer registered with the same codec.
+     */
+    @Override
+    public <T> MqProducer<T> getProducer(String queueName, MqCodec<T> codec) {
+        return new KestrelCodecProducer<>(getProducer(queueName), codec);
+    }
+
+    /**
+     * Returns a producer that packs messages into envelope items. Listeners unpack envelopes
+     * transparently, so any consumer can read a queue written this way.
+     * @param maxMessages flush once the batch holds this many messages
+     * @param maxBytes flush once the batch holds roughly this many bytes
+     * @param maxDelayMillis flush this long after the first message of a batch, however small it is
+     */
+    public KestrelBatchingProducer getBatchingProducer(String queueName, int maxMessages, int maxBytes, long maxDelayMillis) {
+        if (isShutdown) throw new IllegalStateException("getBatchingProducer: client is shut down");
+        final KestrelBatchingProducer producer = new KestrelBatchingProducer(this, queueName, maxMessages, maxBytes, maxDelayMillis);
+        batchingProducers.add(producer);
+        return producer;
+    }
+
+    void removeBatchingProducer(KestrelBatchingProducer producer) { batchingProducers.remove(producer); }
+
+    /**
+     * Threads for the timed flushes of batching producers. A flush retries for as long as kestrel is down, so
+     * it must not run on the scheduler, where it would hold up rotation, other flushes and metrics exports.
+     * Each producer has at most one timed flush going at a time. Started on first use.
+     */
+    ExecutorService getFlusher() {
+        if (flusher == null) {
+            synchronized (this) {
+                if (isShutdown) throw new RejectedExecutionException("getFlusher: client is shut down");
+                if (flusher == null) flusher = Executors.newCachedThreadPool(threads.factory("kestrel-flusher-"));
+            }
+        }
+        return flusher;
+    }
+
+    /** A single daemon thread for timed housekeeping, like flushing batches. Started on first use. */
+    ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            synchronized (this) {
+                if (scheduler == null) {
+                    scheduler = Executors.newSingleThreadScheduledExecutor(KestrelThreads.platformFactory("kestrel-scheduler-"));
+                }
+            }
+        }
+        return scheduler;
     }
 
-    private List<InetSocketAddress> getMemcachedHosts(String value) {
-        List<InetSocketAddress> addresses = new ArrayList<>();
-        String[] hostPortPairs = value.split(" ");
-        for (String pair : hostPortPairs) {
-            final int colonPos = pair.indexOf(":");
-            final String host = pair.substring(0, colonPos);
-            final int port = Integer.parseInt(pair.substring(colonPos+1));
-            addresses.add(new InetSocketAddress(host, port));
+    /** The sender threads are only started once someone sends asynchronously, and never again after shutdown. */
+    KestrelAsyncSender getAsyncSender() {
+        if (isShutdown) throw new IllegalStateException("getAsyncSender: client is shut down");
+        if (asyncSender == null) {
+            synchronized (this) {
+                if (isShutdown) throw new IllegalStateException("getAsyncSender: client is shut down");
+                if (asyncSender == null) {
+                    asyncSender = new KestrelAsyncSender(this, threads, asyncSendThreads, asyncMaxInFlight, asyncSendRetries);
+                }
+            }
         }
-        return addresses;
+        return asyncSender;
+    }
+
+    /** The poller and worker threads are only started once a queue is registered in EVENT_LOOP mode. */
+    KestrelEventLoop getEventLoop() {
+        if (eventLoop == null) {
+            synchronized (this) {
+                if (eventLoop == null) {
+                    try {
+                        eventLoop = new KestrelEventLoop(this, threads, eventLoopThreads, eventLoopWorkers, eventLoopMaxIdleMillis);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("getEventLoop: error connecting event loop to kestrel: "+e, e);
+                    }
+                }
+            }
+        }
+        return eventLoop;
     }
 
     @Override
-    public MqProducer getProducer(String queueName) {
-        return new KestrelProducer(this, queueName);
+    public void registerConsumer(MqConsumer<Object> callback, String queueName, String errorQueueName) {
+        registerConsumer(callback, queueName, errorQueueName, consumerConcurrency);
     }
 
-    private static AtomicInteger threadCount = new AtomicInteger(0);
+    /**
+     * Starts a pool of listener threads on a queue. Each listener gets its own single-connection
+     * KestrelConnection, so each one can hold its own open reliable read.
+     * In EVENT_LOOP mode, the queue joins the client's event loop instead, and no thread is started.
+     * @param concurrency the number of listener threads to start (or event loop slots to take up)
+     */
     @Override
-    public synchronized void registerConsumer(MqConsumer callback, String queueName, String errorQueueName) {
-        if (listenerThread != null) {
-            throw new IllegalStateException("No more than one listener per client");
-        }
-        listener = new KestrelConsumerListener(this, callback, queueName, errorQueueName);
-        listenerThread = new Thread(listener);
-        listenerThread.setDaemon(true);
-        listenerThread.setName("kestrel-consumer-" + threadCount.getAndIncrement());
+    public void registerConsumer(MqConsumer<Object> callback, String queueName, String errorQueueName, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1: "+concurrency);
+        }
+        if (consumerMode == KestrelConsumerMode.EVENT_LOOP) {
+            getEventLoop().register(callback, queueName, errorQueueName, concurrency);
+            return;
+        }
+        for (int i=0; i<concurrency; i++) {
+            final KestrelReaderGroup readers;
+            try {
+                readers = newReaderGroup(queueName, errorQueueName);
+            } catch (IOException e) {
+                throw new IllegalStateException("registerConsumer: error connecting listener to kestrel: "+e, e);
+            }
+            startListener(new KestrelConsumerListener(readers, callback, queueName, newLongPoll(), getReceiveLogSampler(queueName)));
+        }
+    }
+
+    /**
+     * Starts listener threads that read items as raw bytes and decode them with the codec before handing them
+     * to the callback. A message that fails to decode is treated like one the callback failed: its bytes go to
+     * the error queue, untouched. Typed queues don't carry envelopes, so don't write them with a batching producer.
+     * The event loop reads items as Strings, so in EVENT_LOOP mode typed consumers still get listener threads.
+     */
+    @Override
+    public <T> void registerConsumer(MqConsumer<T> callback, MqCodec<T> codec, String queueName, String errorQueueName, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1: "+concurrency);
+        }
+        final KestrelDecodingConsumer<T> decoder = new KestrelDecodingConsumer<>(callback, codec);
+        for (int i=0; i<concurrency; i++) {
+            final KestrelReaderGroup readers;
+            try {
+                readers = newReaderGroup(queueName, errorQueueName, true);
+            } catch (IOException e) {
+                throw new IllegalStateException("registerConsumer: error connecting listener to kestrel: "+e, e);
+            }
+            startListener(new KestrelConsumerListener(readers, decoder, queueName, newLongPoll(), getReceiveLogSampler(queueName)));
+        }
+    }
+
+    /**
+     * Starts listener threads that hand each message to the callback as a stream. A chunked message is read
+     * chunk by chunk as the callback reads the stream, so it's never in memory all at once; any other message
+     * arrives as a stream over its bytes. As with typed consumers, these always get listener threads.
+     */
+    @Override
+    public void registerStreamConsumer(MqStreamConsumer callback, String queueName, String errorQueueName, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1: "+concurrency);
+        }
+        final KestrelStreamingConsumer streamer = new KestrelStreamingConsumer(callback);
+        for (int i=0; i<concurrency; i++) {
+            final KestrelReaderGroup readers;
+            try {
+                readers = newReaderGroup(queueName, errorQueueName, true);
+            } catch (IOException e) {
+                throw new IllegalStateException("registerStreamConsumer: error connecting listener to kestrel: "+e, e);
+            }
+            readers.setStreamChunks(true);
+            startListener(new KestrelConsumerListener(readers, streamer, queueName, newLongPoll(), getReceiveLogSampler(queueName)));
+        }
+    }
+
+    /**
+     * Starts a listener thread that hands the consumer batches of up to maxBatchSize messages. The listener
+     * holds one connection per open item in a batch, so keep maxBatchSize moderate, or write the queue with a
+     * batching producer so each item carries many messages.
+     * @param maxBatchMillis how long to wait for a batch to fill up, counted from its first message
+     */
+    @Override
+    public void registerBatchConsumer(MqBatchConsumer callback, String queueName, String errorQueueName, int maxBatchSize, long maxBatchMillis) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1: "+maxBatchSize);
+        }
+        startListener(new KestrelBatchConsumerListener(this, callback, queueName, errorQueueName, maxBatchSize, maxBatchMillis, newLongPoll()));
+    }
+
+    /**
+     * Starts one reader thread on the queue, and numStripes single-thread stripes to run the callback.
+     * Up to kestrelKeyedMaxOpen messages are open at once, each on a connection of its own.
+     */
+    @Override
+    public void registerKeyedConsumer(MqConsumer<Object> callback, MqKeyExtractor keyExtractor, String queueName, String errorQueueName, int numStripes) {
+        if (numStripes < 1) {
+            throw new IllegalArgumentException("numStripes must be at least 1: "+numStripes);
+        }
+        startListener(new KestrelKeyedConsumerListener(this, threads, callback, keyExtractor, queueName, errorQueueName,
+                                                       numStripes, keyedMaxOpen, newLongPoll()));
+    }
+
+    /**
+     * Each subscriber gets a thread of its own, and holds at most kestrelPublisherMaxOpen messages open
+     * (one connection each), however much it requests.
+     */
+    @Override
+    public Publisher<MqDelivery> getPublisher(String queueName, String errorQueueName) {
+        return new KestrelPublisher(this, queueName, errorQueueName, publisherMaxOpen);
+    }
+
+    KestrelLongPoll newLongPoll() {
+        return new KestrelLongPoll(consumerMinWaitMillis, consumerMaxWaitMillis);
+    }
+
+    synchronized void startListener(KestrelListener listener) {
+        final Thread listenerThread = threads.newThread("kestrel-consumer-", listener);
+        listeners.add(listener);
+        listenerThreads.add(listenerThread);
         listenerThread.start();
     }
 
+    /**
+     * Readers for a listener, each on its own single-connection client so its open reads are its own.
+     * There is one reader for all servers with HASH distribution, and one per server otherwise.
+     */
+    KestrelReaderGroup newReaderGroup(String queueName, String errorQueueName) throws IOException {
+        return newReaderGroup(queueName, errorQueueName, false);
+    }
+
+    /** @param rawBytes read items as the byte[] that was stored, rather than as Strings */
+    KestrelReaderGroup newReaderGroup(String queueName, String errorQueueName, boolean rawBytes) throws IOException {
+        final List<KestrelReader> readers = new ArrayList<>();
+        for (KestrelConnection c : newReaderConnections(rawBytes)) {
+            readers.add(new KestrelReader(this, c, queueName, errorQueueName));
+        }
+        return new KestrelReaderGroup(readers);
+    }
+
+    /** Single-connection clients for holding open reads: one to all servers with HASH distribution, one per server otherwise. */
+    List<KestrelConnection> newReaderConnections() throws IOException {
+        return newReaderConnections(false);
+    }
+
+    List<KestrelConnection> newReaderConnections(boolean rawBytes) throws IOException {
+        final List<KestrelConnection> readerConnections = new ArrayList<>();
+        final KestrelPoolSettings readerSettings = consumerSettings.withPoolSize(1).withRawBytes(rawBytes);
+        if (isSingleRoute()) {
+            readerConnections.add(newConnection(initProperties.getProperty(PROP_KESTREL_HOSTS), readerSettings, true));
+        } else {
+            for (String host : hosts) {
+                readerConnections.add(newConnection(host, readerSettings, true));
+            }
+        }
+        return readerConnections;
+    }
+
     @Override
     public void flushAllQueues() throws InterruptedException, MemcachedException, TimeoutException {
-        client.flushAll();
+        connection.flushAll();
     }
 
     @Override
     public void deleteQueue(String queueName) throws InterruptedException, TimeoutException {
-        try {
-            client.delete(queueName);
-        } catch (MemcachedException e) {
-            // noop - bug in XMemcached considers "DELETED" response invalid, but it's actually correct.
+        // with HASH distribution the pool is one connection to all servers, otherwise the queue lives on every server
+        for (KestrelConnection c : producerPool.getConnections()) {
+            try {
+                c.delete(queueName);
+            } catch (MemcachedException e) {
+                // noop - bug in XMemcached considers "DELETED" response invalid, but it's actually correct.
+            }
         }
     }
 
     @Override
     public void shutdown() throws IOException {
 
+        isShutdown = true;
+        flushBatchingProducers();
+
         // Fair warning...
         LOG.debug("shutdown: telling listener threads to stop...");
-        if (listenerThread != null) {
-            listener.stop();
-            listenerThread.interrupt();
+        synchronized (this) {
+            for (KestrelListener listener : listeners) {
+                listener.stop();
+            }
+            for (Thread listenerThread : listenerThreads) {
+                listenerThread.interrupt();
+            }
+            listeners.clear();
+            listenerThreads.clear();
+            if (eventLoop != null) {
+                eventLoop.shutdown();
+                eventLoop = null;
+            }
+            if (asyncSender != null) {
+                asyncSender.shutdown();
+                asyncSender = null;
+            }
+            if (spool != null) {
+                spool.shutdown();
+                spool = null;
+            }
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+            }
+            if (flusher != null) {
+                flusher.shutdownNow();
+            }
         }
 
         // finally, stop the client
         LOG.debug("shutdown: trying to shutdown the memcache client");
         shutdownMemcacheClient();
 
+        metrics.export();
+        metrics.unregister();
+
         LOG.debug("shutdown: client successfully and fully shutdown");
     }
 
-    private synchronized void shutdownMemcacheClient() throws IOException {
-        if (client != null) {
-            LOG.debug("shutdownMemcacheClient: trying to shutdown the memcache client");
-            client.shutdown();
-            LOG.debug("shutdownMemcacheClient: memcache client stopped");
-        } else {
-            LOG.warn("shutdownMemcacheClient: memcache client already stopped");
+    /**
+     * Closes every batching producer still open, which flushes its buffer, and gives them SHUTDOWN_FLUSH_MILLIS
+     * in all. A flush still retrying after that is interrupted, and whatever it held is logged as lost.
+     */
+    private void flushBatchingProducers() {
+        final List<KestrelBatchingProducer> open = new ArrayList<>(batchingProducers);
+        if (open.isEmpty()) return;
+        final ExecutorService closer = Executors.newCachedThreadPool(KestrelThreads.platformFactory("kestrel-shutdown-flush-"));
+        for (final KestrelBatchingProducer producer : open) {
+            closer.execute(new Runnable() {
+                @Override public void run() {
+                    try {
+                        producer.close();
+                    } catch (InterruptedException e) {
+                        LOG.warn("shutdown: gave up flushing "+producer.getQueueName());
+                    } catch (Exception e) {
+                        LOG.error("shutdown: error flushing "+producer.getQueueName()+": "+e, e);
+                    }
+                }
+            });
+        }
+        closer.shutdown();
+        try {
+            if (!closer.awaitTermination(SHUTDOWN_FLUSH_MILLIS, TimeUnit.MILLISECONDS)) {
+                // interrupt timed flushes too: a batch they're still retrying goes back in its buffer, and is counted
+                closer.shutdownNow();
+                final ExecutorService f = flusher;
+                if (f != null) f.shutdownNow();
+                closer.awaitTermination(1000, TimeUnit.MILLISECONDS);
+                if (f != null) f.awaitTermination(1000, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            closer.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        for (KestrelBatchingProducer producer : open) {
+            final int pending = producer.getPending();
+            if (pending > 0) LOG.error("shutdown: "+pending+" buffered messages for "+producer.getQueueName()+" were never sent");
         }
     }
 
-    public synchronized Object get (String queue, String options, long timeout) throws InterruptedException, TimeoutException, MemcachedException {
-        checkReconnect();
-        return get_internal(queue, options, timeout);
-    }
-
-    private synchronized Object get_internal(String queue, String options, long timeout) throws TimeoutException, InterruptedException, MemcachedException {
-        return client.get(queue + options + "/t=" + timeout, timeout + 100);
-    }
-
-    public synchronized void set (String queueName, Object message) throws InterruptedException, TimeoutException, MemcachedException {
-        client.set(queueName, 0, message);
+    private void shutdownMemcacheClient() throws IOException {
+        producerPool.shutdown();
+        connection.shutdown();
     }
 
-    public synchronized void ack (String queueName, long timeout) {
-        internal_ack(queueName, KPARAM_CLOSE, timeout);
+    /*
+     * None of the methods below lock the client: xmemcached is thread-safe, so sends, polls and acks
+     * from different threads go out concurrently. The only ordering kestrel needs is that an /open and
+     * its /close or /abort are issued in sequence on the same connection, which holds as long as one
+     * thread drives each transaction. Listeners get a dedicated connection for this; callers that use
+     * get/ack/abort here directly should keep kestrelConsumerConnectionPoolSize at 1. Sends go out on
+     * connections of their own, so they never wait behind a read that is parked on the server.
+     */
+
+    public Object get (String queue, String options, long timeout) throws InterruptedException, TimeoutException, MemcachedException {
+        return connection.get(queue, options, timeout);
     }
 
-    public synchronized void abort (String queueName, long timeout) {
-        internal_ack(queueName, KPARAM_ABORT, timeout);
+    /**
+     * Compresses the message if it's big enough (see kestrelCompressThresholdBytes), then sends it in chunks
+     * if it's still bigger than kestrelChunkSizeBytes.
+     */
+    public void set (String queueName, Object message) throws InterruptedException, TimeoutException, MemcachedException {
+        set(queueName, message, 0);
     }
 
-    private void internal_ack (String queueName, String ackType, long timeout) {
-        long now = System.currentTimeMillis();
-        int numTries = 0;
-        int maxTries = 10;
-        long backoff = 250;
-        while (numTries < maxTries) {
-            try {
-                get_internal(queueName, ackType, timeout);
-                LOG.debug("internal_ack(" + now + "," + ackType + ","+numTries+"): ack succeeded");
-                return;
-
-            } catch (Exception e) {
-                String message2 = "internal_ack("+now+","+ackType+","+numTries+"): Couldn't ack an existing open read on queue "+queueName+": "+e;
-                LOG.error(message2, e);
-                try {
-                    Thread.sleep(backoff);
-                } catch (InterruptedException e1) {
-                    final String msg = "Interrupted while trying to ack, bailing out";
-                    LOG.warn(msg);
-                    throw new IllegalStateException(msg, e1);
+    /**
+     * @param timeoutMillis how long to wait for the server; 0 uses the producer op timeout. A chunked message
+     *                      always uses the op timeout, for each of its chunks
+     */
+    public void set (String queueName, Object message, long timeoutMillis) throws InterruptedException, TimeoutException, MemcachedException {
+        final Object payload = compress(message);
+        final KestrelConnection c = producerPool.pick();
+        final MqQueueMetrics queueMetrics = metrics.queue(queueName);
+        final long start = System.nanoTime();
+        try {
+            if (chunkSizeBytes > 0) {
+                final byte[] bytes = KestrelChunks.bytesIfOver(payload, chunkSizeBytes);
+                if (bytes != null) {
+                    KestrelChunks.write(c, queueName, bytes, chunkSizeBytes);
+                    queueMetrics.recordSend(System.nanoTime() - start);
+                    return;
                 }
-                numTries++;
-                backoff *= 2;
             }
+            c.set(queueName, payload, timeoutMillis);
+            queueMetrics.recordSend(System.nanoTime() - start);
+
+        } catch (TimeoutException | MemcachedException e) {
+            queueMetrics.recordSendError(System.nanoTime() - start);
+            throw e;
         }
     }
 
-    private void checkReconnect() {
-        final long now = System.currentTimeMillis();
-        if (isTimeToReconnect(now)) {
-            lastConnect = now;
-            LOG.info("checkReconnect: time to reconnect, shutting down and reinitializing...");
-            try {
-                synchronized (this) {
-                    shutdownMemcacheClient();
-                    init(initProperties);
-                }
-            } catch (IOException e) {
-                throw new IllegalStateException("Error reconnecting: "+e);
-            }
-        }
+    /**
+     * Senders that retry call this once up front, so a message isn't compressed again on every try;
+     * set() leaves an already compressed item alone.
+     */
+    Object compress(Object message) {
+        return compression.encode(message);
+    }
+
+    public void ack (String queueName, long timeout) {
+        connection.ack(queueName, timeout);
     }
 
-    private boolean isTimeToReconnect(long now) {
-        return now - lastConnect > reconnectIntervalMillis;
+    public void abort (String queueName, long timeout) {
+        connection.abort(queueName, timeout);
     }
 
 }
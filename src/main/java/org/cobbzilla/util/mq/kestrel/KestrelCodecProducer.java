@@ -0,0 +1,30 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.cobbzilla.util.mq.MqCodec;
+import org.cobbzilla.util.mq.MqProducer;
+
+import java.io.IOException;
+
+/**
+ * Encodes each message with a codec and sends the bytes through the client's plain producer, so typed sends
+ * retry (or spool) just like untyped ones. The bytes are stored as-is (see KestrelBytesTranscoder).
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelCodecProducer<T> implements MqProducer<T> {
+
+    private final MqProducer<Object> producer;
+    private final MqCodec<T> codec;
+
+    public KestrelCodecProducer(MqProducer<Object> producer, MqCodec<T> codec) {
+        this.producer = producer;
+        this.codec = codec;
+    }
+
+    @Override
+    public void send(T message) throws IOException, InterruptedException {
+        producer.send(codec.encode(message));
+    }
+
+}
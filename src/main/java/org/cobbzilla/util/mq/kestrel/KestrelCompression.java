@@ -0,0 +1,186 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates large payloads on their way to kestrel, and inflates them on the way back.
+ *
+ * A compressed item starts with an 8-byte header: a NUL, 'k', 'z', a format byte (1 = raw deflate), then the
+ * uncompressed length as a big-endian int. Text never starts with a NUL, so anything without the header is
+ * passed through as it is: items written before compression was turned on, or by producers that don't
+ * compress, still read fine. Reads always check for the header, whatever this client's own settings are.
+ *
+ * Only Strings and byte[] are compressed; a String is compressed as its UTF-8 bytes and read back as a String.
+ * Payloads under the threshold, or that don't get any smaller, are sent as they are.
+ *
+ * Deflaters, inflaters and scratch buffers are pooled and reused, rather than kept per thread, so that
+ * virtual threads (which come and go with every task) reuse them too. The only allocation per message is
+ * the exact-size array that goes on the wire or to the consumer.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelCompression {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KestrelCompression.class);
+
+    public static final int HEADER_LENGTH = 8;
+    private static final byte[] MAGIC = { 0, 'k', 'z' };
+    private static final byte FORMAT_DEFLATE = 1;
+
+    /** scratch buffers start at this size, and grow to fit the largest payload seen */
+    private static final int INITIAL_BUFFER = 64 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+
+    /** never compresses, but still reads compressed items */
+    public static final KestrelCompression NONE = new KestrelCompression(0, Deflater.BEST_SPEED);
+
+    private final int thresholdBytes;
+    private final int level;
+
+    /**
+     * @param thresholdBytes compress payloads at least this big; 0 turns compression off
+     * @param level a Deflater level, from 1 (BEST_SPEED) to 9 (BEST_COMPRESSION)
+     */
+    public KestrelCompression(int thresholdBytes, int level) {
+        if (thresholdBytes < 0) throw new IllegalArgumentException("compression threshold can't be negative: "+thresholdBytes);
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("compression level must be between "+Deflater.BEST_SPEED+" and "+Deflater.BEST_COMPRESSION+": "+level);
+        }
+        this.thresholdBytes = thresholdBytes;
+        this.level = level;
+    }
+
+    public boolean isEnabled() { return thresholdBytes > 0; }
+
+    /**
+     * Safe to call again on its own result: an item that is already compressed is left alone.
+     * @return the message as it should be sent: a compressed byte[], or the message itself
+     */
+    public Object encode(Object message) {
+        if (!isEnabled()) return message;
+        if (message instanceof byte[]) {
+            final byte[] bytes = (byte[]) message;
+            if (bytes.length < thresholdBytes || isCompressed(bytes)) return message;
+            final byte[] compressed = compress(bytes);
+            return compressed == null ? message : compressed;
+        }
+        if (message instanceof String) {
+            final String s = (String) message;
+            // a char is at most 3 UTF-8 bytes, so this one can't reach the threshold
+            if (s.length() * 3L < thresholdBytes) return message;
+            final byte[] bytes = s.getBytes(UTF8);
+            if (bytes.length < thresholdBytes) return message;
+            final byte[] compressed = compress(bytes);
+            return compressed == null ? message : compressed;
+        }
+        return message;
+    }
+
+    /** @return the compressed item, header included, or null if compressing didn't make it any smaller */
+    private byte[] compress(byte[] data) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) deflater = new Deflater(level, true);
+        final byte[] buffer = takeBuffer(data.length);
+        try {
+            deflater.setLevel(level);
+            deflater.setInput(data);
+            deflater.finish();
+            int n = HEADER_LENGTH;
+            while (!deflater.finished()) {
+                // the buffer is at least as big as the input, so running out of it means there's no gain
+                if (n >= data.length) return null;
+                n += deflater.deflate(buffer, n, buffer.length - n);
+            }
+            if (n >= data.length) return null;
+            writeHeader(buffer, data.length);
+            return Arrays.copyOf(buffer, n);
+
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+            buffers.offer(buffer);
+        }
+    }
+
+    private static byte[] takeBuffer(int minLength) {
+        final byte[] buffer = buffers.poll();
+        if (buffer != null && buffer.length >= minLength) return buffer;
+        return new byte[Math.max(INITIAL_BUFFER, minLength)];
+    }
+
+    private static void writeHeader(byte[] buffer, int length) {
+        System.arraycopy(MAGIC, 0, buffer, 0, MAGIC.length);
+        buffer[3] = FORMAT_DEFLATE;
+        buffer[4] = (byte) (length >>> 24);
+        buffer[5] = (byte) (length >>> 16);
+        buffer[6] = (byte) (length >>> 8);
+        buffer[7] = (byte) length;
+    }
+
+    public static boolean isCompressed(byte[] data) {
+        return data != null && data.length >= HEADER_LENGTH
+                && data[0] == MAGIC[0] && data[1] == MAGIC[1] && data[2] == MAGIC[2] && data[3] == FORMAT_DEFLATE;
+    }
+
+    /** @return the uncompressed length recorded in a compressed item's header */
+    public static int originalLength(byte[] data) {
+        return ((data[4] & 0xff) << 24) | ((data[5] & 0xff) << 16) | ((data[6] & 0xff) << 8) | (data[7] & 0xff);
+    }
+
+    /**
+     * Runs inside the memcached client's get, where an exception would be lost on the reading thread, so a
+     * corrupt item is logged and handed over as it is; the consumer will most likely fail it to the error queue.
+     * @return the original payload if the item is compressed, otherwise the item itself
+     */
+    public static byte[] decode(byte[] data) {
+        if (!isCompressed(data)) return data;
+        final int length = originalLength(data);
+        final byte[] out = new byte[length];
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) inflater = new Inflater(true);
+        try {
+            inflater.setInput(data, HEADER_LENGTH, data.length - HEADER_LENGTH);
+            int n = 0;
+            while (n < length) {
+                final int read = inflater.inflate(out, n, length - n);
+                if (read == 0 && (inflater.finished() || inflater.needsInput())) break;
+                n += read;
+            }
+            if (n != length) {
+                LOG.error("decode: compressed item is truncated, got "+n+" of "+length+" bytes; passing it on as it is");
+                return data;
+            }
+            return out;
+
+        } catch (DataFormatException e) {
+            LOG.error("decode: compressed item is corrupt, passing it on as it is: "+e);
+            return data;
+
+        } finally {
+            inflater.reset();
+            inflaters.offer(inflater);
+        }
+    }
+
+    public static String decodeString(byte[] data) { return new String(decode(data), UTF8); }
+
+    @Override
+    public String toString() {
+        return isEnabled() ? "compression{threshold="+thresholdBytes+", level="+level+"}" : "compression{off}";
+    }
+
+}
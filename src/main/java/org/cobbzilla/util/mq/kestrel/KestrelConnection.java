@@ -0,0 +1,338 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import net.rubyeye.xmemcached.MemcachedClient;
+import net.rubyeye.xmemcached.MemcachedClientBuilder;
+import net.rubyeye.xmemcached.XMemcachedClientBuilder;
+import net.rubyeye.xmemcached.command.KestrelCommandFactory;
+import net.rubyeye.xmemcached.exception.MemcachedException;
+import net.rubyeye.xmemcached.utils.AddrUtil;
+import org.cobbzilla.util.mq.metrics.MqHostMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A memcached client connected to a set of kestrel servers.
+ *
+ * Kestrel ties a reliable read (/open) to the connection it was issued on, and the matching /close or /abort
+ * must arrive on that same connection. A consumer that wants its own transaction therefore needs its own
+ * KestrelConnection with a pool size of 1, created with transactional=true.
+ *
+ * Connections are rotated in the background, so that load keeps spreading across the kestrel servers.
+ * rotate() builds a new memcached client without touching the one in use. A plain connection swaps it in
+ * right away. A transactional one holds it until its owner calls swapIfRotated() between transactions, so
+ * an open read is never cut off. The replaced client is closed once its in-flight operations have finished.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelConnection {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KestrelConnection.class);
+
+    /** close a retired client after this long even if operations are still running on it */
+    private static final long DRAIN_TIMEOUT = 30 * 1000;
+
+    private final String hosts;
+    private final KestrelPoolSettings settings;
+    private final boolean transactional;
+    private final ScheduledExecutorService housekeeper;
+    private final KestrelHostHealth health;
+    private final MqHostMetrics metrics;
+
+    private volatile Generation current;
+    private volatile Generation next = null;
+    private volatile boolean shutdown = false;
+
+    /** operations in flight on this connection, across generations */
+    private final AtomicInteger load = new AtomicInteger(0);
+
+    public KestrelConnection(String hosts, KestrelPoolSettings settings, boolean transactional,
+                             ScheduledExecutorService housekeeper, KestrelHostHealth health,
+                             MqHostMetrics metrics) throws IOException {
+        this.hosts = hosts;
+        this.settings = settings;
+        this.transactional = transactional;
+        this.housekeeper = housekeeper;
+        this.health = health;
+        this.metrics = metrics;
+        this.current = new Generation(buildClient());
+    }
+
+    private MemcachedClient buildClient() throws IOException {
+        final MemcachedClientBuilder builder = new XMemcachedClientBuilder(AddrUtil.getAddresses(hosts));
+        builder.setCommandFactory(new KestrelCommandFactory());
+        builder.setConnectionPoolSize(settings.getPoolSize());
+        if (settings.getConnectTimeoutMillis() > 0) builder.setConnectTimeout(settings.getConnectTimeoutMillis());
+        final MemcachedClient memcachedClient = builder.build();
+        memcachedClient.setPrimitiveAsString(true);
+        if (settings.getOpTimeoutMillis() > 0) memcachedClient.setOpTimeout(settings.getOpTimeoutMillis());
+        return memcachedClient;
+    }
+
+    public boolean isShutdown() { return shutdown; }
+
+    public String getHosts() { return hosts; }
+
+    public int getLoad() { return load.get(); }
+
+    public KestrelHostHealth getHealth() { return health; }
+
+    public MqHostMetrics getMetrics() { return metrics; }
+
+    /** true if reads return items as byte[] rather than Strings */
+    public boolean isRawBytes() { return settings.isRawBytes(); }
+
+    public Object get (String queue, String options, long timeout) throws InterruptedException, TimeoutException, MemcachedException {
+        return get(queue, options, timeout, settings.isRawBytes());
+    }
+
+    /** reads an item as byte[], whatever this connection's settings say */
+    public byte[] getBytes (String queue, String options, long timeout) throws InterruptedException, TimeoutException, MemcachedException {
+        return (byte[]) get(queue, options, timeout, true);
+    }
+
+    private Object get (String queue, String options, long timeout, boolean rawBytes) throws InterruptedException, TimeoutException, MemcachedException {
+        final Generation g = acquire();
+        try {
+            // every get may wait on the server, so it only counts toward the error rate
+            final String key = queue + options + "/t=" + timeout;
+            final long wait = timeout + settings.getReadSlackMillis();
+            // both inflate compressed items, whoever wrote them
+            final Object item = rawBytes
+                    ? g.client.get(key, wait, KestrelBytesTranscoder.INSTANCE)
+                    : g.client.get(key, wait, KestrelStringTranscoder.INSTANCE);
+            health.recordSuccess();
+            return item;
+
+        } catch (TimeoutException | MemcachedException e) {
+            health.recordError();
+            metrics.recordError();
+            throw e;
+
+        } finally {
+            release(g);
+        }
+    }
+
+    public void set (String queueName, Object message) throws InterruptedException, TimeoutException, MemcachedException {
+        set(queueName, message, 0);
+    }
+
+    /** @param timeoutMillis how long to wait for the server; 0 uses the connection's op timeout */
+    public void set (String queueName, Object message, long timeoutMillis) throws InterruptedException, TimeoutException, MemcachedException {
+        final Generation g = acquire();
+        final long start = System.nanoTime();
+        try {
+            final long timeout = timeoutMillis > 0 ? timeoutMillis : g.client.getOpTimeout();
+            // never through the default transcoder: it gzips anything over 16KB and says so only in the item's
+            // flags, which kestrel doesn't keep, so readers would get the compressed bytes back as-is
+            if (message instanceof byte[]) {
+                g.client.set(queueName, 0, (byte[]) message, KestrelBytesTranscoder.INSTANCE, timeout);
+            } else if (message instanceof String) {
+                g.client.set(queueName, 0, (String) message, KestrelStringTranscoder.INSTANCE, timeout);
+            } else {
+                g.client.set(queueName, 0, message, timeout);
+            }
+            final long nanos = System.nanoTime() - start;
+            health.recordSuccess(nanos);
+            metrics.recordSend(nanos);
+
+        } catch (TimeoutException | MemcachedException e) {
+            health.recordError();
+            metrics.recordError();
+            throw e;
+
+        } finally {
+            release(g);
+        }
+    }
+
+    /** @return how many times the ack had to be retried, or -1 if every try failed */
+    public int ack (String queueName, long timeout) {
+        return internal_ack(queueName, KestrelClient.KPARAM_CLOSE, timeout);
+    }
+
+    /** @return how many times the abort had to be retried, or -1 if every try failed */
+    public int abort (String queueName, long timeout) {
+        return internal_ack(queueName, KestrelClient.KPARAM_ABORT, timeout);
+    }
+
+    private int internal_ack (String queueName, String ackType, long timeout) {
+        long now = System.currentTimeMillis();
+        int numTries = 0;
+        int maxTries = 10;
+        long backoff = 250;
+        while (numTries < maxTries) {
+            try {
+                get(queueName, ackType, timeout);
+                if (LOG.isDebugEnabled()) LOG.debug("internal_ack(" + now + "," + ackType + ","+numTries+"): ack succeeded");
+                return numTries;
+
+            } catch (Exception e) {
+                String message2 = "internal_ack("+now+","+ackType+","+numTries+"): Couldn't ack an existing open read on queue "+queueName+": "+e;
+                LOG.error(message2, e);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e1) {
+                    final String msg = "Interrupted while trying to ack, bailing out";
+                    LOG.warn(msg);
+                    throw new IllegalStateException(msg, e1);
+                }
+                numTries++;
+                backoff *= 2;
+            }
+        }
+        LOG.error("internal_ack("+now+","+ackType+"): giving up on queue "+queueName+" after "+numTries+" tries");
+        return -1;
+    }
+
+    public void flushAll() throws InterruptedException, MemcachedException, TimeoutException {
+        final Generation g = acquire();
+        try {
+            g.client.flushAll();
+        } finally {
+            release(g);
+        }
+    }
+
+    public void delete(String queueName) throws InterruptedException, MemcachedException, TimeoutException {
+        final Generation g = acquire();
+        try {
+            g.client.delete(queueName);
+        } finally {
+            release(g);
+        }
+    }
+
+    public void shutdown() throws IOException {
+        if (shutdown) {
+            LOG.warn("shutdown: memcache client already stopped");
+            return;
+        }
+        shutdown = true;
+        LOG.debug("shutdown: trying to shutdown the memcache client");
+        final Generation pending = next;
+        next = null;
+        if (pending != null) pending.close();
+        current.close();
+        LOG.debug("shutdown: memcache client stopped");
+    }
+
+    /**
+     * Builds a fresh memcached client. Called from the housekeeping thread, never from a caller's thread.
+     */
+    public void rotate() throws IOException {
+        if (shutdown) return;
+        final Generation fresh = new Generation(buildClient());
+        if (transactional) {
+            final Generation stale = next;
+            next = fresh;
+            if (stale != null) stale.close();
+            LOG.debug("rotate: new client ready, waiting for the owner to finish its transaction");
+        } else {
+            swap(fresh);
+            LOG.debug("rotate: new client swapped in, draining the old one");
+        }
+        // we may have raced with shutdown
+        if (shutdown) fresh.close();
+    }
+
+    public boolean hasRotation() { return next != null; }
+
+    /**
+     * Swaps in a client built by rotate(). Only the owner of a transactional connection calls this,
+     * when it has no reliable read open.
+     */
+    public void swapIfRotated() {
+        final Generation fresh = next;
+        if (fresh != null) {
+            next = null;
+            swap(fresh);
+        }
+    }
+
+    private void swap(Generation fresh) {
+        final Generation old = current;
+        current = fresh;
+        metrics.recordReconnect();
+        old.retire();
+    }
+
+    /**
+     * Pins the current generation for the duration of one operation. If it is swapped out while we were
+     * pinning it, let it go and pin the new one.
+     */
+    private Generation acquire() {
+        load.incrementAndGet();
+        while (true) {
+            final Generation g = current;
+            g.inFlight.incrementAndGet();
+            if (g == current) return g;
+            g.release();
+        }
+    }
+
+    private void release(Generation g) {
+        load.decrementAndGet();
+        g.release();
+    }
+
+    private class Generation {
+
+        final MemcachedClient client;
+        final AtomicInteger inFlight = new AtomicInteger(0);
+        final AtomicBoolean closed = new AtomicBoolean(false);
+        volatile boolean retired = false;
+
+        Generation(MemcachedClient client) { this.client = client; }
+
+        void release() {
+            if (inFlight.decrementAndGet() == 0 && retired) closeLater();
+        }
+
+        void retire() {
+            retired = true;
+            if (inFlight.get() == 0) {
+                closeLater();
+            } else {
+                try {
+                    housekeeper.schedule(new Runnable() {
+                        @Override public void run() { close(); }
+                    }, DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    close();
+                }
+            }
+        }
+
+        /** keeps the (possibly slow) shutdown off the thread that finished the last operation */
+        void closeLater() {
+            if (closed.get()) return;
+            try {
+                housekeeper.execute(new Runnable() {
+                    @Override public void run() { close(); }
+                });
+            } catch (RejectedExecutionException e) {
+                close();
+            }
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            try {
+                client.shutdown();
+            } catch (Exception e) {
+                LOG.warn("close: error shutting down memcache client: "+e);
+            }
+        }
+    }
+
+}
@@ -1,39 +1,36 @@
 package org.cobbzilla.util.mq.kestrel;
 
+import org.cobbzilla.util.mq.MqBatchConsumer;
 import org.cobbzilla.util.mq.MqConsumer;
 import net.rubyeye.xmemcached.exception.MemcachedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeoutException;
 
 /**
  * (c) Copyright 2013 Jonathan Cobb
  * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
  */
-class KestrelConsumerListener implements Runnable {
+class KestrelConsumerListener extends KestrelListener {
 
     private static final Logger LOG = LoggerFactory.getLogger(KestrelConsumerListener.class);
 
-    private static final long READ_TIMEOUT = 500;
-
-    private KestrelClient client;
-    private MqConsumer callback;
+    private KestrelReaderGroup reader;
+    private MqConsumer<Object> callback;
     private String queueName;
-    private String errorQueueName;
-
-    private volatile boolean alive = true;
+    private KestrelLongPoll poll;
+    private KestrelLogSampler logSampler;
 
-    public KestrelConsumerListener(KestrelClient client, MqConsumer callback, String queueName, String errorQueueName) {
-        this.client = client;
+    public KestrelConsumerListener(KestrelReaderGroup reader, MqConsumer<Object> callback, String queueName,
+                                   KestrelLongPoll poll, KestrelLogSampler logSampler) {
+        this.reader = reader;
         this.callback = callback;
         this.queueName = queueName;
-        this.errorQueueName = errorQueueName;
-    }
-
-    public void stop () {
-        LOG.info("stop called on listener: "+this);
-        alive = false;
+        this.poll = poll;
+        this.logSampler = logSampler;
     }
 
     @Override
@@ -41,14 +38,16 @@ class KestrelConsumerListener implements Runnable {
         try {
             while (alive) {
                 try {
-                    LOG.debug("runloop: getting from "+queueName+" with timeout="+READ_TIMEOUT);
-                    Object message = client.get(queueName, KestrelClient.KPARAM_OPEN, READ_TIMEOUT);
+                    final long timeout = poll.getWait();
+                    if (LOG.isDebugEnabled()) LOG.debug("runloop: getting from "+queueName+" with timeout="+timeout);
+                    Object message = reader.open(timeout);
                     if (message == null) {
-                        LOG.debug("runloop: got null from " + queueName + ", sleeping for 100ms and trying again");
-                        Thread.sleep(100);
+                        // the server already waited for us, so go right back and let it wait a little longer
+                        poll.onEmpty();
                         continue;
                     }
-                    doCallback(message);
+                    poll.onMessage();
+                    doCallback(reader, callback, message, logSampler);
 
                 } catch (InterruptedException e) {
                     // noop, just try again
@@ -56,11 +55,9 @@ class KestrelConsumerListener implements Runnable {
                     if (notAlive()) return;
 
                 } catch (TimeoutException e) {
-                    // noop, yield and retry
+                    // the read itself took its full wait, so retrying right away can't spin
                     if (notAlive()) return;
-                    LOG.debug("runloop: timed out, yielding and continuing");
-                    Thread.yield();
-//                    deepSleep(100);
+                    LOG.debug("runloop: timed out, trying again");
                     continue;
 
                 } catch (MemcachedException e) {
@@ -77,48 +74,90 @@ class KestrelConsumerListener implements Runnable {
             }
         } finally {
             LOG.info("runloop: exiting");
+            reader.shutdown();
         }
     }
 
-    private boolean notAlive() {
-        if (!alive || Thread.currentThread().isInterrupted()) {
-            LOG.info("runloop: interrupted and/or not alive, exiting");
-            return true;
+    /**
+     * Hands an open item to the consumer, then defers its ack or fails it. Also used by KestrelEventLoop's workers.
+     *
+     * Nothing is built for the log unless a line is actually written: every message at DEBUG, or a sample of
+     * them at INFO. The callback's time goes into the queue's metrics once per item, whether it succeeds or
+     * not; for an envelope, that's the time spent on all of its messages.
+     */
+    static void doCallback(KestrelReaderGroup reader, MqConsumer<Object> callback, Object message, KestrelLogSampler logSampler) {
+        if (KestrelEnvelope.isEnvelope(message)) {
+            doEnvelopeCallback(reader, callback, message, logSampler);
+            return;
+        }
+        try {
+            // happy case - invoke the callback, and leave the ack for the next read
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("doCallback: sending message ("+KestrelLogSampler.preview(message)+") to worker");
+            } else if (LOG.isInfoEnabled() && logSampler.sample()) {
+                LOG.info("doCallback: sending message ("+KestrelLogSampler.preview(message)+") to worker"+logSampler.skippedSuffix());
+            }
+            final long start = System.nanoTime();
+            try {
+                callback.onMessage(message);
+            } finally {
+                reader.getMetrics().recordCallback(System.nanoTime() - start);
+            }
+            reader.deferAck();
+
+        } catch (Exception e) {
+            reader.fail(message, e);
         }
-//        LOG.info("runloop: alive and not interrupted");
-        return false;
     }
 
-    private void doCallback(Object message) {
+    /**
+     * An envelope is one kestrel item, so it is acked or aborted as a whole. A batch consumer gets all of its
+     * messages in one onMessages call, and if that throws the whole envelope fails like a single message would.
+     * Any other consumer gets the messages one by one, and failures are handled by KestrelReader.failPartially.
+     */
+    private static void doEnvelopeCallback(KestrelReaderGroup reader, MqConsumer<Object> callback, Object envelope, KestrelLogSampler logSampler) {
+        final List<String> messages;
         try {
-            // happy case - parse the json, invoke the callback, ack the message
-            final String msgString = message.toString();
-            final int len = msgString.length();
-            final String prefix = len > 100 ? msgString.substring(0, 100) + "..." : msgString;
-            LOG.info("doCallback: sending message ("+prefix+") to worker");
-            callback.onMessage(message);
-            LOG.debug("doCallback: ACKing message ("+prefix+")...");
-            client.ack(queueName, 200);
-            LOG.debug("doCallback: ACKed message OK ("+prefix+")...");
-
+            messages = KestrelEnvelope.decode(envelope);
         } catch (Exception e) {
-            // message handler failed, put this message on the error queue if one is configured
-            if (errorQueueName != null) {
-                try {
-                    LOG.error("doCallback: Callback threw an exception, putting message onto errorQueue ("+errorQueueName+"): "+e, e);
-                    client.set(errorQueueName, message);
-                    client.ack(queueName, 200);
-                    LOG.info("doCallback: Message put onto errorQueue and ACKED on regular queue (we should not see it again)");
-
-                } catch (Exception fatal) {
-                    String msg = "doCallback: Error putting message onto error queue ("+fatal+"). Aborting read to leave message on original queue";
-                    client.abort(queueName, 200);
-                    LOG.error(msg, fatal);
-                }
-            } else {
-                LOG.error("doCallback: Callback threw and exception and there is no errorQueue configured. Aborting read to leave message on original queue: "+e, e);
-                client.abort(queueName, 200);
+            reader.fail(envelope, e);
+            return;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("doEnvelopeCallback: sending batch of "+messages.size()+" messages to worker");
+        } else if (LOG.isInfoEnabled() && logSampler.sample()) {
+            LOG.info("doEnvelopeCallback: sending batch of "+messages.size()+" messages to worker"+logSampler.skippedSuffix());
+        }
+
+        final long start = System.nanoTime();
+        if (callback instanceof MqBatchConsumer) {
+            try {
+                ((MqBatchConsumer) callback).onMessages(new ArrayList<Object>(messages));
+                reader.getMetrics().recordCallback(System.nanoTime() - start);
+                reader.deferAck();
+            } catch (Exception e) {
+                reader.getMetrics().recordCallback(System.nanoTime() - start);
+                reader.fail(envelope, e);
             }
+            return;
+        }
+
+        List<String> failed = null;
+        for (String message : messages) {
+            try {
+                callback.onMessage(message);
+            } catch (Exception e) {
+                LOG.error("doEnvelopeCallback: Callback threw an exception: "+e, e);
+                if (failed == null) failed = new ArrayList<>();
+                failed.add(message);
+            }
+        }
+        reader.getMetrics().recordCallback(System.nanoTime() - start);
+        if (failed == null) {
+            reader.deferAck();
+        } else {
+            reader.failPartially(failed, messages.size());
         }
     }
+
 }
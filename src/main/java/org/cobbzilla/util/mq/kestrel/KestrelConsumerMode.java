@@ -0,0 +1,21 @@
+package org.cobbzilla.util.mq.kestrel;
+
+/**
+ * How a KestrelClient runs the consumers registered with registerConsumer.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public enum KestrelConsumerMode {
+
+    /** each listener is a thread of its own, blocked in a long-poll while its queue is empty (the default) */
+    THREAD_PER_LISTENER,
+
+    /** a few poller threads read every queue and hand items to a pool of workers (see KestrelEventLoop) */
+    EVENT_LOOP;
+
+    public static KestrelConsumerMode fromString(String value) {
+        return valueOf(value.trim().toUpperCase());
+    }
+
+}
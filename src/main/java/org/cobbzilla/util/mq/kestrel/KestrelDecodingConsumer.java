@@ -0,0 +1,31 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.cobbzilla.util.mq.MqCodec;
+import org.cobbzilla.util.mq.MqConsumer;
+
+/**
+ * Sits between a listener reading raw bytes and a typed consumer. If decoding throws, the listener fails the
+ * item like any other callback error, so the original bytes end up on the error queue.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelDecodingConsumer<T> implements MqConsumer<Object> {
+
+    private final MqConsumer<T> callback;
+    private final MqCodec<T> codec;
+
+    public KestrelDecodingConsumer(MqConsumer<T> callback, MqCodec<T> codec) {
+        this.callback = callback;
+        this.codec = codec;
+    }
+
+    @Override
+    public void onMessage(Object message) throws Exception {
+        if (!(message instanceof byte[])) {
+            throw new IllegalArgumentException("onMessage: expected raw bytes, got "+(message == null ? null : message.getClass().getName()));
+        }
+        callback.onMessage(codec.decode((byte[]) message));
+    }
+
+}
@@ -0,0 +1,42 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Packs many small messages into a single kestrel item.
+ *
+ * An envelope is a NUL-delimited marker followed by a JSON array of the messages. Text messages never
+ * start with a NUL, so a plain message can't be mistaken for an envelope.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelEnvelope {
+
+    public static final String ENVELOPE_PREFIX = "\u0000jestrel-batch\u0000";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final TypeReference<List<String>> MESSAGE_LIST = new TypeReference<List<String>>() {};
+
+    public static String encode(List<String> messages) throws IOException {
+        return ENVELOPE_PREFIX + MAPPER.writeValueAsString(messages);
+    }
+
+    public static boolean isEnvelope(Object item) {
+        return item instanceof String && ((String) item).startsWith(ENVELOPE_PREFIX);
+    }
+
+    public static List<String> decode(Object item) throws IOException {
+        return MAPPER.readValue(item.toString().substring(ENVELOPE_PREFIX.length()), MESSAGE_LIST);
+    }
+
+    /** @return the number of bytes a message adds to an envelope, close enough for size limits */
+    public static int sizeOf(String message) {
+        return message.length() + 3;
+    }
+
+}
@@ -0,0 +1,266 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import net.rubyeye.xmemcached.exception.MemcachedException;
+import org.cobbzilla.util.mq.MqConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Consumes many queues with a fixed number of threads, for clients with lots of mostly idle queues.
+ *
+ * A few poller threads each own one set of reader connections, and take turns reading every queue assigned
+ * to them with a (nearly) non-blocking read. Kestrel allows one open read per queue per connection, so a
+ * poller can hold open items on all of its queues at once. An item is handed to a shared pool of worker
+ * threads; its queue is skipped until the worker is done, then the next read closes the item and opens the
+ * next one in one round trip, just like a listener thread would.
+ *
+ * A queue that comes up empty is read again after a delay that doubles each time, up to maxIdleMillis, so an
+ * idle queue costs a few small requests a second at most. A queue with traffic is read again right away.
+ * When none of its queues are due, the poller parks until the next one is, or until a worker hands one back.
+ *
+ * Thread count depends on the settings, not on the number of queues. With virtual threads, each item
+ * gets a worker thread of its own, and numWorkers is ignored.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelEventLoop {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KestrelEventLoop.class);
+
+    /** how long each read waits on the server; kept tiny so one quiet queue doesn't hold up the others */
+    public static final long POLL_WAIT = 1;
+
+    /** first back-off after an empty read, doubled from there */
+    public static final long MIN_IDLE_MILLIS = 10;
+
+    /** how long shutdown waits for workers to finish the items they have */
+    public static final long DRAIN_TIMEOUT = 5 * 1000;
+
+    private final KestrelClient client;
+    private final long maxIdleMillis;
+    private final List<Poller> pollers = new ArrayList<>();
+    private final ExecutorService workers;
+    private volatile boolean alive = true;
+
+    public KestrelEventLoop(KestrelClient client, KestrelThreads threads, int numPollers, int numWorkers, long maxIdleMillis) throws IOException {
+        if (numPollers < 1 || numWorkers < 1) {
+            throw new IllegalArgumentException("event loop needs at least one poller and one worker: pollers="+numPollers+", workers="+numWorkers);
+        }
+        this.client = client;
+        this.maxIdleMillis = Math.max(MIN_IDLE_MILLIS, maxIdleMillis);
+        this.workers = threads.newExecutor("kestrel-worker-", numWorkers);
+
+        final ThreadFactory pollerThreads = threads.factory("kestrel-poller-");
+        for (int i=0; i<numPollers; i++) {
+            final Poller poller = new Poller(client.newReaderConnections());
+            poller.thread = pollerThreads.newThread(poller);
+            pollers.add(poller);
+        }
+        for (Poller poller : pollers) poller.thread.start();
+    }
+
+    /**
+     * Adds a queue to the loop. Each unit of concurrency is a slot on a different poller, so it can
+     * hold its own open read; concurrency can't exceed the number of pollers.
+     */
+    public synchronized void register(MqConsumer<Object> callback, String queueName, String errorQueueName, int concurrency) {
+        if (concurrency < 1 || concurrency > pollers.size()) {
+            throw new IllegalArgumentException("concurrency must be between 1 and the number of event loop threads ("+pollers.size()+"): "+concurrency);
+        }
+        // fill the emptiest pollers first
+        final List<Poller> byLoad = new ArrayList<>(pollers);
+        Collections.sort(byLoad, new Comparator<Poller>() {
+            @Override public int compare(Poller a, Poller b) { return Integer.compare(a.slots.size(), b.slots.size()); }
+        });
+        for (int i=0; i<concurrency; i++) {
+            final Poller poller = byLoad.get(i);
+            poller.slots.add(new Slot(poller, callback, queueName, errorQueueName));
+            LockSupport.unpark(poller.thread);
+        }
+        LOG.info("register: "+queueName+" added to the event loop with concurrency="+concurrency);
+    }
+
+    public void shutdown() {
+        alive = false;
+        for (Poller poller : pollers) poller.thread.interrupt();
+        for (Poller poller : pollers) {
+            try {
+                poller.thread.join(DRAIN_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                LOG.warn("shutdown: workers still busy after "+DRAIN_TIMEOUT+"ms, their items will be redelivered");
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // everything is stopped now, so it's safe to touch the readers from here
+        for (Poller poller : pollers) {
+            for (Slot slot : poller.slots) {
+                if (!slot.busy) slot.reader.closePending();
+            }
+            for (KestrelConnection c : poller.connections) {
+                try {
+                    c.shutdown();
+                } catch (Exception e) {
+                    LOG.warn("shutdown: error shutting down poller connection: "+e);
+                }
+            }
+        }
+    }
+
+    private class Poller implements Runnable {
+
+        final List<KestrelConnection> connections;
+        final List<Slot> slots = new CopyOnWriteArrayList<>();
+        Thread thread;
+
+        Poller(List<KestrelConnection> connections) { this.connections = connections; }
+
+        @Override
+        public void run() {
+            try {
+                while (alive) {
+                    swapIfRotated();
+                    long nextDue = Long.MAX_VALUE;
+                    for (Slot slot : slots) {
+                        if (!alive) return;
+                        if (slot.busy) continue;
+                        final long now = System.currentTimeMillis();
+                        if (slot.nextPollAt > now) {
+                            nextDue = Math.min(nextDue, slot.nextPollAt);
+                            continue;
+                        }
+                        nextDue = Math.min(nextDue, poll(slot) ? now : slot.nextPollAt);
+                    }
+                    final long sleep = nextDue - System.currentTimeMillis();
+                    if (sleep > 0) {
+                        // woken early by register() or a worker handing a slot back
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.min(sleep, maxIdleMillis)));
+                    }
+                }
+            } finally {
+                LOG.info("runloop: poller exiting");
+            }
+        }
+
+        /** @return true if the slot got an item, and should be read again as soon as it's free */
+        private boolean poll(final Slot slot) {
+            final Object item;
+            try {
+                item = slot.reader.open(POLL_WAIT);
+
+            } catch (InterruptedException e) {
+                LOG.info("poll: interrupted while reading "+slot.queueName);
+                return false;
+
+            } catch (TimeoutException | MemcachedException e) {
+                LOG.error("poll: error reading "+slot.queueName+", backing off: "+e);
+                slot.idle(maxIdleMillis);
+                return false;
+            }
+
+            if (item == null) {
+                slot.idle(Math.min(maxIdleMillis, Math.max(MIN_IDLE_MILLIS, slot.idleMillis * 2)));
+                return false;
+            }
+
+            slot.idleMillis = 0;
+            slot.nextPollAt = 0;
+            slot.busy = true;
+            try {
+                workers.execute(new Runnable() {
+                    @Override public void run() { slot.deliver(item); }
+                });
+            } catch (RejectedExecutionException e) {
+                // shutting down
+                slot.busy = false;
+                slot.reader.abort();
+            }
+            return true;
+        }
+
+        /**
+         * A rotated client can only be swapped in while none of this poller's queues has a read open, which
+         * may take a few passes on a busy poller.
+         */
+        private void swapIfRotated() {
+            boolean rotated = false;
+            for (KestrelConnection c : connections) {
+                if (c.hasRotation()) { rotated = true; break; }
+            }
+            if (!rotated) return;
+            for (Slot slot : slots) {
+                if (slot.busy) return;
+            }
+            final long start = System.nanoTime();
+            for (Slot slot : slots) slot.reader.closePending();
+            for (KestrelConnection c : connections) c.swapIfRotated();
+            final long pause = System.nanoTime() - start;
+            for (KestrelConnection c : connections) c.getMetrics().recordReconnectPause(pause);
+            LOG.debug("swapIfRotated: poller switched to its rotated connections");
+        }
+    }
+
+    private class Slot {
+
+        final Poller poller;
+        final MqConsumer<Object> callback;
+        final String queueName;
+        final KestrelReaderGroup reader;
+        final KestrelLogSampler logSampler;
+
+        /** true while a worker has the open item; the worker's last write hands the reader back to the poller */
+        volatile boolean busy = false;
+
+        // only touched by the poller thread
+        long nextPollAt = 0;
+        long idleMillis = 0;
+
+        Slot(Poller poller, MqConsumer<Object> callback, String queueName, String errorQueueName) {
+            this.poller = poller;
+            this.callback = callback;
+            this.queueName = queueName;
+            this.logSampler = client.getReceiveLogSampler(queueName);
+            final List<KestrelReader> readers = new ArrayList<>();
+            for (KestrelConnection c : poller.connections) {
+                readers.add(new KestrelReader(client, c, queueName, errorQueueName, false));
+            }
+            this.reader = new KestrelReaderGroup(readers);
+        }
+
+        void idle(long millis) {
+            idleMillis = millis;
+            nextPollAt = System.currentTimeMillis() + millis;
+        }
+
+        void deliver(Object item) {
+            try {
+                KestrelConsumerListener.doCallback(reader, callback, item, logSampler);
+            } finally {
+                busy = false;
+                LockSupport.unpark(poller.thread);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,28 @@
+package org.cobbzilla.util.mq.kestrel;
+
+/**
+ * How a KestrelClient spreads a queue across its kestrel servers. With every mode but HASH, servers that get
+ * too slow or fail too often are left out for a while (see KestrelHostHealth).
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public enum KestrelHostDistribution {
+
+    /** each queue lives on the one server its name hashes to (the xmemcached default) */
+    HASH,
+
+    /** sends to a queue rotate through all servers, and consumers poll all of them */
+    ROUND_ROBIN,
+
+    /** sends go to the server with the fewest operations in flight, and consumers poll all of them */
+    LEAST_LOADED,
+
+    /** sends go to the faster of two randomly chosen servers, weighing recent latency by operations in flight */
+    FASTEST;
+
+    public static KestrelHostDistribution fromString(String value) {
+        return valueOf(value.trim().toUpperCase());
+    }
+
+}
@@ -0,0 +1,140 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tracks latency and error rate for one kestrel server, and ejects it for a while when it gets too slow
+ * or fails too often (a circuit breaker).
+ *
+ * Both figures are exponentially weighted moving averages over roughly the last 8 operations, kept in
+ * atomics so recording never locks. Once an ejection runs out, a single caller is let through as a probe;
+ * if it succeeds the host is back in, otherwise it is ejected again. Only the probe's own result counts:
+ * the probe is the thread that isAvailable() let through, and it records its result on that same thread.
+ * Operations already running on other threads (a long-poll on another connection to the same host, say)
+ * can't end an ejection.
+ *
+ * Only operations that don't wait on purpose should record a latency: a long-poll that sits out its
+ * whole /t= timeout says nothing about how fast the server is.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelHostHealth {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KestrelHostHealth.class);
+
+    /** don't judge a host on fewer operations than this */
+    private static final int MIN_SAMPLES = 10;
+
+    /** weight of a new sample is 1/2^EWMA_SHIFT */
+    private static final int EWMA_SHIFT = 3;
+
+    private static final long ERROR = 1000;
+
+    private final String host;
+    private final long maxLatencyNanos;
+    private final long maxErrorPerMille;
+    private final long ejectMillis;
+
+    private final AtomicLong latencyNanos = new AtomicLong(0);
+    private final AtomicLong errorPerMille = new AtomicLong(0);
+    private final AtomicLong samples = new AtomicLong(0);
+
+    /** zero when the host is in, otherwise when its ejection (or the probe running after it) expires */
+    private final AtomicLong ejectedUntil = new AtomicLong(0);
+    /** the thread that was let through to probe the host, until it reports back */
+    private final AtomicReference<Thread> prober = new AtomicReference<>();
+
+    public KestrelHostHealth(String host, long maxLatencyMillis, int maxErrorPercent, long ejectMillis) {
+        this.host = host;
+        this.maxLatencyNanos = maxLatencyMillis * 1000 * 1000;
+        this.maxErrorPerMille = maxErrorPercent * 10;
+        this.ejectMillis = ejectMillis;
+    }
+
+    public long getLatencyNanos() { return latencyNanos.get(); }
+
+    public boolean isEjected() { return ejectedUntil.get() != 0; }
+
+    /**
+     * @return true if the host can take an operation: it isn't ejected, or its ejection ran out and this
+     * caller gets to be the probe
+     */
+    public boolean isAvailable() {
+        final long until = ejectedUntil.get();
+        if (until == 0) return true;
+        final long now = System.currentTimeMillis();
+        if (now < until) return false;
+        // ejection is over: let exactly one caller through to probe, and hold everyone else off until it
+        // reports, or for another ejectMillis if it never does
+        if (ejectedUntil.compareAndSet(until, now + ejectMillis)) {
+            prober.set(Thread.currentThread());
+            return true;
+        }
+        return false;
+    }
+
+    public void recordSuccess(long nanos) {
+        if (isProbe()) {
+            recover(nanos);
+            return;
+        }
+        if (!latencyNanos.compareAndSet(0, nanos)) update(latencyNanos, nanos);
+        record(0);
+    }
+
+    /** A success that waited on purpose, like a long-poll: counts toward the error rate but not the latency. */
+    public void recordSuccess() {
+        if (isProbe()) {
+            recover(latencyNanos.get());
+            return;
+        }
+        record(0);
+    }
+
+    public void recordError() {
+        if (isProbe()) {
+            LOG.warn("recordError: probe of "+host+" failed, ejecting it for another "+ejectMillis+"ms");
+            ejectedUntil.set(System.currentTimeMillis() + ejectMillis);
+            prober.set(null);
+            return;
+        }
+        record(ERROR);
+    }
+
+    /** true if the caller is the probe, and its result decides whether the host comes back */
+    private boolean isProbe() {
+        return prober.get() == Thread.currentThread();
+    }
+
+    private void record(long error) {
+        update(errorPerMille, error);
+        if (samples.incrementAndGet() < MIN_SAMPLES || ejectedUntil.get() != 0) return;
+        if (latencyNanos.get() > maxLatencyNanos || errorPerMille.get() > maxErrorPerMille) {
+            ejectedUntil.set(System.currentTimeMillis() + ejectMillis);
+            LOG.warn("record: ejecting "+host+" for "+ejectMillis+"ms (latency="+(latencyNanos.get()/1000)+"us, errors="+(errorPerMille.get()/10)+"%)");
+        }
+    }
+
+    private void recover(long nanos) {
+        latencyNanos.set(nanos);
+        errorPerMille.set(0);
+        samples.set(0);
+        ejectedUntil.set(0);
+        prober.set(null);
+        LOG.info("recover: probe of "+host+" succeeded, it's back in");
+    }
+
+    private static void update(AtomicLong average, long sample) {
+        while (true) {
+            final long current = average.get();
+            final long next = current + ((sample - current) >> EWMA_SHIFT);
+            if (average.compareAndSet(current, next)) return;
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The connections a client sends through. With HASH distribution this is a single connection to every
+ * server; otherwise it is one connection per server, and each send picks one of them, skipping servers
+ * their KestrelHostHealth has ejected. Once an ejection runs out, every distribution lets one send through
+ * as a probe, ahead of any other choice: a probe that's granted has to be sent, or the host stays out.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelHostPool {
+
+    private final List<KestrelConnection> connections;
+    private final KestrelHostDistribution distribution;
+    private final AtomicInteger counter = new AtomicInteger(0);
+
+    public KestrelHostPool(List<KestrelConnection> connections, KestrelHostDistribution distribution) {
+        this.connections = connections;
+        this.distribution = distribution;
+    }
+
+    public List<KestrelConnection> getConnections() { return connections; }
+
+    public KestrelConnection pick() {
+        final int size = connections.size();
+        if (size == 1) return connections.get(0);
+
+        // start the scan at a rotating offset, so ties between equally good hosts don't all go to the first one
+        final int start = (counter.getAndIncrement() & Integer.MAX_VALUE) % size;
+        switch (distribution) {
+            case LEAST_LOADED: return pickLeastLoaded(start);
+            case FASTEST:      return pickFastest(start);
+            default:           return pickNext(start);
+        }
+    }
+
+    private KestrelConnection pickNext(int start) {
+        final int size = connections.size();
+        for (int i=0; i<size; i++) {
+            final KestrelConnection c = connections.get((start + i) % size);
+            if (c.getHealth().isAvailable()) return c;
+        }
+        // everyone is ejected, so don't be picky
+        return connections.get(start);
+    }
+
+    private KestrelConnection pickLeastLoaded(int start) {
+        final int size = connections.size();
+        KestrelConnection best = null;
+        for (int i=0; i<size; i++) {
+            final KestrelConnection c = connections.get((start + i) % size);
+            if (c.getHealth().isEjected()) {
+                if (c.getHealth().isAvailable()) return c; // our turn to probe it
+                continue;
+            }
+            if (best == null || c.getLoad() < best.getLoad()) best = c;
+        }
+        return best != null ? best : pickNext(start);
+    }
+
+    /** power of two choices: cheap, and it doesn't stampede the single fastest host */
+    private KestrelConnection pickFastest(int start) {
+        final int size = connections.size();
+        final KestrelConnection a = connections.get(start);
+        final KestrelConnection b = connections.get((start + 1 + ThreadLocalRandom.current().nextInt(size - 1)) % size);
+        if (a.getHealth().isEjected() && a.getHealth().isAvailable()) return a; // our turn to probe it
+        if (b.getHealth().isEjected() && b.getHealth().isAvailable()) return b;
+        final boolean aOk = !a.getHealth().isEjected();
+        final boolean bOk = !b.getHealth().isEjected();
+        if (aOk && bOk) return score(a) <= score(b) ? a : b;
+        if (aOk) return a;
+        if (bOk) return b;
+        return pickNext(start);
+    }
+
+    private static long score(KestrelConnection c) {
+        return Math.max(1, c.getHealth().getLatencyNanos()) * (c.getLoad() + 1);
+    }
+
+    public void shutdown() {
+        for (KestrelConnection c : connections) {
+            try {
+                c.shutdown();
+            } catch (Exception ignored) {
+                // we're going away anyway
+            }
+        }
+    }
+
+}
@@ -0,0 +1,275 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import net.rubyeye.xmemcached.exception.MemcachedException;
+import org.cobbzilla.util.mq.MqConsumer;
+import org.cobbzilla.util.mq.MqKeyExtractor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reads a queue in order on one thread, and runs the consumer on several stripes: every message goes to the
+ * stripe its key hashes to, and each stripe is a single thread, so messages with equal keys are handled in
+ * queue order while different keys run in parallel.
+ *
+ * Every message waiting on or running in a stripe holds its own open read, and so its own reader (and
+ * connection), up to maxOpen; when they are all taken, reading waits. Each message is acked as soon as it
+ * has been handled, no matter how the other stripes are doing. The ack is deferred onto the reader's next
+ * close/open, or closed separately once the queue goes quiet.
+ *
+ * Per-key order holds as long as messages succeed. A failed message goes to the error queue; without one it
+ * is aborted, and comes back after later messages with the same key may already have been handled.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelKeyedConsumerListener extends KestrelListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KestrelKeyedConsumerListener.class);
+
+    private final KestrelClient client;
+    private final MqConsumer<Object> callback;
+    private final MqKeyExtractor keyExtractor;
+    private final String queueName;
+    private final String errorQueueName;
+    private final int maxOpen;
+    private final KestrelLongPoll poll;
+    private final KestrelLogSampler logSampler;
+    private final ExecutorService[] stripes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition readerFree = lock.newCondition();
+
+    // guarded by lock
+    private final Deque<KestrelReaderGroup> free = new ArrayDeque<>();
+    private int readerCount = 0;
+
+    public KestrelKeyedConsumerListener(KestrelClient client, KestrelThreads threads, MqConsumer<Object> callback, MqKeyExtractor keyExtractor,
+                                        String queueName, String errorQueueName, int numStripes, int maxOpen, KestrelLongPoll poll) {
+        this.client = client;
+        this.callback = callback;
+        this.keyExtractor = keyExtractor;
+        this.queueName = queueName;
+        this.errorQueueName = errorQueueName;
+        this.maxOpen = maxOpen;
+        this.poll = poll;
+        this.logSampler = client.getReceiveLogSampler(queueName);
+        this.stripes = new ExecutorService[numStripes];
+        for (int i=0; i<numStripes; i++) {
+            // always one thread per stripe, even with virtual threads: that's what keeps each key in order
+            stripes[i] = Executors.newSingleThreadExecutor(threads.factory("kestrel-stripe-"));
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (alive) {
+                final KestrelReaderGroup reader = takeReader();
+                if (reader == null) return;
+                try {
+                    final Object item = reader.open(poll.getWait());
+                    if (item == null) {
+                        poll.onEmpty();
+                        release(reader);
+                        closeIdleAcks();
+                        continue;
+                    }
+                    poll.onMessage();
+                    dispatch(reader, item);
+
+                } catch (InterruptedException e) {
+                    LOG.info("runloop: interrupted while reading from kestrel");
+                    release(reader);
+                    if (notAlive()) return;
+
+                } catch (TimeoutException e) {
+                    LOG.debug("runloop: timed out, trying again");
+                    release(reader);
+
+                } catch (MemcachedException e) {
+                    LOG.error("runloop: Error talking to Kestrel: "+e, e);
+                    release(reader);
+                    if (notAlive()) return;
+                    // sleep for a bit so we don't spin if Kestrel is down
+                    try {
+                        Thread.sleep(2000);
+                    } catch (InterruptedException e1) {
+                        if (notAlive()) return;
+                    }
+                }
+            }
+        } finally {
+            LOG.info("runloop: exiting");
+            shutdown();
+        }
+    }
+
+    private void dispatch(final KestrelReaderGroup reader, final Object item) {
+        if (!KestrelEnvelope.isEnvelope(item)) {
+            submit(item, new Runnable() {
+                @Override public void run() {
+                    try {
+                        KestrelConsumerListener.doCallback(reader, callback, item, logSampler);
+                    } finally {
+                        release(reader);
+                    }
+                }
+            }, new Runnable() {
+                @Override public void run() {
+                    reader.abort();
+                    release(reader);
+                }
+            });
+            return;
+        }
+
+        final List<String> messages;
+        try {
+            messages = KestrelEnvelope.decode(item);
+        } catch (Exception e) {
+            reader.fail(item, e);
+            release(reader);
+            return;
+        }
+        // messages in one envelope may land on different stripes; the item is settled when all are done
+        final KestrelOpenEnvelope envelope = new KestrelOpenEnvelope(reader, messages.size()) {
+            @Override protected void release(KestrelReaderGroup r) { KestrelKeyedConsumerListener.this.release(r); }
+        };
+        for (final String message : messages) {
+            submit(message, new Runnable() {
+                @Override public void run() {
+                    // an envelope's messages run on different stripes, so each one is a callback of its own
+                    final long start = System.nanoTime();
+                    try {
+                        callback.onMessage(message);
+                        reader.getMetrics().recordCallback(System.nanoTime() - start);
+                        envelope.ack();
+                    } catch (Exception e) {
+                        reader.getMetrics().recordCallback(System.nanoTime() - start);
+                        LOG.error("dispatch: Callback threw an exception: "+e, e);
+                        envelope.fail(message);
+                    }
+                }
+            }, new Runnable() {
+                @Override public void run() { envelope.abort(); }
+            });
+        }
+    }
+
+    /** @param rejected settles the message if its stripe won't take it, because we're shutting down */
+    private void submit(Object message, Runnable task, Runnable rejected) {
+        Object key;
+        try {
+            key = keyExtractor.getKey(message);
+        } catch (RuntimeException e) {
+            LOG.warn("submit: key extractor failed, using the null key: "+e);
+            key = null;
+        }
+        final int hash = key == null ? 0 : key.hashCode();
+        final ExecutorService stripe = stripes[(hash & Integer.MAX_VALUE) % stripes.length];
+        try {
+            stripe.execute(task);
+        } catch (RejectedExecutionException e) {
+            rejected.run();
+        }
+    }
+
+    /** @return a free reader, waiting for one if all maxOpen are busy; null if we're stopping */
+    private KestrelReaderGroup takeReader() {
+        lock.lock();
+        try {
+            while (alive && free.isEmpty() && readerCount >= maxOpen) {
+                readerFree.await();
+            }
+            if (!alive) return null;
+            final KestrelReaderGroup reader = free.poll();
+            if (reader != null) return reader;
+            readerCount++;
+
+        } catch (InterruptedException e) {
+            LOG.info("takeReader: interrupted while waiting for a reader");
+            return null;
+
+        } finally {
+            lock.unlock();
+        }
+        try {
+            return client.newReaderGroup(queueName, errorQueueName);
+        } catch (IOException e) {
+            LOG.error("takeReader: error connecting to kestrel: "+e, e);
+            lock.lock();
+            try {
+                readerCount--;
+            } finally {
+                lock.unlock();
+            }
+            stop();
+            return null;
+        }
+    }
+
+    /** readers go to the back of the line, so every free reader gets used in turn and its deferred ack rides along */
+    private void release(KestrelReaderGroup reader) {
+        lock.lock();
+        try {
+            if (alive) {
+                free.addLast(reader);
+                readerFree.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        reader.shutdown();
+    }
+
+    /** the queue went quiet: don't leave deferred acks waiting for more traffic */
+    private void closeIdleAcks() {
+        final List<KestrelReaderGroup> pending = new ArrayList<>();
+        lock.lock();
+        try {
+            for (KestrelReaderGroup r : free) {
+                if (r.hasPendingAck()) pending.add(r);
+            }
+            free.removeAll(pending);
+        } finally {
+            lock.unlock();
+        }
+        for (KestrelReaderGroup r : pending) {
+            r.closePending();
+            release(r);
+        }
+    }
+
+    private void shutdown() {
+        stop();
+        // let the stripes finish what they have, they settle their items on their way out
+        for (ExecutorService stripe : stripes) {
+            stripe.shutdown();
+        }
+        final List<KestrelReaderGroup> idle;
+        lock.lock();
+        try {
+            idle = new ArrayList<>(free);
+            free.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (KestrelReaderGroup reader : idle) {
+            reader.shutdown();
+        }
+    }
+
+}
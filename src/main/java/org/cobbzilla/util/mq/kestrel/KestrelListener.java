@@ -0,0 +1,32 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Base class for the threads that read from kestrel on behalf of a consumer.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+abstract class KestrelListener implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KestrelListener.class);
+
+    protected volatile boolean alive = true;
+
+    public void stop () {
+        LOG.info("stop called on listener: "+this);
+        alive = false;
+    }
+
+    protected boolean notAlive() {
+        if (!alive || Thread.currentThread().isInterrupted()) {
+            LOG.info("runloop: interrupted and/or not alive, exiting");
+            return true;
+        }
+//        LOG.info("runloop: alive and not interrupted");
+        return false;
+    }
+
+}
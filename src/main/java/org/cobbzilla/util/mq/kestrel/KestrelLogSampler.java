@@ -0,0 +1,56 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rate-limits the per-message INFO lines for one queue: at most one every intervalMillis, and the one that
+ * gets through says how many were skipped since the last. Zero lets every message through; a negative
+ * interval lets none through.
+ *
+ * sample() doesn't allocate, so callers check it first and only build their message when it says yes.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelLogSampler {
+
+    /** longer messages are cut down to this many characters in the log */
+    public static final int PREVIEW_LENGTH = 100;
+
+    private final long intervalNanos;
+    private final AtomicLong nextLogAt;
+    private final AtomicLong skipped = new AtomicLong(0);
+
+    public KestrelLogSampler(long intervalMillis) {
+        this.intervalNanos = intervalMillis * 1000 * 1000;
+        this.nextLogAt = new AtomicLong(System.nanoTime());
+    }
+
+    /** @return true if the caller should log this message; if not, it's counted as skipped */
+    public boolean sample() {
+        if (intervalNanos == 0) return true;
+        if (intervalNanos > 0) {
+            final long now = System.nanoTime();
+            final long next = nextLogAt.get();
+            // only one thread wins each interval
+            if (now - next >= 0 && nextLogAt.compareAndSet(next, now + intervalNanos)) return true;
+        }
+        skipped.incrementAndGet();
+        return false;
+    }
+
+    /** @return how many messages went unlogged since the last call, as a suffix for the log line */
+    public String skippedSuffix() {
+        final long n = skipped.getAndSet(0);
+        return n == 0 ? "" : " (+"+n+" more since the last one logged)";
+    }
+
+    /** a short, printable form of a message, for logs only */
+    public static String preview(Object message) {
+        if (message == null) return "null";
+        if (message instanceof byte[]) return "byte["+((byte[]) message).length+"]";
+        final String s = message.toString();
+        return s.length() > PREVIEW_LENGTH ? s.substring(0, PREVIEW_LENGTH)+"..." : s;
+    }
+
+}
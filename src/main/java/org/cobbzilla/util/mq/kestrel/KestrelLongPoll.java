@@ -0,0 +1,41 @@
+package org.cobbzilla.util.mq.kestrel;
+
+/**
+ * Decides how long a listener's next read waits on the server (the /t= timeout).
+ *
+ * While messages flow every read uses the minimum wait. Each empty read doubles the wait, up to the maximum,
+ * so an idle queue costs a handful of requests a minute instead of several a second. The first message resets
+ * it. The waiting happens on the server, which answers the moment an item arrives, so a longer wait never
+ * delays a message; it only means fewer round trips while there is nothing to read.
+ *
+ * Not thread-safe: each listener has its own.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelLongPoll {
+
+    public static final long DEFAULT_MIN_WAIT = 500;
+    public static final long DEFAULT_MAX_WAIT = 10 * 1000;
+
+    private final long minWait;
+    private final long maxWait;
+    private long wait;
+
+    public KestrelLongPoll(long minWait, long maxWait) {
+        if (minWait < 1 || maxWait < minWait) {
+            throw new IllegalArgumentException("invalid long-poll waits: min="+minWait+", max="+maxWait);
+        }
+        this.minWait = minWait;
+        this.maxWait = maxWait;
+        this.wait = minWait;
+    }
+
+    /** @return the /t= timeout for the next read, in milliseconds */
+    public long getWait() { return wait; }
+
+    public void onMessage() { wait = minWait; }
+
+    public void onEmpty() { wait = Math.min(maxWait, wait * 2); }
+
+}
@@ -0,0 +1,53 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An open envelope item whose messages are handled separately, maybe on different threads. The item is
+ * settled when the last message is: aborted if any message was aborted, otherwise acked, with the failed
+ * messages moved to the error queue (see KestrelReader.failPartially). Then the reader is handed back.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+abstract class KestrelOpenEnvelope {
+
+    private final KestrelReaderGroup reader;
+    private final int total;
+    private final AtomicInteger remaining;
+    private final ConcurrentLinkedQueue<String> failed = new ConcurrentLinkedQueue<>();
+    private volatile boolean aborted = false;
+
+    public KestrelOpenEnvelope(KestrelReaderGroup reader, int total) {
+        this.reader = reader;
+        this.total = total;
+        this.remaining = new AtomicInteger(total);
+    }
+
+    /** called once the envelope has been settled, from the thread that settled its last message */
+    protected abstract void release(KestrelReaderGroup reader);
+
+    public void ack() { settle(null, false); }
+
+    public void abort() { settle(null, true); }
+
+    public void fail(String message) { settle(message, false); }
+
+    private void settle(String failedMessage, boolean abort) {
+        if (abort) aborted = true;
+        if (failedMessage != null) failed.add(failedMessage);
+        if (remaining.decrementAndGet() > 0) return;
+
+        if (aborted) {
+            reader.abort();
+        } else if (!failed.isEmpty()) {
+            reader.failPartially(new ArrayList<>(failed), total);
+        } else {
+            reader.deferAck();
+        }
+        release(reader);
+    }
+
+}
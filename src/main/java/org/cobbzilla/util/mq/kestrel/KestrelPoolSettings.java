@@ -0,0 +1,81 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import java.util.Properties;
+
+/**
+ * Sizing and timeouts for one side of a KestrelClient. Producers and consumers each get their own, so
+ * that sends never queue up on connections that are busy holding long-polls open.
+ *
+ * Timeouts of zero leave xmemcached's defaults alone. With rawBytes, reads return each item as the byte[]
+ * that was stored, instead of decoding it to a String; typed consumers read this way.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelPoolSettings {
+
+    /** how long past its /t= wait the client gives a read before calling it timed out */
+    public static final long DEFAULT_READ_SLACK = 100;
+
+    private final String name;
+    private final int poolSize;
+    private final long connectTimeoutMillis;
+    private final long opTimeoutMillis;
+    private final long readSlackMillis;
+    private final boolean rawBytes;
+
+    public KestrelPoolSettings(String name, int poolSize, long connectTimeoutMillis, long opTimeoutMillis, long readSlackMillis) {
+        this(name, poolSize, connectTimeoutMillis, opTimeoutMillis, readSlackMillis, false);
+    }
+
+    public KestrelPoolSettings(String name, int poolSize, long connectTimeoutMillis, long opTimeoutMillis, long readSlackMillis, boolean rawBytes) {
+        if (poolSize < 1) throw new IllegalArgumentException(name+" connection pool size must be at least 1: "+poolSize);
+        this.name = name;
+        this.poolSize = poolSize;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.opTimeoutMillis = opTimeoutMillis;
+        this.readSlackMillis = readSlackMillis;
+        this.rawBytes = rawBytes;
+    }
+
+    /**
+     * @param readSlackProperty may be null, for a side that never reads
+     */
+    public static KestrelPoolSettings fromProperties(Properties properties, String name, int defaultPoolSize,
+                                                     String poolSizeProperty, String connectTimeoutProperty,
+                                                     String timeoutProperty, String readSlackProperty) {
+        return new KestrelPoolSettings(name,
+                (int) longProperty(properties, poolSizeProperty, defaultPoolSize),
+                longProperty(properties, connectTimeoutProperty, 0),
+                longProperty(properties, timeoutProperty, 0),
+                readSlackProperty == null ? DEFAULT_READ_SLACK : longProperty(properties, readSlackProperty, DEFAULT_READ_SLACK));
+    }
+
+    private static long longProperty(Properties properties, String name, long defaultValue) {
+        final String value = properties.getProperty(name);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    /** the same settings with another pool size; transactional readers always use 1 */
+    public KestrelPoolSettings withPoolSize(int size) {
+        return new KestrelPoolSettings(name, size, connectTimeoutMillis, opTimeoutMillis, readSlackMillis, rawBytes);
+    }
+
+    /** the same settings, reading items as byte[] (or not) */
+    public KestrelPoolSettings withRawBytes(boolean raw) {
+        return new KestrelPoolSettings(name, poolSize, connectTimeoutMillis, opTimeoutMillis, readSlackMillis, raw);
+    }
+
+    public String getName() { return name; }
+    public int getPoolSize() { return poolSize; }
+    public long getConnectTimeoutMillis() { return connectTimeoutMillis; }
+    public long getOpTimeoutMillis() { return opTimeoutMillis; }
+    public long getReadSlackMillis() { return readSlackMillis; }
+    public boolean isRawBytes() { return rawBytes; }
+
+    @Override
+    public String toString() {
+        return name+"{poolSize="+poolSize+", connectTimeout="+connectTimeoutMillis+", timeout="+opTimeoutMillis+", readSlack="+readSlackMillis+(rawBytes ? ", rawBytes" : "")+"}";
+    }
+
+}
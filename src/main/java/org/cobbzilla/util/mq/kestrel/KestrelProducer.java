@@ -1,6 +1,8 @@
 package org.cobbzilla.util.mq.kestrel;
 
-import org.cobbzilla.util.mq.MqProducer;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.cobbzilla.util.mq.MqAsyncProducer;
+import org.cobbzilla.util.mq.metrics.MqQueueMetrics;
 import net.rubyeye.xmemcached.exception.MemcachedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,48 +14,68 @@ import java.util.concurrent.TimeoutException;
  * (c) Copyright 2013 Jonathan Cobb
  * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
  */
-public class KestrelProducer implements MqProducer {
+public class KestrelProducer implements MqAsyncProducer {
 
     private static final Logger LOG = LoggerFactory.getLogger(KestrelProducer.class);
 
     private KestrelClient client;
     private String queueName;
+    private KestrelLogSampler logSampler;
+    private MqQueueMetrics metrics;
 
     public KestrelProducer(KestrelClient client, String queueName) {
         this.client = client;
         this.queueName = queueName;
+        this.logSampler = client.getSendLogSampler(queueName);
+        this.metrics = client.getMetrics().queue(queueName);
     }
 
+    /**
+     * Retries until the message is stored. A successful send builds nothing for the log unless a line is
+     * written: every send at DEBUG, a sample of them at INFO. The message preview is only made for a line
+     * that needs it, and at most once, however many retries it takes.
+     */
     @Override
     public void send(Object message) throws IOException, InterruptedException {
-        boolean sent = false;
+        final Object payload = client.compress(message);
+        String msg = null;
         int i = 0;
-        while (!sent) {
+        while (true) {
             i++;
-            final String msgString = message.toString();
-            final int len = msgString.length();
-            final String msg = len > 100 ? msgString.substring(0, 100)+"..." : msgString;
             try {
-                LOG.info("send: sending to " + queueName + " (try #" + i + "): " + msg);
-                client.set(queueName, message);
-                LOG.info("send: send succeeded to "+queueName+" (on try #"+i+")");
-                sent = true;
+                client.set(queueName, payload);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("send: sent to "+queueName+" (on try #"+i+"): "+KestrelLogSampler.preview(message));
+                } else if (LOG.isInfoEnabled() && logSampler.sample()) {
+                    LOG.info("send: sent to "+queueName+" (on try #"+i+"): "+KestrelLogSampler.preview(message)+logSampler.skippedSuffix());
+                }
+                return;
 
             } catch (InterruptedException e) {
+                if (msg == null) msg = KestrelLogSampler.preview(message);
                 LOG.warn("send: interrupted while trying to send message ("+ msg +") to queue "+queueName);
                 throw e;
 
             } catch (TimeoutException e) {
-                LOG.warn("send: timed out sending message ("+ msg +") to queue "+queueName+", retrying");
+                if (msg == null) msg = KestrelLogSampler.preview(message);
+                LOG.warn("send: timed out sending message ("+ msg +") to queue "+queueName+" (try #"+i+"), retrying");
+                metrics.recordSendRetry();
                 Thread.yield();
                 Thread.sleep(50);
 
             } catch (MemcachedException e) {
-                LOG.warn("send: error sending message ("+ msg +") to queue "+queueName+", retrying: "+e, e);
+                if (msg == null) msg = KestrelLogSampler.preview(message);
+                LOG.warn("send: error sending message ("+ msg +") to queue "+queueName+" (try #"+i+"), retrying: "+e, e);
+                metrics.recordSendRetry();
                 Thread.yield();
                 Thread.sleep(50);
             }
         }
     }
 
+    @Override
+    public ListenableFuture<Void> sendAsync(Object message) throws InterruptedException {
+        return client.getAsyncSender().send(queueName, message);
+    }
+
 }
@@ -0,0 +1,37 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.cobbzilla.util.mq.MqDelivery;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+
+/**
+ * A queue as a Reactive Streams Publisher. Every subscriber gets a KestrelSubscription of its own, which
+ * competes for messages with any other consumer of the queue.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelPublisher implements Publisher<MqDelivery> {
+
+    private final KestrelClient client;
+    private final String queueName;
+    private final String errorQueueName;
+    private final int maxOpen;
+
+    public KestrelPublisher(KestrelClient client, String queueName, String errorQueueName, int maxOpen) {
+        if (maxOpen < 1) throw new IllegalArgumentException("maxOpen must be at least 1: "+maxOpen);
+        this.client = client;
+        this.queueName = queueName;
+        this.errorQueueName = errorQueueName;
+        this.maxOpen = maxOpen;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super MqDelivery> subscriber) {
+        if (subscriber == null) throw new NullPointerException("subscriber");
+        final KestrelSubscription subscription = new KestrelSubscription(client, subscriber, queueName, errorQueueName, maxOpen, client.newLongPoll());
+        subscriber.onSubscribe(subscription);
+        client.startListener(subscription);
+    }
+
+}
@@ -0,0 +1,278 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import net.rubyeye.xmemcached.exception.MemcachedException;
+import org.cobbzilla.util.mq.metrics.MqQueueMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Drives reliable reads of one queue over one dedicated connection: open an item, then close it,
+ * abort it, or move it to the error queue.
+ *
+ * A successful item can be acked lazily with deferAck(). The next open() then closes it and opens
+ * the next item in a single close/open round trip.
+ *
+ * A chunked message (see KestrelChunks) is put back together while its manifest is held open, and handed
+ * over as if it were one item; a stream consumer's reader hands over a stream of the chunks instead. Its chunks
+ * are deleted when the manifest is acked, and left alone when it's aborted, or failed to the error queue.
+ *
+ * Normally the reader has its connection to itself, and switches it over to a rotated client between
+ * transactions. Readers that share a connection (one per queue, see KestrelEventLoop) leave that to
+ * their owner, who knows when none of them has a read open.
+ *
+ * Polls, acks and aborts are timed into the queue's metrics. An ack that rides on the next open (close/open)
+ * has no time of its own, and shows up in the poll latency instead.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelReader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KestrelReader.class);
+
+    public static final long ACK_TIMEOUT = 200;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final KestrelClient client;
+    private final KestrelConnection connection;
+    private final String queueName;
+    private final String errorQueueName;
+    private final boolean swapOnRotation;
+    private final MqQueueMetrics metrics;
+
+    /**
+     * True when the last item was handled successfully but not yet closed.
+     */
+    private boolean pendingAck = false;
+
+    private boolean streamChunks = false;
+
+    /** the manifest of the open item, and the queue holding its chunks, if it's a chunked message */
+    private String openManifest = null;
+    private String openChunkQueue = null;
+
+    public KestrelReader(KestrelClient client, KestrelConnection connection, String queueName, String errorQueueName) {
+        this(client, connection, queueName, errorQueueName, true);
+    }
+
+    public KestrelReader(KestrelClient client, KestrelConnection connection, String queueName, String errorQueueName,
+                         boolean swapOnRotation) {
+        this.client = client;
+        this.connection = connection;
+        this.queueName = queueName;
+        this.errorQueueName = errorQueueName;
+        this.swapOnRotation = swapOnRotation;
+        this.metrics = client.getMetrics().queue(queueName);
+    }
+
+    public String getQueueName() { return queueName; }
+
+    public MqQueueMetrics getMetrics() { return metrics; }
+
+    public boolean isAvailable() { return connection.getHealth().isAvailable(); }
+
+    /** hand over chunked messages as a KestrelChunkStream, rather than reading them whole */
+    public void setStreamChunks(boolean streamChunks) { this.streamChunks = streamChunks; }
+
+    /**
+     * @return the next item, or null if none arrived within the timeout
+     */
+    public Object open(long timeout) throws InterruptedException, TimeoutException, MemcachedException {
+        if (swapOnRotation && connection.hasRotation()) {
+            // the connection has a fresh client waiting: end our transaction here, then switch over
+            final long start = System.nanoTime();
+            closePending();
+            connection.swapIfRotated();
+            connection.getMetrics().recordReconnectPause(System.nanoTime() - start);
+        }
+        final String options = pendingAck ? KestrelClient.KPARAM_CLOSE_OPEN : KestrelClient.KPARAM_OPEN;
+        final Object item;
+        final long start = System.nanoTime();
+        try {
+            item = connection.get(queueName, options, timeout);
+            if (pendingAck) settled(true);
+            pendingAck = false;
+
+        } catch (InterruptedException | TimeoutException | MemcachedException e) {
+            if (!(e instanceof InterruptedException)) metrics.recordPollError();
+            abortPendingAck();
+            throw e;
+        }
+        if (item == null) {
+            metrics.recordEmptyPoll();
+        } else if (timeout > 0) {
+            // includes however long the server held the poll waiting for an item
+            metrics.recordPollWait(System.nanoTime() - start);
+        } else {
+            metrics.recordPoll(System.nanoTime() - start);
+        }
+        return KestrelChunks.isManifest(item) ? openChunked(KestrelChunks.manifestString(item)) : item;
+    }
+
+    /**
+     * Reads a chunked message under its open manifest. If the chunks can't be read for now, the manifest is
+     * aborted and the error thrown, like a failed read; if they're missing or corrupt, the manifest goes to the
+     * error queue and we return null, as if nothing had arrived.
+     */
+    private Object openChunked(String manifestString) throws InterruptedException, TimeoutException, MemcachedException {
+        openManifest = manifestString;
+        try {
+            final KestrelChunks.Manifest manifest = KestrelChunks.parseManifest(manifestString);
+            openChunkQueue = manifest.queue;
+            final KestrelChunkCursor cursor = new KestrelChunkCursor(connection, manifest);
+            if (streamChunks) return new KestrelChunkStream(cursor);
+            final byte[] payload = cursor.readAll();
+            return connection.isRawBytes() ? payload : new String(payload, UTF8);
+
+        } catch (IOException e) {
+            fail(manifestString, e);
+            return null;
+
+        } catch (InterruptedException | TimeoutException | MemcachedException e) {
+            LOG.warn("openChunked: error reading chunks, aborting to try again later: "+e);
+            abort();
+            throw e;
+        }
+    }
+
+    /**
+     * The open item is done with. If it was a chunked message, its chunks are deleted if it was acked, and
+     * kept (for a retry, or with its manifest on the error queue) if not.
+     */
+    private void settled(boolean acked) {
+        if (openChunkQueue != null && acked) KestrelChunks.delete(connection, openChunkQueue);
+        openChunkQueue = null;
+        openManifest = null;
+    }
+
+    public void deferAck() { pendingAck = true; }
+
+    public boolean hasPendingAck() { return pendingAck; }
+
+    public void ack() {
+        pendingAck = false;
+        final long start = System.nanoTime();
+        final int retries = connection.ack(queueName, ACK_TIMEOUT);
+        metrics.recordAck(System.nanoTime() - start, retries);
+        settled(true);
+    }
+
+    public void abort() {
+        pendingAck = false;
+        final long start = System.nanoTime();
+        final int retries = connection.abort(queueName, ACK_TIMEOUT);
+        metrics.recordAbort(System.nanoTime() - start, retries);
+        settled(false);
+    }
+
+    /**
+     * Sends a separate close for a deferred ack, if there is one.
+     */
+    public void closePending() {
+        if (pendingAck) finishPendingAck(KestrelClient.KPARAM_CLOSE);
+    }
+
+    /**
+     * A combined close/open failed, so we can't tell whether the close went through, or whether a new item
+     * was opened and its response lost. Aborting is the safe way out: at worst the previous message is
+     * delivered again, instead of an item we never saw being acked.
+     */
+    private void abortPendingAck() {
+        if (pendingAck) finishPendingAck(KestrelClient.KPARAM_ABORT);
+    }
+
+    private void finishPendingAck(String ackType) {
+        pendingAck = false;
+        // clear the interrupt flag while we end the transaction, the ack's retry loop bails out on interrupt
+        final boolean interrupted = Thread.interrupted();
+        try {
+            if (ackType.equals(KestrelClient.KPARAM_CLOSE)) {
+                ack();
+            } else {
+                abort();
+            }
+        } catch (Exception e) {
+            LOG.error("finishPendingAck("+ackType+"): error ending open read on "+queueName+": "+e, e);
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The callback failed on the open item: put it on the error queue and ack it, or abort it if there
+     * is no error queue or the error queue can't be written.
+     *
+     * A chunked message's manifest goes to the error queue rather than the message, and its chunks stay where
+     * they are. It's written on our own connection, so it lands on the server that has the chunks.
+     */
+    public void fail(Object item, Exception e) {
+        // message handler failed, put this message on the error queue if one is configured
+        if (errorQueueName != null) {
+            try {
+                LOG.error("fail: Callback threw an exception, putting message onto errorQueue ("+errorQueueName+"): "+e, e);
+                if (openManifest != null) {
+                    connection.set(errorQueueName, openManifest);
+                    settled(false);
+                } else {
+                    client.set(errorQueueName, item);
+                }
+                ack();
+                metrics.recordErrorQueueDiversions(1);
+                LOG.info("fail: Message put onto errorQueue and ACKED on regular queue (we should not see it again)");
+
+            } catch (Exception fatal) {
+                String msg = "fail: Error putting message onto error queue ("+fatal+"). Aborting read to leave message on original queue";
+                abort();
+                LOG.error(msg, fatal);
+            }
+        } else {
+            LOG.error("fail: Callback threw and exception and there is no errorQueue configured. Aborting read to leave message on original queue: "+e, e);
+            abort();
+        }
+    }
+
+    /**
+     * Some of the messages inside the open envelope failed. Each failed message goes onto the error queue as
+     * a plain item and the envelope is acked. If there is no error queue, or that write fails, the envelope
+     * is aborted and all of its messages, including the ones that succeeded, will be delivered again.
+     */
+    public void failPartially(List<String> failed, int total) {
+        if (errorQueueName == null) {
+            LOG.error("failPartially: "+failed.size()+" of "+total+" messages failed and there is no errorQueue configured. Aborting read to leave the batch on original queue");
+            abort();
+            return;
+        }
+        try {
+            for (String message : failed) {
+                client.set(errorQueueName, message);
+            }
+            ack();
+            metrics.recordErrorQueueDiversions(failed.size());
+            LOG.info("failPartially: "+failed.size()+" of "+total+" messages put onto errorQueue ("+errorQueueName+") and batch ACKED on regular queue");
+
+        } catch (Exception fatal) {
+            String msg = "failPartially: Error putting messages onto error queue ("+fatal+"). Aborting read to leave the batch on original queue";
+            abort();
+            LOG.error(msg, fatal);
+        }
+    }
+
+    /**
+     * Closes any deferred ack, then the connection.
+     */
+    public void shutdown() {
+        closePending();
+        try {
+            connection.shutdown();
+        } catch (Exception e) {
+            LOG.warn("shutdown: error shutting down reader connection: "+e);
+        }
+    }
+
+}
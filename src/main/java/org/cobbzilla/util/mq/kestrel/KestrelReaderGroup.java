@@ -0,0 +1,104 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import net.rubyeye.xmemcached.exception.MemcachedException;
+import org.cobbzilla.util.mq.metrics.MqQueueMetrics;
+
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reads one queue from several kestrel servers, with one KestrelReader per server.
+ *
+ * The group keeps reading from the same server while it has items, so that acks keep riding on close/open
+ * requests, but moves on after an empty read or after MAX_BURST items in a row, so every server gets polled.
+ * Each poll waits for a share of the caller's timeout, so a whole cycle takes about as long as one wait did.
+ * Servers whose KestrelHostHealth has ejected them are skipped until they are probed back in.
+ * With a single server it behaves exactly like its one reader.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelReaderGroup {
+
+    public static final int MAX_BURST = 100;
+
+    private final List<KestrelReader> readers;
+    private int index = 0;
+    private int burst = 0;
+
+    public KestrelReaderGroup(List<KestrelReader> readers) {
+        this.readers = readers;
+    }
+
+    /** the readers all read the same queue, so they share its metrics */
+    public MqQueueMetrics getMetrics() { return readers.get(0).getMetrics(); }
+
+    /** @return the reader that opened the most recent item */
+    public KestrelReader current() { return readers.get(index); }
+
+    public Object open(long timeout) throws InterruptedException, TimeoutException, MemcachedException {
+        final int size = readers.size();
+        if (size == 1) return readers.get(0).open(timeout);
+
+        KestrelReader reader = readers.get(index);
+        if (!reader.hasPendingAck() || burst >= MAX_BURST) {
+            reader.closePending();
+            index = nextAvailable();
+            burst = 0;
+            reader = readers.get(index);
+        }
+        final Object item = reader.open(Math.max(1, timeout / size));
+        if (item == null) {
+            burst = MAX_BURST; // move on next time
+        } else {
+            burst++;
+        }
+        return item;
+    }
+
+    /** the next server that isn't ejected, or simply the next one if they all are */
+    private int nextAvailable() {
+        final int size = readers.size();
+        for (int i=1; i<=size; i++) {
+            final int candidate = (index + i) % size;
+            if (readers.get(candidate).isAvailable()) return candidate;
+        }
+        return (index + 1) % size;
+    }
+
+    public boolean hasPendingAck() {
+        for (KestrelReader reader : readers) {
+            if (reader.hasPendingAck()) return true;
+        }
+        return false;
+    }
+
+    public void setStreamChunks(boolean streamChunks) {
+        for (KestrelReader reader : readers) {
+            reader.setStreamChunks(streamChunks);
+        }
+    }
+
+    public void deferAck() { current().deferAck(); }
+
+    public void ack() { current().ack(); }
+
+    public void abort() { current().abort(); }
+
+    public void fail(Object item, Exception e) { current().fail(item, e); }
+
+    public void failPartially(List<String> failed, int total) { current().failPartially(failed, total); }
+
+    public void closePending() {
+        for (KestrelReader reader : readers) {
+            reader.closePending();
+        }
+    }
+
+    public void shutdown() {
+        for (KestrelReader reader : readers) {
+            reader.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,248 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process server that speaks kestrel's memcached text protocol, for load tests, benchmarks and local
+ * runs without a real kestrel. Queues live in memory only.
+ *
+ * Supported: set; get with /open, /close, /abort, /peek and /t=millis; delete; flush_all; version; stats;
+ * quit. As with kestrel, items come back with flags 0, and a get with /t= waits up to that long for an item.
+ *
+ * The server is built on NIO: a few selector threads (kestrelServerSelectorThreads) each own a share of the
+ * connections, and a waiting read costs no thread at all. One of them also accepts new connections. Queues
+ * are shared between the selector threads, and an item put while a reader is waiting goes straight to it.
+ *
+ * Faults can be injected, to see how a client copes (all can be changed while the server runs):
+ *
+ *  - kestrelServerLatencyMillis and kestrelServerLatencyJitterMillis hold back every command by a fixed
+ *    delay plus a random one, up to the jitter; the commands behind it on the same connection wait too
+ *  - kestrelServerErrorPercent answers that share of sets and gets with a SERVER_ERROR, and does nothing else
+ *  - kestrelServerDisconnectPercent drops the connection instead of running that share of commands
+ *
+ * To run one from the command line, with the properties above as system properties:
+ *
+ *     java -DkestrelServerPort=22133 -cp ... org.cobbzilla.util.mq.kestrel.KestrelServer
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class KestrelServer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KestrelServer.class);
+
+    /** what the version command reports */
+    public static final String VERSION = "2.4.1";
+
+    public static final String PROP_HOST = "kestrelServerHost";
+    public static final String PROP_PORT = "kestrelServerPort";
+    public static final String PROP_SELECTOR_THREADS = "kestrelServerSelectorThreads";
+    public static final String PROP_LATENCY_MILLIS = "kestrelServerLatencyMillis";
+    public static final String PROP_LATENCY_JITTER_MILLIS = "kestrelServerLatencyJitterMillis";
+    public static final String PROP_ERROR_PERCENT = "kestrelServerErrorPercent";
+    public static final String PROP_DISCONNECT_PERCENT = "kestrelServerDisconnectPercent";
+
+    public static final String DEFAULT_HOST = "localhost";
+    public static final int DEFAULT_SELECTOR_THREADS = 2;
+
+    /** how long shutdown waits for each selector thread to finish */
+    private static final long SHUTDOWN_WAIT = 5000;
+
+    private final ConcurrentHashMap<String, KestrelServerQueue> queues = new ConcurrentHashMap<>();
+    private final AtomicInteger currentConnections = new AtomicInteger(0);
+    private final AtomicLong totalConnections = new AtomicLong(0);
+    private final AtomicInteger nextWorker = new AtomicInteger(0);
+
+    private ServerSocketChannel serverChannel;
+    private KestrelServerWorker[] workers;
+    private long startTime;
+
+    private volatile long latencyMillis;
+    private volatile long latencyJitterMillis;
+    private volatile double errorPercent;
+    private volatile double disconnectPercent;
+
+    /** starts the server with the defaults: a free port on localhost, no injected faults */
+    public void start() throws IOException { start(new Properties()); }
+
+    public synchronized void start(Properties properties) throws IOException {
+        if (serverChannel != null) throw new IllegalStateException("start: already started on port "+getPort());
+
+        final String host = properties.getProperty(PROP_HOST, DEFAULT_HOST).trim();
+        final int port = Integer.parseInt(properties.getProperty(PROP_PORT, "0").trim());
+        final int threads = Integer.parseInt(properties.getProperty(PROP_SELECTOR_THREADS, String.valueOf(DEFAULT_SELECTOR_THREADS)).trim());
+        if (threads < 1) throw new IllegalArgumentException(PROP_SELECTOR_THREADS+" must be at least 1: "+threads);
+        setLatencyMillis(Long.parseLong(properties.getProperty(PROP_LATENCY_MILLIS, "0").trim()));
+        setLatencyJitterMillis(Long.parseLong(properties.getProperty(PROP_LATENCY_JITTER_MILLIS, "0").trim()));
+        setErrorPercent(Double.parseDouble(properties.getProperty(PROP_ERROR_PERCENT, "0").trim()));
+        setDisconnectPercent(Double.parseDouble(properties.getProperty(PROP_DISCONNECT_PERCENT, "0").trim()));
+
+        workers = new KestrelServerWorker[threads];
+        for (int i=0; i<threads; i++) workers[i] = new KestrelServerWorker(this);
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(host, port), 1024);
+
+        final String prefix = "KestrelServer-"+getPort()+"-";
+        for (int i=0; i<threads; i++) {
+            workers[i].start(KestrelThreads.platformFactory(prefix).newThread(workers[i]));
+        }
+        workers[0].listen(serverChannel);
+        startTime = System.currentTimeMillis();
+        LOG.info("start: listening on "+host+":"+getPort()+" with "+threads+" selector threads"
+                + " (latency="+latencyMillis+"+"+latencyJitterMillis+"ms, errors="+errorPercent+"%, disconnects="+disconnectPercent+"%)");
+    }
+
+    public int getPort() { return serverChannel.socket().getLocalPort(); }
+
+    /** @return where the server listens, as kestrelHosts wants it */
+    public String getHosts() { return serverChannel.socket().getInetAddress().getHostAddress()+":"+getPort(); }
+
+    public synchronized void shutdown() throws IOException {
+        if (serverChannel == null) return;
+        serverChannel.close();
+        for (KestrelServerWorker worker : workers) worker.shutdown();
+        try {
+            for (KestrelServerWorker worker : workers) worker.join(SHUTDOWN_WAIT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        serverChannel = null;
+        queues.clear();
+    }
+
+    public long getLatencyMillis() { return latencyMillis; }
+    public void setLatencyMillis(long latencyMillis) { this.latencyMillis = checkNotNegative(PROP_LATENCY_MILLIS, latencyMillis); }
+
+    public long getLatencyJitterMillis() { return latencyJitterMillis; }
+    public void setLatencyJitterMillis(long jitter) { this.latencyJitterMillis = checkNotNegative(PROP_LATENCY_JITTER_MILLIS, jitter); }
+
+    public double getErrorPercent() { return errorPercent; }
+    public void setErrorPercent(double errorPercent) { this.errorPercent = checkPercent(PROP_ERROR_PERCENT, errorPercent); }
+
+    public double getDisconnectPercent() { return disconnectPercent; }
+    public void setDisconnectPercent(double disconnectPercent) { this.disconnectPercent = checkPercent(PROP_DISCONNECT_PERCENT, disconnectPercent); }
+
+    private static long checkNotNegative(String name, long value) {
+        if (value < 0) throw new IllegalArgumentException(name+" can't be negative: "+value);
+        return value;
+    }
+
+    private static double checkPercent(String name, double value) {
+        if (value < 0 || value > 100) throw new IllegalArgumentException(name+" must be between 0 and 100: "+value);
+        return value;
+    }
+
+    long nextLatencyMillis() {
+        final long jitter = latencyJitterMillis;
+        return jitter == 0 ? latencyMillis : latencyMillis + ThreadLocalRandom.current().nextLong(jitter + 1);
+    }
+
+    boolean injectError() { return roll(errorPercent); }
+
+    boolean injectDisconnect() { return roll(disconnectPercent); }
+
+    private static boolean roll(double percent) {
+        return percent > 0 && ThreadLocalRandom.current().nextDouble() * 100 < percent;
+    }
+
+    KestrelServerWorker nextWorker() {
+        return workers[(nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length];
+    }
+
+    void connectionOpened() {
+        currentConnections.incrementAndGet();
+        totalConnections.incrementAndGet();
+    }
+
+    void connectionClosed() { currentConnections.decrementAndGet(); }
+
+    KestrelServerQueue getQueue(String name) {
+        final KestrelServerQueue queue = queues.get(name);
+        if (queue != null) return queue;
+        final KestrelServerQueue created = new KestrelServerQueue(name);
+        final KestrelServerQueue existing = queues.putIfAbsent(name, created);
+        return existing == null ? created : existing;
+    }
+
+    /** items still open on the deleted queue are dropped when they're acked or aborted */
+    public void deleteQueue(String name) {
+        final KestrelServerQueue queue = queues.remove(name);
+        if (queue != null) queue.clear();
+    }
+
+    public void flushAllQueues() {
+        for (KestrelServerQueue queue : queues.values()) queue.clear();
+    }
+
+    /** @return the number of items waiting in the queue, not counting open ones */
+    public int size(String name) {
+        final KestrelServerQueue queue = queues.get(name);
+        return queue == null ? 0 : queue.size();
+    }
+
+    /** @return what the stats command reports, in the order it reports it */
+    public Map<String, Object> getStats() {
+        final Map<String, Object> stats = new LinkedHashMap<>();
+        final long now = System.currentTimeMillis();
+        long gets = 0, sets = 0, hits = 0, misses = 0;
+        for (KestrelServerWorker worker : workers) {
+            gets += worker.getCount.get();
+            sets += worker.setCount.get();
+            hits += worker.hitCount.get();
+            misses += worker.missCount.get();
+        }
+        long items = 0, totalItems = 0, bytes = 0;
+        final Map<String, KestrelServerQueue> sorted = new TreeMap<>(queues);
+        for (KestrelServerQueue queue : sorted.values()) {
+            items += queue.size();
+            totalItems += queue.getTotalItems();
+            bytes += queue.getBytes();
+        }
+        stats.put("uptime", (now - startTime) / 1000);
+        stats.put("time", now / 1000);
+        stats.put("version", VERSION);
+        stats.put("curr_items", items);
+        stats.put("total_items", totalItems);
+        stats.put("bytes", bytes);
+        stats.put("curr_connections", currentConnections.get());
+        stats.put("total_connections", totalConnections.get());
+        stats.put("cmd_get", gets);
+        stats.put("cmd_set", sets);
+        stats.put("get_hits", hits);
+        stats.put("get_misses", misses);
+        for (KestrelServerQueue queue : sorted.values()) {
+            final String prefix = "queue_"+queue.getName()+"_";
+            stats.put(prefix+"items", queue.size());
+            stats.put(prefix+"bytes", queue.getBytes());
+            stats.put(prefix+"total_items", queue.getTotalItems());
+            stats.put(prefix+"open_transactions", queue.getOpenTransactions());
+            stats.put(prefix+"waiters", queue.getWaiters());
+        }
+        return stats;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Properties properties = new Properties();
+        properties.putAll(System.getProperties());
+        final KestrelServer server = new KestrelServer();
+        server.start(properties);
+        Thread.currentThread().join();
+    }
+
+}
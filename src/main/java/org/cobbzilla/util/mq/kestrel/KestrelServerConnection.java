@@ -0,0 +1,418 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One client connection to a KestrelServer. Everything here runs on the connection's worker thread.
+ *
+ * Commands are answered in the order they arrive, as memcached clients expect: while one is held up (a read
+ * waiting on an empty queue, or a reply held back by injected latency), the ones pipelined behind it stay in
+ * the input buffer until it's done. Only a get for a single key waits; a get for several keys answers at once.
+ *
+ * The connection holds at most one open item per queue. A second /open on a queue that already has one gets
+ * nothing, and items still open when the connection goes away are put back at the head of their queues.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelServerConnection {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KestrelServerConnection.class);
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    public static final int INITIAL_BUFFER = 16 * 1024;
+    public static final int MAX_LINE = 64 * 1024;
+    public static final int MAX_ITEM_BYTES = 64 * 1024 * 1024;
+
+    /** stop reading from a client that doesn't read its replies, once this much is waiting to go out */
+    public static final int MAX_PENDING_OUTPUT = 1024 * 1024;
+
+    private static class Open {
+        private final KestrelServerQueue queue;
+        private final byte[] item;
+        private Open(KestrelServerQueue queue, byte[] item) {
+            this.queue = queue;
+            this.item = item;
+        }
+    }
+
+    private final KestrelServer server;
+    private final KestrelServerWorker worker;
+    private final SocketChannel channel;
+    private SelectionKey key;
+
+    private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER);
+    private int start = 0;
+    private ByteBuffer out = ByteBuffer.allocate(INITIAL_BUFFER);
+
+    private final Map<String, Open> open = new HashMap<>();
+    private Waiter waiting;
+    private boolean blocked;
+    private boolean closed;
+
+    KestrelServerConnection(KestrelServer server, KestrelServerWorker worker, SocketChannel channel) {
+        this.server = server;
+        this.worker = worker;
+        this.channel = channel;
+        server.connectionOpened();
+    }
+
+    void setKey(SelectionKey key) { this.key = key; }
+
+    public void onReadable() {
+        if (!in.hasRemaining()) ensureInput(in.capacity() * 2);
+        final int n;
+        try {
+            n = channel.read(in);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (n < 0) {
+            close();
+            return;
+        }
+        process();
+    }
+
+    public void onWritable() { flush(); }
+
+    /** runs every complete command in the input buffer, until one has to wait */
+    private void process() {
+        while (!blocked && !closed && parseOne()) {}
+        if (closed) return;
+        if (start > 0) {
+            final byte[] a = in.array();
+            final int remaining = in.position() - start;
+            System.arraycopy(a, start, a, 0, remaining);
+            in.position(remaining);
+            start = 0;
+        }
+        flush();
+    }
+
+    /** @return true if a command was run, false if the rest of it hasn't arrived yet */
+    private boolean parseOne() {
+        final byte[] a = in.array();
+        final int end = in.position();
+        int newline = -1;
+        for (int i=start; i<end; i++) {
+            if (a[i] == '\n') {
+                newline = i;
+                break;
+            }
+        }
+        if (newline == -1) {
+            if (end - start > MAX_LINE) protocolError("line too long");
+            return false;
+        }
+        final int lineEnd = newline > start && a[newline-1] == '\r' ? newline - 1 : newline;
+        final String[] parts = new String(a, start, lineEnd - start, ASCII).split(" ");
+
+        byte[] data = null;
+        if (parts[0].equals("set")) {
+            final int length;
+            try {
+                length = Integer.parseInt(parts[4]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                protocolError("bad command line format");
+                return false;
+            }
+            if (length < 0 || length > MAX_ITEM_BYTES) {
+                protocolError("object too large for cache");
+                return false;
+            }
+            final int needed = newline + 1 + length + CRLF.length;
+            if (end < needed) {
+                ensureInput(needed - start);
+                return false;
+            }
+            data = Arrays.copyOfRange(a, newline + 1, newline + 1 + length);
+            start = needed;
+        } else {
+            start = newline + 1;
+        }
+        dispatch(parts, data);
+        return true;
+    }
+
+    private void dispatch(final String[] parts, final byte[] data) {
+        final long latency = server.nextLatencyMillis();
+        if (latency <= 0) {
+            execute(parts, data);
+            return;
+        }
+        blocked = true;
+        worker.schedule(new KestrelServerWorker.Timer() {
+            @Override protected void fire() {
+                if (closed) return;
+                blocked = false;
+                execute(parts, data);
+                process();
+            }
+        }, latency);
+    }
+
+    private void execute(String[] parts, byte[] data) {
+        if (server.injectDisconnect()) {
+            close();
+            return;
+        }
+        try {
+            switch (parts[0]) {
+                case "get":
+                    worker.getCount.incrementAndGet();
+                    if (server.injectError()) {
+                        reply("SERVER_ERROR injected failure");
+                        return;
+                    }
+                    for (int i=1; i<parts.length; i++) {
+                        if (!get(parts[i], parts.length == 2)) return;
+                    }
+                    reply("END");
+                    return;
+
+                case "set":
+                    worker.setCount.incrementAndGet();
+                    if (server.injectError()) {
+                        reply("SERVER_ERROR injected failure");
+                        return;
+                    }
+                    server.getQueue(parts[1]).put(data);
+                    if (!isNoReply(parts)) reply("STORED");
+                    return;
+
+                case "delete":
+                    server.deleteQueue(parts[1]);
+                    if (!isNoReply(parts)) reply("DELETED");
+                    return;
+
+                case "flush_all":
+                    server.flushAllQueues();
+                    if (!isNoReply(parts)) reply("OK");
+                    return;
+
+                case "version":
+                    reply("VERSION "+KestrelServer.VERSION);
+                    return;
+
+                case "stats":
+                    for (Map.Entry<String, Object> stat : server.getStats().entrySet()) {
+                        reply("STAT "+stat.getKey()+" "+stat.getValue());
+                    }
+                    reply("END");
+                    return;
+
+                case "quit":
+                    close();
+                    return;
+
+                default:
+                    reply("ERROR");
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            reply("CLIENT_ERROR bad command line format");
+        }
+    }
+
+    private static boolean isNoReply(String[] parts) { return parts[parts.length-1].equals("noreply"); }
+
+    /**
+     * @param key the queue name and its options, e.g. jobs/close/open/t=1000
+     * @param mayWait true if this get may wait for an item to arrive
+     * @return false if the get is now waiting for an item
+     */
+    private boolean get(String key, boolean mayWait) {
+        final String[] options = key.split("/");
+        final String name = options[0];
+        boolean doOpen = false, doClose = false, doAbort = false, peek = false;
+        long timeout = 0;
+        for (int i=1; i<options.length; i++) {
+            final String option = options[i];
+            switch (option) {
+                case "open":  doOpen = true; break;
+                case "close": doClose = true; break;
+                case "abort": doAbort = true; break;
+                case "peek":  peek = true; break;
+                default:
+                    if (option.startsWith("t=")) timeout = Long.parseLong(option.substring(2));
+            }
+        }
+        if (doClose) {
+            final Open o = open.remove(name);
+            if (o != null) o.queue.closed();
+        }
+        if (doAbort) {
+            final Open o = open.remove(name);
+            if (o != null) o.queue.putBack(o.item, true);
+        }
+        if (!doOpen && !peek && (doClose || doAbort)) return true;
+        if (doOpen && open.containsKey(name)) return true;
+
+        final KestrelServerQueue queue = server.getQueue(name);
+        final Waiter waiter = mayWait && timeout > 0 && !peek ? new Waiter(queue, key, name, doOpen) : null;
+        final byte[] item = queue.poll(doOpen, peek, waiter);
+        if (item == null) {
+            if (waiter == null) {
+                worker.missCount.incrementAndGet();
+                return true;
+            }
+            blocked = true;
+            waiting = waiter;
+            worker.schedule(waiter, timeout);
+            return false;
+        }
+        worker.hitCount.incrementAndGet();
+        if (doOpen) open.put(name, new Open(queue, item));
+        writeValue(key, item);
+        return true;
+    }
+
+    /** a get waiting on an empty queue: times out on the worker's timer heap, or is handed an item by a put */
+    private class Waiter extends KestrelServerWorker.Timer implements KestrelServerQueue.Waiter, Runnable {
+
+        private final KestrelServerQueue queue;
+        private final String key;
+        private final String name;
+        private final boolean opens;
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+        private byte[] item;
+
+        private Waiter(KestrelServerQueue queue, String key, String name, boolean opens) {
+            this.queue = queue;
+            this.key = key;
+            this.name = name;
+            this.opens = opens;
+        }
+
+        @Override public boolean claim() { return claimed.compareAndSet(false, true); }
+
+        @Override public boolean opens() { return opens; }
+
+        /** the item is published to the worker thread through its task queue */
+        @Override public void deliver(KestrelServerQueue queue, byte[] item) {
+            this.item = item;
+            worker.execute(this);
+        }
+
+        /** delivered */
+        @Override public void run() { delivered(this); }
+
+        /** timed out */
+        @Override protected void fire() {
+            if (!claim()) return;
+            queue.removeWaiter(this);
+            timedOut(this);
+        }
+    }
+
+    private void delivered(Waiter waiter) {
+        worker.cancel(waiter);
+        if (closed) {
+            waiter.queue.putBack(waiter.item, waiter.opens);
+            return;
+        }
+        waiting = null;
+        blocked = false;
+        worker.hitCount.incrementAndGet();
+        if (waiter.opens) open.put(waiter.name, new Open(waiter.queue, waiter.item));
+        writeValue(waiter.key, waiter.item);
+        reply("END");
+        process();
+    }
+
+    private void timedOut(Waiter waiter) {
+        if (closed) return;
+        waiting = null;
+        blocked = false;
+        worker.missCount.incrementAndGet();
+        reply("END");
+        process();
+    }
+
+    private void protocolError(String message) {
+        LOG.warn("protocolError: closing connection from "+channel.socket().getRemoteSocketAddress()+": "+message);
+        reply("CLIENT_ERROR "+message);
+        flush();
+        close();
+    }
+
+    private void writeValue(String key, byte[] item) {
+        reply("VALUE "+key+" 0 "+item.length);
+        ensureOutput(item.length + CRLF.length);
+        out.put(item);
+        out.put(CRLF);
+    }
+
+    private void reply(String line) {
+        final int length = line.length();
+        ensureOutput(length + CRLF.length);
+        for (int i=0; i<length; i++) out.put((byte) line.charAt(i));
+        out.put(CRLF);
+    }
+
+    /** grows the input buffer to hold at least this much from the start of the current command */
+    private void ensureInput(int capacity) {
+        if (in.capacity() >= capacity) return;
+        final int remaining = in.position() - start;
+        final ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        bigger.put(in.array(), start, remaining);
+        in = bigger;
+        start = 0;
+    }
+
+    private void ensureOutput(int length) {
+        if (out.remaining() >= length) return;
+        final ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + length));
+        out.flip();
+        bigger.put(out);
+        out = bigger;
+    }
+
+    private void flush() {
+        if (closed) return;
+        if (out.position() > 0) {
+            out.flip();
+            try {
+                channel.write(out);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            out.compact();
+        }
+        int ops = out.position() > MAX_PENDING_OUTPUT ? 0 : SelectionKey.OP_READ;
+        if (out.position() > 0) ops |= SelectionKey.OP_WRITE;
+        if (key.interestOps() != ops) key.interestOps(ops);
+    }
+
+    /** puts back anything still open, and any item on its way to a waiting read */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        if (key != null) key.cancel();
+        KestrelServerWorker.closeQuietly(channel);
+        server.connectionClosed();
+        if (waiting != null && waiting.claim()) {
+            waiting.queue.removeWaiter(waiting);
+            worker.cancel(waiting);
+        }
+        waiting = null;
+        for (Open o : open.values()) o.queue.putBack(o.item, true);
+        open.clear();
+    }
+
+}
@@ -0,0 +1,100 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import java.util.ArrayDeque;
+
+/**
+ * One queue of a KestrelServer. Items that arrive while a reader is waiting go straight to that reader,
+ * without touching the queue; otherwise they're queued, and the first reader to come along takes them.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelServerQueue {
+
+    /** a reader parked on the queue until an item arrives or its timeout passes, whichever comes first */
+    interface Waiter {
+        /** @return true if the caller now owns the waiter, false if someone else got there first */
+        boolean claim();
+
+        /** @return true if the item will be held open, and should be counted as an open transaction */
+        boolean opens();
+
+        /** called on whatever thread put the item, after a successful claim */
+        void deliver(KestrelServerQueue queue, byte[] item);
+    }
+
+    private final String name;
+    private final ArrayDeque<byte[]> items = new ArrayDeque<>();
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    private long bytes;
+    private long totalItems;
+    private int openTransactions;
+
+    KestrelServerQueue(String name) { this.name = name; }
+
+    public String getName() { return name; }
+
+    public void put(byte[] item) { offer(item, false, false); }
+
+    /**
+     * Puts an item that was taken but not acked back at the head of the queue.
+     * @param open true if the item was counted as an open transaction
+     */
+    public void putBack(byte[] item, boolean open) { offer(item, true, open); }
+
+    private void offer(byte[] item, boolean head, boolean open) {
+        Waiter waiter;
+        synchronized (this) {
+            if (!head) totalItems++;
+            if (open) openTransactions--;
+            while ((waiter = waiters.pollFirst()) != null && !waiter.claim()) {}
+            if (waiter == null) {
+                if (head) items.addFirst(item); else items.addLast(item);
+                bytes += item.length;
+                return;
+            }
+            if (waiter.opens()) openTransactions++;
+        }
+        waiter.deliver(this, item);
+    }
+
+    /**
+     * @param open count the item as an open transaction
+     * @param peek leave the item on the queue
+     * @param waiter parked on the queue if it's empty; null to return right away
+     * @return the item at the head of the queue, or null if it's empty
+     */
+    public synchronized byte[] poll(boolean open, boolean peek, Waiter waiter) {
+        final byte[] item = peek ? items.peekFirst() : items.pollFirst();
+        if (item == null) {
+            if (waiter != null) waiters.addLast(waiter);
+            return null;
+        }
+        if (!peek) {
+            bytes -= item.length;
+            if (open) openTransactions++;
+        }
+        return item;
+    }
+
+    /** called after an open item is acked */
+    public synchronized void closed() { openTransactions--; }
+
+    public synchronized void removeWaiter(Waiter waiter) { waiters.remove(waiter); }
+
+    public synchronized void clear() {
+        items.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() { return items.size(); }
+
+    public synchronized long getBytes() { return bytes; }
+
+    public synchronized long getTotalItems() { return totalItems; }
+
+    public synchronized int getOpenTransactions() { return openTransactions; }
+
+    public synchronized int getWaiters() { return waiters.size(); }
+
+}
@@ -0,0 +1,225 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One selector thread of a KestrelServer. It owns its connections: everything that touches one, its reads,
+ * writes, timeouts and deliveries, runs on this thread, so a connection needs no locking of its own. Other
+ * threads hand work over with execute().
+ *
+ * Timed work (blocking reads that time out, replies held back by injected latency) goes on a heap of timers,
+ * and the selector never sleeps past the first one that's due.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelServerWorker implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KestrelServerWorker.class);
+
+    /** runs on the worker thread once its deadline passes, unless it was cancelled first */
+    abstract static class Timer implements Comparable<Timer> {
+        private long deadline;
+        protected abstract void fire();
+        @Override public int compareTo(Timer other) { return Long.compare(deadline, other.deadline); }
+    }
+
+    private final KestrelServer server;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private volatile Thread thread;
+    private volatile boolean alive = true;
+
+    // only ever written by this worker's thread; read by whichever worker answers a stats command
+    final AtomicLong getCount = new AtomicLong();
+    final AtomicLong setCount = new AtomicLong();
+    final AtomicLong hitCount = new AtomicLong();
+    final AtomicLong missCount = new AtomicLong();
+
+    KestrelServerWorker(KestrelServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    public void start(Thread thread) {
+        this.thread = thread;
+        thread.start();
+    }
+
+    public void shutdown() {
+        alive = false;
+        selector.wakeup();
+    }
+
+    public void join(long millis) throws InterruptedException {
+        final Thread t = thread;
+        if (t != null) t.join(millis);
+    }
+
+    public boolean inWorkerThread() { return Thread.currentThread() == thread; }
+
+    /** runs the task on this worker's thread, soon; called from any thread */
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        if (!inWorkerThread()) selector.wakeup();
+    }
+
+    /** called on the worker thread only */
+    public void schedule(Timer timer, long delayMillis) {
+        timer.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        timers.add(timer);
+    }
+
+    /** called on the worker thread only */
+    public void cancel(Timer timer) { timers.remove(timer); }
+
+    public void listen(final ServerSocketChannel serverChannel) {
+        execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+                } catch (IOException e) {
+                    LOG.error("listen: can't accept connections: "+e, e);
+                }
+            }
+        });
+    }
+
+    /** takes over a newly accepted connection; called from the accepting worker */
+    public void adopt(final SocketChannel channel) {
+        execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    final KestrelServerConnection connection = new KestrelServerConnection(server, KestrelServerWorker.this, channel);
+                    connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+                } catch (IOException e) {
+                    LOG.warn("adopt: dropping new connection: "+e);
+                    closeQuietly(channel);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (alive) {
+            try {
+                select();
+                handleSelected();
+                runTasks();
+                runTimers();
+            } catch (Exception e) {
+                LOG.error("run: unexpected error, carrying on: "+e, e);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof KestrelServerConnection) {
+                ((KestrelServerConnection) key.attachment()).close();
+            }
+        }
+        try { selector.close(); } catch (IOException e) {
+            LOG.warn("run: error closing selector: "+e);
+        }
+    }
+
+    private void select() throws IOException {
+        if (!tasks.isEmpty()) {
+            selector.selectNow();
+            return;
+        }
+        final Timer first = timers.peek();
+        if (first == null) {
+            selector.select();
+            return;
+        }
+        final long nanos = first.deadline - System.nanoTime();
+        if (nanos <= 0) {
+            selector.selectNow();
+        } else {
+            // round up, so that we don't wake up just before the deadline and go straight back to sleep
+            selector.select(TimeUnit.NANOSECONDS.toMillis(nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+        }
+    }
+
+    private void handleSelected() {
+        final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            final SelectionKey key = keys.next();
+            keys.remove();
+            try {
+                if (!key.isValid()) continue;
+                if (key.isAcceptable()) {
+                    accept((ServerSocketChannel) key.channel());
+                    continue;
+                }
+                final KestrelServerConnection connection = (KestrelServerConnection) key.attachment();
+                if (key.isWritable()) connection.onWritable();
+                if (key.isValid() && key.isReadable()) connection.onReadable();
+
+            } catch (CancelledKeyException e) {
+                // the connection was closed while handling another event
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) {
+        SocketChannel channel;
+        try {
+            while ((channel = serverChannel.accept()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    server.nextWorker().adopt(channel);
+                } catch (IOException e) {
+                    LOG.warn("accept: dropping new connection: "+e);
+                    closeQuietly(channel);
+                }
+            }
+        } catch (IOException e) {
+            if (alive) LOG.error("accept: "+e, e);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                LOG.error("runTasks: "+e, e);
+            }
+        }
+    }
+
+    private void runTimers() {
+        final long now = System.nanoTime();
+        Timer timer;
+        while ((timer = timers.peek()) != null && timer.deadline - now <= 0) {
+            timers.poll();
+            try {
+                timer.fire();
+            } catch (Exception e) {
+                LOG.error("runTimers: "+e, e);
+            }
+        }
+    }
+
+    static void closeQuietly(SocketChannel channel) {
+        try { channel.close(); } catch (IOException ignored) {}
+    }
+
+}
@@ -0,0 +1,235 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import net.rubyeye.xmemcached.exception.MemcachedException;
+import org.cobbzilla.util.mq.virtual.JournalQueue;
+import org.cobbzilla.util.mq.virtual.LocalQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Messages that couldn't be sent to kestrel, kept on local disk until they can be. The spool is a JournalQueue
+ * of memory-mapped files: each record is the message's queue name and its payload, as it would have gone to
+ * kestrel (so already compressed, if it was going to be).
+ *
+ * A single drainer thread reads the spool in batches and sends each message, in order; a message is only
+ * removed from the spool once kestrel has taken it. If a send fails, the rest of the batch goes back, in order,
+ * and the drainer backs off before trying again. A spool left over from a previous run is drained on startup.
+ *
+ * Messages are delivered at least once: one whose send timed out after kestrel stored it is sent again.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelSpool implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KestrelSpool.class);
+
+    public static final String QUEUE_NAME = "spool";
+
+    /** how long the drainer waits after a failed send, at first and at most */
+    public static final long MIN_BACKOFF = 100;
+    public static final long MAX_BACKOFF = 10 * 1000;
+
+    /** how long the drainer waits for a message before it checks whether it should stop */
+    public static final long POLL_WAIT = 1000;
+
+    /** how long a blocked send waits between checks for room */
+    private static final long BLOCK_WAIT = 100;
+
+    private static final byte STRING = 0;
+    private static final byte BYTES = 1;
+    private static final byte SERIALIZED = 2;
+
+    private final KestrelClient client;
+    private final JournalQueue queue;
+    private final long maxBytes;
+    private final KestrelSpoolFullPolicy fullPolicy;
+    private final int drainBatch;
+    private final KestrelLogSampler dropLogSampler;
+
+    /** messages spooled and not yet sent, including those the drainer is sending */
+    private final AtomicLong outstanding = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private volatile boolean alive = true;
+    private Thread drainer;
+
+    public KestrelSpool(KestrelClient client, File dir, long maxBytes, KestrelSpoolFullPolicy fullPolicy,
+                        int drainBatch, int logSampleMillis) throws IOException {
+        this.client = client;
+        this.maxBytes = maxBytes;
+        this.fullPolicy = fullPolicy;
+        this.drainBatch = drainBatch;
+        this.dropLogSampler = new KestrelLogSampler(logSampleMillis);
+        // a few segments per spool, so drained ones can be deleted while the rest still fill up
+        final int segmentBytes = (int) Math.max(64 * 1024, Math.min(64 * 1024 * 1024, maxBytes / 8));
+        this.queue = new JournalQueue(QUEUE_NAME, new File(dir, QUEUE_NAME), segmentBytes);
+        outstanding.set(queue.size());
+        if (outstanding.get() > 0) LOG.info("KestrelSpool: "+outstanding.get()+" messages left over in "+dir+", draining them");
+    }
+
+    /** @return true while there are messages still waiting to go out; new sends must queue behind them */
+    public boolean isBusy() { return outstanding.get() > 0; }
+
+    public long getOutstanding() { return outstanding.get(); }
+
+    public long getDropped() { return dropped.get(); }
+
+    /** Spools a message, or deals with it according to the full policy if there's no room */
+    public void append(String queueName, Object payload) throws IOException, InterruptedException {
+        final byte[] record = encode(queueName, payload);
+        // counted first, so the drainer can't send and uncount it before it's counted
+        outstanding.incrementAndGet();
+        boolean spooled = false;
+        try {
+            // whether there's room, and the append, are decided under the journal's lock
+            while (!queue.offer(record, maxBytes)) {
+                switch (fullPolicy) {
+                    case DROP:
+                        dropped.incrementAndGet();
+                        if (dropLogSampler.sample()) {
+                            LOG.error("append: spool is full, dropped a message for "+queueName+" ("+dropped.get()+" dropped so far)"+dropLogSampler.skippedSuffix());
+                        }
+                        return;
+                    case BLOCK:
+                        if (!alive) throw new IOException("append: spool is full and shutting down, message for "+queueName+" not sent");
+                        Thread.sleep(BLOCK_WAIT);
+                        continue;
+                    default:
+                        throw new IOException("append: spool is full ("+queue.diskBytes()+" bytes), message for "+queueName+" not sent");
+                }
+            }
+            spooled = true;
+        } finally {
+            if (!spooled) outstanding.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void run() {
+        long backoff = MIN_BACKOFF;
+        try {
+            while (alive) {
+                final List<LocalQueue.Item> batch = new ArrayList<>(drainBatch);
+                final LocalQueue.Item first = queue.open(POLL_WAIT);
+                if (first == null) {
+                    // idle: let go of segments that have been drained
+                    queue.compact(0);
+                    continue;
+                }
+                batch.add(first);
+                LocalQueue.Item item;
+                while (batch.size() < drainBatch && (item = queue.open(0)) != null) batch.add(item);
+
+                if (drain(batch)) {
+                    backoff = MIN_BACKOFF;
+                } else {
+                    Thread.sleep(backoff);
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF);
+                }
+            }
+        } catch (InterruptedException e) {
+            LOG.info("run: interrupted, exiting");
+
+        } catch (Exception e) {
+            LOG.error("run: drainer stopped: "+e, e);
+        }
+    }
+
+    /** @return false if a send failed; that message and the rest of the batch are back in the spool */
+    private boolean drain(List<LocalQueue.Item> batch) throws IOException, InterruptedException {
+        for (int i=0; i<batch.size(); i++) {
+            final LocalQueue.Item item = batch.get(i);
+            final Object[] decoded;
+            try {
+                decoded = decode((byte[]) item.getMessage());
+            } catch (Exception e) {
+                // nothing would ever be able to send it
+                LOG.error("drain: dropping a spool record that can't be read: "+e, e);
+                queue.ack(item);
+                outstanding.decrementAndGet();
+                continue;
+            }
+            try {
+                client.set((String) decoded[0], decoded[1]);
+            } catch (TimeoutException | MemcachedException e) {
+                LOG.warn("drain: error sending to "+decoded[0]+", "+outstanding.get()+" messages still spooled: "+e);
+                for (int j=i; j<batch.size(); j++) queue.abort(batch.get(j));
+                return false;
+            }
+            queue.ack(item);
+            outstanding.decrementAndGet();
+        }
+        return true;
+    }
+
+    static byte[] encode(String queueName, Object payload) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(queueName);
+        if (payload instanceof String) {
+            out.writeByte(STRING);
+            out.write(((String) payload).getBytes("UTF-8"));
+        } else if (payload instanceof byte[]) {
+            out.writeByte(BYTES);
+            out.write((byte[]) payload);
+        } else {
+            out.writeByte(SERIALIZED);
+            final ObjectOutputStream o = new ObjectOutputStream(out);
+            o.writeObject(payload);
+            o.flush();
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /** @return the queue name and the payload */
+    static Object[] decode(byte[] record) throws IOException, ClassNotFoundException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        final String queueName = in.readUTF();
+        final byte type = in.readByte();
+        final int offset = record.length - in.available();
+        switch (type) {
+            case STRING: return new Object[] { queueName, new String(record, offset, record.length - offset, "UTF-8") };
+            case BYTES: return new Object[] { queueName, Arrays.copyOfRange(record, offset, record.length) };
+            case SERIALIZED: return new Object[] { queueName, new ObjectInputStream(in).readObject() };
+            default: throw new IOException("decode: unknown payload type: "+type);
+        }
+    }
+
+    public void start() {
+        drainer = KestrelThreads.platformFactory("kestrel-spool-drainer-").newThread(this);
+        drainer.start();
+    }
+
+    /**
+     * Stops the drainer, and closes the spool. A send the drainer was in the middle of is interrupted; its
+     * message stays in the spool, with everything behind it, for the next run.
+     */
+    public void shutdown() {
+        alive = false;
+        if (drainer != null) {
+            drainer.interrupt();
+            try {
+                drainer.join(POLL_WAIT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        queue.close();
+    }
+
+}
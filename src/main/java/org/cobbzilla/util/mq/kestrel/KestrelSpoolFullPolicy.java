@@ -0,0 +1,24 @@
+package org.cobbzilla.util.mq.kestrel;
+
+/**
+ * What a spooling producer does with a message when kestrel can't take it and the spool is full.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public enum KestrelSpoolFullPolicy {
+
+    /** send() throws an IOException, so the caller knows the message wasn't taken (the default) */
+    FAIL,
+
+    /** the message is logged and dropped, and send() returns as if it had been sent */
+    DROP,
+
+    /** send() waits until the drainer has made room; the old behavior, but with a bounded backlog */
+    BLOCK;
+
+    public static KestrelSpoolFullPolicy fromString(String value) {
+        return valueOf(value.trim().toUpperCase());
+    }
+
+}
@@ -0,0 +1,70 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import net.rubyeye.xmemcached.exception.MemcachedException;
+import org.cobbzilla.util.mq.MqAsyncProducer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A producer that doesn't keep its caller waiting on kestrel. A send gets one try, of at most the latency
+ * budget; if that fails or times out, the message goes to the client's spool on local disk and send() returns.
+ * The spool's drainer sends it once kestrel recovers.
+ *
+ * While anything is spooled, every send goes straight to the spool, behind it, so messages still reach
+ * kestrel in the order they were sent and nobody waits on a server that is known to be down.
+ *
+ * sendAsync hands the same send to the client's async sender threads, so a failed message is spooled there
+ * rather than retried.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelSpoolingProducer implements MqAsyncProducer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KestrelSpoolingProducer.class);
+
+    private final KestrelClient client;
+    private final String queueName;
+    private final KestrelSpool spool;
+    private final long latencyBudgetMillis;
+    private final KestrelLogSampler logSampler;
+
+    public KestrelSpoolingProducer(KestrelClient client, String queueName, KestrelSpool spool, long latencyBudgetMillis) {
+        this.client = client;
+        this.queueName = queueName;
+        this.spool = spool;
+        this.latencyBudgetMillis = latencyBudgetMillis;
+        this.logSampler = client.getSendLogSampler(queueName);
+    }
+
+    @Override
+    public void send(Object message) throws IOException, InterruptedException {
+        final Object payload = client.compress(message);
+        if (!spool.isBusy()) {
+            try {
+                client.set(queueName, payload, latencyBudgetMillis);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("send: sent to "+queueName+": "+KestrelLogSampler.preview(message));
+                } else if (LOG.isInfoEnabled() && logSampler.sample()) {
+                    LOG.info("send: sent to "+queueName+": "+KestrelLogSampler.preview(message)+logSampler.skippedSuffix());
+                }
+                return;
+
+            } catch (TimeoutException | MemcachedException e) {
+                LOG.warn("send: error sending to "+queueName+" within "+latencyBudgetMillis+"ms, spooling: "+e);
+            }
+        }
+        spool.append(queueName, payload);
+        if (LOG.isDebugEnabled()) LOG.debug("send: spooled for "+queueName+": "+KestrelLogSampler.preview(message));
+    }
+
+    @Override
+    public ListenableFuture<Void> sendAsync(Object message) throws InterruptedException {
+        return client.getAsyncSender().send(queueName, message, this);
+    }
+
+}
@@ -0,0 +1,41 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.cobbzilla.util.mq.MqConsumer;
+import org.cobbzilla.util.mq.MqStreamConsumer;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * Sits between a listener that streams chunked messages and an MqStreamConsumer. A chunked message is already
+ * a KestrelChunkStream; anything else is a byte[], and gets a stream over it.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelStreamingConsumer implements MqConsumer<Object> {
+
+    private final MqStreamConsumer callback;
+
+    public KestrelStreamingConsumer(MqStreamConsumer callback) { this.callback = callback; }
+
+    @Override
+    public void onMessage(Object message) throws Exception {
+        if (message instanceof KestrelChunkStream) {
+            final KestrelChunkStream stream = (KestrelChunkStream) message;
+            try {
+                callback.onMessage(stream, stream.length());
+            } finally {
+                stream.close();
+            }
+            return;
+        }
+        if (!(message instanceof byte[])) {
+            throw new IllegalArgumentException("onMessage: expected raw bytes, got "+(message == null ? null : message.getClass().getName()));
+        }
+        final byte[] bytes = (byte[]) message;
+        final InputStream in = new ByteArrayInputStream(bytes);
+        callback.onMessage(in, bytes.length);
+    }
+
+}
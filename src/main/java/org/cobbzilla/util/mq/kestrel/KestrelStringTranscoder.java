@@ -0,0 +1,35 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import net.rubyeye.xmemcached.transcoders.CachedData;
+import net.rubyeye.xmemcached.transcoders.CompressionMode;
+import net.rubyeye.xmemcached.transcoders.Transcoder;
+
+import java.nio.charset.Charset;
+
+/**
+ * Reads items as UTF-8 Strings, which is what the default transcoder does with the flag-less items kestrel
+ * returns, except that items compressed by KestrelCompression are inflated first. Strings are written as
+ * plain UTF-8 with flags 0, never compressed behind kestrel's back.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelStringTranscoder implements Transcoder<String> {
+
+    public static final KestrelStringTranscoder INSTANCE = new KestrelStringTranscoder();
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Override public CachedData encode(String s) { return new CachedData(0, s.getBytes(UTF8)); }
+
+    @Override public String decode(CachedData data) { return KestrelCompression.decodeString(data.getData()); }
+
+    // none of the knobs apply
+    @Override public void setPrimitiveAsString(boolean primitiveAsString) {}
+    @Override public void setPackZeros(boolean packZeros) {}
+    @Override public void setCompressionThreshold(int to) {}
+    @Override public boolean isPrimitiveAsString() { return true; }
+    @Override public boolean isPackZeros() { return false; }
+    @Override public void setCompressionMode(CompressionMode compressMode) {}
+
+}
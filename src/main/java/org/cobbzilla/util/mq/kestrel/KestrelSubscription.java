@@ -0,0 +1,381 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import net.rubyeye.xmemcached.exception.MemcachedException;
+import org.cobbzilla.util.mq.MqDelivery;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reads a queue for one subscriber, only as fast as it asks for messages.
+ *
+ * A reliable read is opened only while the subscriber has unfilled demand, and each open read needs a reader
+ * (and connection) of its own, since kestrel allows one open read per queue per connection. Readers are
+ * created as needed, up to maxOpen; a reader is busy from the moment its item is delivered until the
+ * subscriber settles it. So at most min(demand, maxOpen) messages are ever held open for a subscriber.
+ *
+ * Acks are deferred like a listener's: the reader closes the item with its next close/open, or with a
+ * separate close once the subscriber stops asking for more.
+ *
+ * Messages inside an envelope item are delivered one at a time, as demand allows, and the envelope is
+ * settled once all of its messages are (see KestrelOpenEnvelope).
+ *
+ * All signals to the subscriber come from the subscription's own thread. onComplete is sent when the client
+ * shuts down; a transient kestrel error is logged and retried, as in a listener.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelSubscription extends KestrelListener implements Subscription {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KestrelSubscription.class);
+
+    private final KestrelClient client;
+    private final Subscriber<? super MqDelivery> subscriber;
+    private final String queueName;
+    private final String errorQueueName;
+    private final int maxOpen;
+    private final KestrelLongPoll poll;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+
+    // guarded by lock
+    private long demand = 0;
+    private final Deque<KestrelReaderGroup> free = new ArrayDeque<>();
+    private int readerCount = 0;
+
+    // only touched by the subscription's thread
+    private final Deque<Delivery> buffered = new ArrayDeque<>();
+
+    private volatile boolean cancelled = false;
+    private volatile Throwable error = null;
+
+    public KestrelSubscription(KestrelClient client, Subscriber<? super MqDelivery> subscriber, String queueName,
+                               String errorQueueName, int maxOpen, KestrelLongPoll poll) {
+        this.client = client;
+        this.subscriber = subscriber;
+        this.queueName = queueName;
+        this.errorQueueName = errorQueueName;
+        this.maxOpen = maxOpen;
+        this.poll = poll;
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            // rule 3.9: signal an error; it goes out from our own thread, so signals stay serial
+            error = new IllegalArgumentException("request must be positive: "+n);
+            cancel();
+            return;
+        }
+        lock.lock();
+        try {
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops reading. An open long-poll is left to finish rather than interrupted, since an interrupt would
+     * abort a deferred ack; anything it returns is aborted.
+     */
+    @Override
+    public void cancel() {
+        cancelled = true;
+        stop();
+        lock.lock();
+        try {
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (alive) {
+                if (!awaitDemand()) break;
+
+                if (!buffered.isEmpty()) {
+                    takeDemand();
+                    emit(buffered.poll());
+                    continue;
+                }
+
+                final KestrelReaderGroup reader = takeReader();
+                if (reader == null) break;
+                read(reader);
+            }
+        } catch (InterruptedException e) {
+            LOG.info("runloop: interrupted, exiting");
+
+        } finally {
+            finish();
+        }
+    }
+
+    /** @return false if we should stop */
+    private boolean awaitDemand() throws InterruptedException {
+        lock.lock();
+        try {
+            while (alive && !(demand > 0 && (!buffered.isEmpty() || !free.isEmpty() || readerCount < maxOpen))) {
+                // nothing to do for now: don't leave deferred acks waiting for more demand
+                final List<KestrelReaderGroup> pending = new ArrayList<>();
+                for (KestrelReaderGroup r : free) {
+                    if (r.hasPendingAck()) pending.add(r);
+                }
+                if (!pending.isEmpty()) {
+                    free.removeAll(pending);
+                    lock.unlock();
+                    try {
+                        for (KestrelReaderGroup r : pending) r.closePending();
+                    } finally {
+                        lock.lock();
+                        free.addAll(pending);
+                    }
+                    continue;
+                }
+                ready.await();
+            }
+            return alive;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void takeDemand() {
+        lock.lock();
+        try {
+            demand--;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return a free reader, or a new one if we're still under maxOpen; null if one couldn't be connected */
+    private KestrelReaderGroup takeReader() {
+        lock.lock();
+        try {
+            final KestrelReaderGroup reader = free.poll();
+            if (reader != null) return reader;
+            readerCount++;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            return client.newReaderGroup(queueName, errorQueueName);
+        } catch (IOException e) {
+            LOG.error("takeReader: error connecting to kestrel: "+e, e);
+            error = e;
+            stop();
+            return null;
+        }
+    }
+
+    private void read(KestrelReaderGroup reader) throws InterruptedException {
+        final Object item;
+        try {
+            item = reader.open(poll.getWait());
+
+        } catch (InterruptedException e) {
+            release(reader);
+            throw e;
+
+        } catch (TimeoutException e) {
+            LOG.debug("read: timed out, trying again");
+            release(reader);
+            return;
+
+        } catch (MemcachedException e) {
+            LOG.error("read: Error talking to Kestrel: "+e, e);
+            release(reader);
+            // sleep for a bit so we don't spin if Kestrel is down
+            Thread.sleep(2000);
+            return;
+        }
+
+        if (item == null) {
+            poll.onEmpty();
+            release(reader);
+            return;
+        }
+        poll.onMessage();
+
+        if (!alive) {
+            reader.abort();
+            release(reader);
+            return;
+        }
+
+        if (KestrelEnvelope.isEnvelope(item)) {
+            final List<String> messages;
+            try {
+                messages = KestrelEnvelope.decode(item);
+            } catch (Exception e) {
+                reader.fail(item, e);
+                release(reader);
+                return;
+            }
+            final KestrelOpenEnvelope envelope = new KestrelOpenEnvelope(reader, messages.size()) {
+                @Override protected void release(KestrelReaderGroup r) { KestrelSubscription.this.release(r); }
+            };
+            for (String message : messages) {
+                buffered.add(new EnvelopeDelivery(envelope, message));
+            }
+            return; // the next pass delivers them, as demand allows
+        }
+
+        takeDemand();
+        emit(new SingleDelivery(reader, item));
+    }
+
+    private void emit(Delivery delivery) {
+        try {
+            subscriber.onNext(delivery);
+        } catch (Throwable t) {
+            // rule 2.13 says onNext must not throw; if it does, treat it as a cancellation
+            LOG.error("emit: subscriber threw from onNext, cancelling: "+t, t);
+            cancel();
+            delivery.abortIfUnsettled();
+        }
+    }
+
+    private void release(KestrelReaderGroup reader) {
+        lock.lock();
+        try {
+            if (alive) {
+                free.add(reader);
+                ready.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // we're done: a reader coming back after that closes its own connection
+        reader.shutdown();
+    }
+
+    private void finish() {
+        LOG.info("runloop: exiting");
+        stop();
+        for (Delivery delivery : buffered) {
+            delivery.abortIfUnsettled();
+        }
+        buffered.clear();
+
+        final List<KestrelReaderGroup> idle;
+        lock.lock();
+        try {
+            idle = new ArrayList<>(free);
+            free.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (KestrelReaderGroup reader : idle) {
+            reader.shutdown();
+        }
+
+        if (error != null) {
+            subscriber.onError(error);
+        } else if (!cancelled) {
+            subscriber.onComplete();
+        }
+    }
+
+    private abstract class Delivery implements MqDelivery {
+
+        private final AtomicBoolean settled = new AtomicBoolean(false);
+
+        protected void settle() {
+            if (!settled.compareAndSet(false, true)) {
+                throw new IllegalStateException("delivery from "+queueName+" was already acked, aborted or failed");
+            }
+        }
+
+        void abortIfUnsettled() {
+            if (!settled.get()) {
+                try {
+                    abort();
+                } catch (IllegalStateException ignored) {
+                    // settled in the meantime
+                }
+            }
+        }
+    }
+
+    private class SingleDelivery extends Delivery {
+
+        private final KestrelReaderGroup reader;
+        private final Object item;
+
+        SingleDelivery(KestrelReaderGroup reader, Object item) {
+            this.reader = reader;
+            this.item = item;
+        }
+
+        @Override public Object getMessage() { return item; }
+
+        @Override public void ack() {
+            settle();
+            reader.deferAck();
+            release(reader);
+        }
+
+        @Override public void abort() {
+            settle();
+            reader.abort();
+            release(reader);
+        }
+
+        @Override public void fail(Exception e) {
+            settle();
+            reader.fail(item, e);
+            release(reader);
+        }
+    }
+
+    private class EnvelopeDelivery extends Delivery {
+
+        private final KestrelOpenEnvelope envelope;
+        private final String message;
+
+        EnvelopeDelivery(KestrelOpenEnvelope envelope, String message) {
+            this.envelope = envelope;
+            this.message = message;
+        }
+
+        @Override public Object getMessage() { return message; }
+
+        @Override public void ack() {
+            settle();
+            envelope.ack();
+        }
+
+        @Override public void abort() {
+            settle();
+            envelope.abort();
+        }
+
+        @Override public void fail(Exception e) {
+            settle();
+            LOG.error("fail: message in batch from "+queueName+" failed: "+e, e);
+            envelope.fail(message);
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Where a KestrelClient gets its threads: daemon platform threads by default, or virtual threads when
+ * kestrelVirtualThreads is set and the JVM has them (Java 21 and later).
+ *
+ * The library still builds for Java 7, so virtual threads are looked up reflectively, once.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class KestrelThreads {
+
+    private static final AtomicInteger threadCount = new AtomicInteger(0);
+
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_FACTORY;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+    static {
+        Method ofVirtual = null, name = null, factory = null, perTask = null;
+        try {
+            final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (Exception e) {
+            ofVirtual = null; // not available on this JVM
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_FACTORY = factory;
+        NEW_THREAD_PER_TASK_EXECUTOR = perTask;
+    }
+
+    public static boolean isVirtualAvailable() { return OF_VIRTUAL != null; }
+
+    private final boolean virtual;
+
+    public KestrelThreads(boolean virtual) {
+        if (virtual && !isVirtualAvailable()) {
+            throw new IllegalStateException("virtual threads were requested, but this JVM ("+System.getProperty("java.version")+") doesn't have them");
+        }
+        this.virtual = virtual;
+    }
+
+    public boolean isVirtual() { return virtual; }
+
+    /**
+     * Names threads prefix0, prefix1, ... counting across the whole JVM for platform threads, and per factory
+     * for virtual ones. Platform threads are daemons; virtual threads always are.
+     */
+    public ThreadFactory factory(final String prefix) {
+        if (virtual) {
+            try {
+                final Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 0L);
+                return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+            } catch (Exception e) {
+                throw new IllegalStateException("factory: error creating virtual thread factory: "+e, e);
+            }
+        }
+        return platformFactory(prefix);
+    }
+
+    /** for housekeeping threads that should stay platform threads whatever the mode */
+    public static ThreadFactory platformFactory(final String prefix) {
+        return new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r);
+                t.setDaemon(true);
+                t.setName(prefix + threadCount.getAndIncrement());
+                return t;
+            }
+        };
+    }
+
+    public Thread newThread(String prefix, Runnable runnable) {
+        return factory(prefix).newThread(runnable);
+    }
+
+    /**
+     * Runs tasks on up to poolSize platform threads, or on a new virtual thread per task, since virtual
+     * threads are cheap enough that pooling them only gets in the way.
+     */
+    public ExecutorService newExecutor(String prefix, int poolSize) {
+        if (virtual) {
+            try {
+                return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, factory(prefix));
+            } catch (Exception e) {
+                throw new IllegalStateException("newExecutor: error creating virtual thread executor: "+e, e);
+            }
+        }
+        return Executors.newFixedThreadPool(poolSize, factory(prefix));
+    }
+
+}
@@ -0,0 +1,98 @@
+package org.cobbzilla.util.mq.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A latency histogram in the style of HdrHistogram: fixed log-linear buckets, so every value is recorded to
+ * within 1/SUB_BUCKETS (about 1.6%) of itself, from 1ns up to MAX_VALUE (about 4.6 minutes); longer values
+ * are counted as MAX_VALUE.
+ *
+ * The bucket array takes about 17KB, so it's only allocated when the first value is recorded: a client can
+ * have metrics for thousands of queues, most of which never time anything. After that, recording is
+ * lock-free and allocates nothing, just a few atomic increments. Reading is done from a snapshot, which copies the counts; the copy isn't atomic, so a snapshot taken while values are
+ * being recorded may be off by the few values that land during the copy.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class MqHistogram {
+
+    /** each power of two is split into this many buckets */
+    public static final int SUB_BUCKET_BITS = 6;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    public static final int MAX_VALUE_BITS = 38;
+    public static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+
+    static final int BUCKETS = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicReference<AtomicLongArray> counts = new AtomicReference<>();
+    private final AtomicLong total = new AtomicLong(0);
+    private final AtomicLong max = new AtomicLong(0);
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        if (value > MAX_VALUE) value = MAX_VALUE;
+        AtomicLongArray c = counts.get();
+        if (c == null) {
+            // whoever loses the race drops its array and uses the winner's
+            counts.compareAndSet(null, new AtomicLongArray(BUCKETS));
+            c = counts.get();
+        }
+        c.incrementAndGet(indexOf(value));
+        total.addAndGet(value);
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) break;
+        }
+    }
+
+    /** records the time since startNanos, a System.nanoTime() */
+    public void recordSince(long startNanos) { record(System.nanoTime() - startNanos); }
+
+    /**
+     * Values below SUB_BUCKETS get a bucket each. Above that, a value whose highest bit is h lands in one of
+     * the SUB_BUCKETS buckets for [2^h, 2^(h+1)), picked by its next SUB_BUCKET_BITS bits.
+     */
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (int) (shift * SUB_BUCKETS + (value >>> shift));
+    }
+
+    /** @return the highest value that lands in the bucket */
+    static long highestValueAt(int index) {
+        if (index < SUB_BUCKETS) return index;
+        final int shift = index / SUB_BUCKETS - 1;
+        final long mantissa = index - (long) shift * SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /** @return how many values were recorded, without taking a snapshot */
+    public long getCount() {
+        final AtomicLongArray c = counts.get();
+        if (c == null) return 0;
+        long count = 0;
+        for (int i=0; i<BUCKETS; i++) count += c.get(i);
+        return count;
+    }
+
+    /** @return true once a value has been recorded, and the buckets take up memory */
+    public boolean isAllocated() { return counts.get() != null; }
+
+    public MqHistogramSnapshot snapshot() {
+        final long[] copy = new long[BUCKETS];
+        final AtomicLongArray c = counts.get();
+        long count = 0;
+        if (c != null) {
+            for (int i=0; i<BUCKETS; i++) {
+                copy[i] = c.get(i);
+                count += copy[i];
+            }
+        }
+        return new MqHistogramSnapshot(copy, count, total.get(), max.get());
+    }
+
+}
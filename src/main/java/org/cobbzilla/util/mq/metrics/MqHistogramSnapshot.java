@@ -0,0 +1,78 @@
+package org.cobbzilla.util.mq.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What an MqHistogram held at one moment. Values are in nanoseconds; the getters that JMX shows are in
+ * microseconds, which reads better for queue operations.
+ *
+ * Histograms only ever grow, so a snapshot covers everything since the histogram was created. For what
+ * happened between two snapshots, as an exporter that runs on a schedule usually wants, use minus().
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class MqHistogramSnapshot {
+
+    public static final MqHistogramSnapshot EMPTY = new MqHistogramSnapshot(new long[MqHistogram.BUCKETS], 0, 0, 0);
+
+    private final long[] counts;
+    private final long count;
+    private final long total;
+    private final long max;
+
+    MqHistogramSnapshot(long[] counts, long count, long total, long max) {
+        this.counts = counts;
+        this.count = count;
+        this.total = total;
+        this.max = max;
+    }
+
+    public long getCount() { return count; }
+
+    public long getTotalNanos() { return total; }
+
+    public long getMeanNanos() { return count == 0 ? 0 : total / count; }
+
+    /** the largest value ever recorded; minus() keeps the later snapshot's, since the interval's can't be known */
+    public long getMaxNanos() { return max; }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return a value that at least this share of the recorded values are at or below, to within the
+     * histogram's precision; 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0) return 0;
+        final long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int i=0; i<counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(MqHistogram.highestValueAt(i), max);
+        }
+        return max;
+    }
+
+    public long getMeanMicros() { return micros(getMeanNanos()); }
+    public long getP50Micros() { return micros(getValueAtPercentile(50)); }
+    public long getP90Micros() { return micros(getValueAtPercentile(90)); }
+    public long getP99Micros() { return micros(getValueAtPercentile(99)); }
+    public long getP999Micros() { return micros(getValueAtPercentile(99.9)); }
+    public long getMaxMicros() { return micros(max); }
+
+    private static long micros(long nanos) { return TimeUnit.NANOSECONDS.toMicros(nanos); }
+
+    /** @return what was recorded after the earlier snapshot was taken, up to this one */
+    public MqHistogramSnapshot minus(MqHistogramSnapshot earlier) {
+        final long[] diff = new long[counts.length];
+        for (int i=0; i<counts.length; i++) diff[i] = Math.max(0, counts[i] - earlier.counts[i]);
+        return new MqHistogramSnapshot(diff, Math.max(0, count - earlier.count), Math.max(0, total - earlier.total), max);
+    }
+
+    @Override
+    public String toString() {
+        return "{count="+count+", mean="+getMeanMicros()+"us, p50="+getP50Micros()+"us, p99="+getP99Micros()
+                + "us, p99.9="+getP999Micros()+"us, max="+getMaxMicros()+"us}";
+    }
+
+}
@@ -0,0 +1,37 @@
+package org.cobbzilla.util.mq.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for one server. Like MqQueueMetrics, recording allocates nothing after the first value.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class MqHostMetrics implements MqHostMetricsMXBean {
+
+    private final String host;
+
+    private final MqHistogram sendLatency = new MqHistogram();
+    private final AtomicLong errors = new AtomicLong(0);
+    private final AtomicLong reconnects = new AtomicLong(0);
+    private final MqHistogram reconnectPause = new MqHistogram();
+
+    public MqHostMetrics(String host) { this.host = host; }
+
+    @Override public String getHost() { return host; }
+
+    public void recordSend(long nanos) { sendLatency.record(nanos); }
+
+    public void recordError() { errors.incrementAndGet(); }
+
+    public void recordReconnect() { reconnects.incrementAndGet(); }
+
+    public void recordReconnectPause(long nanos) { reconnectPause.record(nanos); }
+
+    @Override public MqHistogramSnapshot getSendLatency() { return sendLatency.snapshot(); }
+    @Override public long getErrors() { return errors.get(); }
+    @Override public long getReconnects() { return reconnects.get(); }
+    @Override public MqHistogramSnapshot getReconnectPause() { return reconnectPause.snapshot(); }
+
+}
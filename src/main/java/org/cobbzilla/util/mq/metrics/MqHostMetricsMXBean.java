@@ -0,0 +1,24 @@
+package org.cobbzilla.util.mq.metrics;
+
+/**
+ * What JMX shows for each kestrel server (or, with HASH distribution, each set of servers a connection
+ * spans). Latencies are histograms of everything since the client started.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public interface MqHostMetricsMXBean {
+
+    public String getHost();
+
+    /** sends only: reads may wait on the server on purpose, so their time says nothing about it */
+    public MqHistogramSnapshot getSendLatency();
+    public long getErrors();
+
+    /** connections replaced by a freshly built one (see kestrelReconnectIntervalInMinutes) */
+    public long getReconnects();
+
+    /** how long a reader stopped, to end its transaction and switch to a replaced connection */
+    public MqHistogramSnapshot getReconnectPause();
+
+}
@@ -0,0 +1,48 @@
+package org.cobbzilla.util.mq.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Logs one line per queue and per host at INFO, with the latencies seen since the last export.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class MqLoggingMetricsExporter implements MqMetricsExporter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MqLoggingMetricsExporter.class);
+
+    private final Map<String, MqHistogramSnapshot> previous = new HashMap<>();
+
+    @Override
+    public synchronized void export(MqMetrics metrics) {
+        if (!LOG.isInfoEnabled()) return;
+        for (MqQueueMetrics q : metrics.getQueues()) {
+            final String name = q.getQueueName();
+            LOG.info("queue "+name+": send="+interval("send:"+name, q.getSendLatency())
+                    + " sendErrors="+q.getSendErrors()+" sendRetries="+q.getSendRetries()
+                    + " poll="+interval("poll:"+name, q.getPollLatency())+" pollWait="+interval("pollWait:"+name, q.getPollWait())
+                    + " emptyPolls="+q.getEmptyPolls()
+                    + " callback="+interval("callback:"+name, q.getCallbackDuration())
+                    + " ack="+interval("ack:"+name, q.getAckLatency())+" abort="+interval("abort:"+name, q.getAbortLatency())
+                    + " ackRetries="+q.getAckRetries()+" ackFailures="+q.getAckFailures()
+                    + " abortRetries="+q.getAbortRetries()+" abortFailures="+q.getAbortFailures()
+                    + " errorQueue="+q.getErrorQueueDiversions());
+        }
+        for (MqHostMetrics h : metrics.getHosts()) {
+            final String host = h.getHost();
+            LOG.info("host "+host+": send="+interval("hostSend:"+host, h.getSendLatency())+" errors="+h.getErrors()
+                    + " reconnects="+h.getReconnects()+" reconnectPause="+interval("reconnect:"+host, h.getReconnectPause()));
+        }
+    }
+
+    private MqHistogramSnapshot interval(String key, MqHistogramSnapshot current) {
+        final MqHistogramSnapshot last = previous.put(key, current);
+        return last == null ? current : current.minus(last);
+    }
+
+}
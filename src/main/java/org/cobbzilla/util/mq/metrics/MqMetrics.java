@@ -0,0 +1,121 @@
+package org.cobbzilla.util.mq.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A client's metrics, per queue and per host, created the first time each is asked for. Callers on a hot
+ * path should look theirs up once and keep it.
+ *
+ * With JMX on, each one is registered as an MXBean as it's created, under
+ * org.cobbzilla.util.mq:type=Queue (or Host),client=&lt;client&gt;,name=&lt;queue or host&gt;, where the
+ * client name tells apart several clients in the same JVM. unregister() takes them all down again.
+ *
+ * Exporters are handed the whole set by export(); the client decides when.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class MqMetrics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MqMetrics.class);
+
+    public static final String JMX_DOMAIN = "org.cobbzilla.util.mq";
+
+    private static final AtomicInteger clientCount = new AtomicInteger(0);
+
+    private final String clientName;
+    private final ConcurrentHashMap<String, MqQueueMetrics> queues = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, MqHostMetrics> hosts = new ConcurrentHashMap<>();
+    private final List<MqMetricsExporter> exporters = new CopyOnWriteArrayList<>();
+    private final List<ObjectName> registered = new CopyOnWriteArrayList<>();
+    private volatile boolean jmx = false;
+
+    /** @param prefix the client name is this plus a number, unique in this JVM */
+    public MqMetrics(String prefix) { this.clientName = prefix + clientCount.incrementAndGet(); }
+
+    public String getClientName() { return clientName; }
+
+    public MqQueueMetrics queue(String queueName) {
+        final MqQueueMetrics m = queues.get(queueName);
+        if (m != null) return m;
+        final MqQueueMetrics created = new MqQueueMetrics(queueName);
+        final MqQueueMetrics existing = queues.putIfAbsent(queueName, created);
+        if (existing != null) return existing;
+        if (jmx) register("Queue", queueName, created);
+        return created;
+    }
+
+    public MqHostMetrics host(String host) {
+        final MqHostMetrics m = hosts.get(host);
+        if (m != null) return m;
+        final MqHostMetrics created = new MqHostMetrics(host);
+        final MqHostMetrics existing = hosts.putIfAbsent(host, created);
+        if (existing != null) return existing;
+        if (jmx) register("Host", host, created);
+        return created;
+    }
+
+    public Collection<MqQueueMetrics> getQueues() { return queues.values(); }
+
+    public Collection<MqHostMetrics> getHosts() { return hosts.values(); }
+
+    /** registers everything so far as MXBeans, and everything created from now on */
+    public synchronized void enableJmx() {
+        if (jmx) return;
+        jmx = true;
+        for (MqQueueMetrics m : queues.values()) register("Queue", m.getQueueName(), m);
+        for (MqHostMetrics m : hosts.values()) register("Host", m.getHost(), m);
+    }
+
+    private void register(String type, String name, Object bean) {
+        try {
+            final ObjectName objectName = new ObjectName(JMX_DOMAIN+":type="+type+",client="+ObjectName.quote(clientName)+",name="+ObjectName.quote(name));
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) return;
+            server.registerMBean(bean, objectName);
+            registered.add(objectName);
+        } catch (Exception e) {
+            LOG.warn("register: can't register "+type+" metrics for "+name+" with JMX: "+e);
+        }
+    }
+
+    public synchronized void unregister() {
+        jmx = false;
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : new ArrayList<>(registered)) {
+            try {
+                server.unregisterMBean(name);
+            } catch (Exception e) {
+                LOG.warn("unregister: can't unregister "+name+": "+e);
+            }
+        }
+        registered.clear();
+    }
+
+    public void addExporter(MqMetricsExporter exporter) { exporters.add(exporter); }
+
+    public boolean hasExporters() { return !exporters.isEmpty(); }
+
+    /** hands the metrics to every exporter; one that fails doesn't stop the others */
+    public void export() {
+        for (MqMetricsExporter exporter : exporters) {
+            try {
+                exporter.export(this);
+            } catch (Exception e) {
+                LOG.warn("export: "+exporter.getClass().getSimpleName()+" failed: "+e, e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,18 @@
+package org.cobbzilla.util.mq.metrics;
+
+/**
+ * Pushes a client's metrics somewhere: a time-series database, a log, a dashboard. JMX needs no exporter;
+ * see MqMetrics.
+ *
+ * export() runs on a housekeeping thread, every kestrelMetricsExportMillis and once more at shutdown, so it
+ * can take snapshots and allocate freely; it should not block for long. An exporter named in
+ * kestrelMetricsExporters needs a public no-arg constructor.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public interface MqMetricsExporter {
+
+    public void export(MqMetrics metrics);
+
+}
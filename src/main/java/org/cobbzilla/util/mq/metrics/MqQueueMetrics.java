@@ -0,0 +1,112 @@
+package org.cobbzilla.util.mq.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for one queue. The record methods are called on every send and read, so
+ * they only touch atomics, and allocate nothing once a histogram has its buckets. Latencies are in nanoseconds.
+ *
+ * A queue that's only ever polled empty costs under 1KB: its histograms get their buckets (about 17KB
+ * each, see MqHistogram) when they record their first value.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class MqQueueMetrics implements MqQueueMetricsMXBean {
+
+    private final String queueName;
+
+    private final MqHistogram sendLatency = new MqHistogram();
+    private final AtomicLong sendErrors = new AtomicLong(0);
+    private final AtomicLong sendRetries = new AtomicLong(0);
+
+    private final MqHistogram pollLatency = new MqHistogram();
+    private final MqHistogram pollWait = new MqHistogram();
+    private final AtomicLong emptyPolls = new AtomicLong(0);
+    private final AtomicLong pollErrors = new AtomicLong(0);
+
+    private final MqHistogram callbackDuration = new MqHistogram();
+
+    private final MqHistogram ackLatency = new MqHistogram();
+    private final MqHistogram abortLatency = new MqHistogram();
+    private final AtomicLong ackRetries = new AtomicLong(0);
+    private final AtomicLong ackFailures = new AtomicLong(0);
+    private final AtomicLong abortRetries = new AtomicLong(0);
+    private final AtomicLong abortFailures = new AtomicLong(0);
+
+    private final AtomicLong errorQueueDiversions = new AtomicLong(0);
+
+    public MqQueueMetrics(String queueName) { this.queueName = queueName; }
+
+    @Override public String getQueueName() { return queueName; }
+
+    public void recordSend(long nanos) { sendLatency.record(nanos); }
+
+    public void recordSendError(long nanos) {
+        sendLatency.record(nanos);
+        sendErrors.incrementAndGet();
+    }
+
+    public void recordSendRetry() { sendRetries.incrementAndGet(); }
+
+    public void recordPoll(long nanos) { pollLatency.record(nanos); }
+
+    /** a poll that brought back an item after being allowed to wait for one on the server */
+    public void recordPollWait(long nanos) { pollWait.record(nanos); }
+
+    public void recordEmptyPoll() { emptyPolls.incrementAndGet(); }
+
+    public void recordPollError() { pollErrors.incrementAndGet(); }
+
+    public void recordCallback(long nanos) { callbackDuration.record(nanos); }
+
+    /** @param retries how many times the ack was retried, or -1 if it never went through */
+    public void recordAck(long nanos, int retries) {
+        if (retries < 0) {
+            ackFailures.incrementAndGet();
+            return;
+        }
+        ackLatency.record(nanos);
+        if (retries > 0) ackRetries.addAndGet(retries);
+    }
+
+    /** @param retries how many times the abort was retried, or -1 if it never went through */
+    public void recordAbort(long nanos, int retries) {
+        if (retries < 0) {
+            abortFailures.incrementAndGet();
+            return;
+        }
+        abortLatency.record(nanos);
+        if (retries > 0) abortRetries.addAndGet(retries);
+    }
+
+    public void recordErrorQueueDiversions(int count) { errorQueueDiversions.addAndGet(count); }
+
+    @Override public MqHistogramSnapshot getSendLatency() { return sendLatency.snapshot(); }
+    @Override public long getSendErrors() { return sendErrors.get(); }
+    @Override public long getSendRetries() { return sendRetries.get(); }
+
+    @Override public MqHistogramSnapshot getPollLatency() { return pollLatency.snapshot(); }
+    @Override public MqHistogramSnapshot getPollWait() { return pollWait.snapshot(); }
+    @Override public long getPolls() { return pollLatency.getCount() + pollWait.getCount() + emptyPolls.get(); }
+    @Override public long getEmptyPolls() { return emptyPolls.get(); }
+    @Override public long getPollErrors() { return pollErrors.get(); }
+
+    @Override public double getEmptyPollRatio() {
+        final long empty = emptyPolls.get();
+        final long polls = pollLatency.getCount() + pollWait.getCount() + empty;
+        return polls == 0 ? 0 : (double) empty / polls;
+    }
+
+    @Override public MqHistogramSnapshot getCallbackDuration() { return callbackDuration.snapshot(); }
+
+    @Override public MqHistogramSnapshot getAckLatency() { return ackLatency.snapshot(); }
+    @Override public MqHistogramSnapshot getAbortLatency() { return abortLatency.snapshot(); }
+    @Override public long getAckRetries() { return ackRetries.get(); }
+    @Override public long getAckFailures() { return ackFailures.get(); }
+    @Override public long getAbortRetries() { return abortRetries.get(); }
+    @Override public long getAbortFailures() { return abortFailures.get(); }
+
+    @Override public long getErrorQueueDiversions() { return errorQueueDiversions.get(); }
+
+}
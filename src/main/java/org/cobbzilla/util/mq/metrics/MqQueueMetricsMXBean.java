@@ -0,0 +1,50 @@
+package org.cobbzilla.util.mq.metrics;
+
+/**
+ * What JMX shows for each queue. Latencies are histograms of everything since the client started.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public interface MqQueueMetricsMXBean {
+
+    public String getQueueName();
+
+    /** each try to send, successful or not */
+    public MqHistogramSnapshot getSendLatency();
+    public long getSendErrors();
+    public long getSendRetries();
+
+    /**
+     * polls that brought back an item without waiting on the server for one. A poll that comes back empty has
+     * waited on purpose, and isn't timed.
+     */
+    public MqHistogramSnapshot getPollLatency();
+    /**
+     * polls that brought back an item, but were allowed to wait on the server (/open/t=...) for one to arrive.
+     * Their time is mostly how long the queue was empty, not how slow the server was, so it's kept apart.
+     */
+    public MqHistogramSnapshot getPollWait();
+    public long getPolls();
+    public long getEmptyPolls();
+    public double getEmptyPollRatio();
+    public long getPollErrors();
+
+    public MqHistogramSnapshot getCallbackDuration();
+
+    /**
+     * acks sent on their own that went through; most ride along with the next poll's /close/open, and are timed
+     * as part of it. One that failed every try is only counted, in getAckFailures.
+     */
+    public MqHistogramSnapshot getAckLatency();
+    public long getAckRetries();
+    public long getAckFailures();
+
+    public MqHistogramSnapshot getAbortLatency();
+    public long getAbortRetries();
+    public long getAbortFailures();
+
+    /** messages moved to the error queue after their consumer failed */
+    public long getErrorQueueDiversions();
+
+}
@@ -2,9 +2,17 @@ package org.cobbzilla.util.mq.virtual;
 
 import lombok.extern.slf4j.Slf4j;
 import net.rubyeye.xmemcached.exception.MemcachedException;
+import org.cobbzilla.util.mq.MqBatchConsumer;
 import org.cobbzilla.util.mq.MqClient;
+import org.cobbzilla.util.mq.MqCodec;
 import org.cobbzilla.util.mq.MqConsumer;
+import org.cobbzilla.util.mq.MqDelivery;
+import org.cobbzilla.util.mq.MqKeyExtractor;
 import org.cobbzilla.util.mq.MqProducer;
+import org.cobbzilla.util.mq.MqStreamConsumer;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 
 import java.io.IOException;
 import java.util.Properties;
@@ -13,17 +21,61 @@ import java.util.concurrent.TimeoutException;
 @Slf4j
 public class DevNullMqClient implements MqClient {
 
-    private final DevNullMqProducer producer = new DevNullMqProducer();
+    private final DevNullMqProducer<Object> producer = new DevNullMqProducer<>();
 
     @Override public void init(Properties properties) throws IOException {}
 
-    @Override public MqProducer getProducer(String queueName) { return producer; }
+    @Override public MqProducer<Object> getProducer(String queueName) { return producer; }
 
     @Override
-    public void registerConsumer(MqConsumer callback, String queueName, String errorQueueName) {
+    public void registerConsumer(MqConsumer<Object> callback, String queueName, String errorQueueName) {
         log.info("registerConsumer("+callback+", "+queueName+", "+errorQueueName+")");
     }
 
+    @Override
+    public void registerConsumer(MqConsumer<Object> callback, String queueName, String errorQueueName, int concurrency) {
+        log.info("registerConsumer("+callback+", "+queueName+", "+errorQueueName+", "+concurrency+")");
+    }
+
+    @Override
+    public <T> MqProducer<T> getProducer(String queueName, MqCodec<T> codec) {
+        return new DevNullMqProducer<>();
+    }
+
+    @Override
+    public <T> void registerConsumer(MqConsumer<T> callback, MqCodec<T> codec, String queueName, String errorQueueName, int concurrency) {
+        log.info("registerConsumer("+callback+", "+codec+", "+queueName+", "+errorQueueName+", "+concurrency+")");
+    }
+
+    @Override
+    public void registerStreamConsumer(MqStreamConsumer callback, String queueName, String errorQueueName, int concurrency) {
+        log.info("registerStreamConsumer("+callback+", "+queueName+", "+errorQueueName+", "+concurrency+")");
+    }
+
+    @Override
+    public void registerBatchConsumer(MqBatchConsumer callback, String queueName, String errorQueueName, int maxBatchSize, long maxBatchMillis) {
+        log.info("registerBatchConsumer("+callback+", "+queueName+", "+errorQueueName+", "+maxBatchSize+", "+maxBatchMillis+")");
+    }
+
+    @Override
+    public void registerKeyedConsumer(MqConsumer<Object> callback, MqKeyExtractor keyExtractor, String queueName, String errorQueueName, int numStripes) {
+        log.info("registerKeyedConsumer("+callback+", "+keyExtractor+", "+queueName+", "+errorQueueName+", "+numStripes+")");
+    }
+
+    @Override
+    public Publisher<MqDelivery> getPublisher(String queueName, String errorQueueName) {
+        log.info("getPublisher("+queueName+", "+errorQueueName+")");
+        return new Publisher<MqDelivery>() {
+            @Override public void subscribe(Subscriber<? super MqDelivery> subscriber) {
+                // nothing will ever arrive
+                subscriber.onSubscribe(new Subscription() {
+                    @Override public void request(long n) {}
+                    @Override public void cancel() {}
+                });
+            }
+        };
+    }
+
     @Override
     public void flushAllQueues() throws InterruptedException, MemcachedException, TimeoutException {
         log.info("flushAllQueues()");
@@ -6,9 +6,9 @@ import org.cobbzilla.util.mq.MqProducer;
 import java.io.IOException;
 
 @Slf4j
-public class DevNullMqProducer implements MqProducer {
+public class DevNullMqProducer<T> implements MqProducer<T> {
 
-    @Override public void send(Object thing) throws IOException, InterruptedException {
+    @Override public void send(T thing) throws IOException, InterruptedException {
         log.info("send("+thing+")");
     }
 
@@ -0,0 +1,20 @@
+package org.cobbzilla.util.mq.virtual;
+
+/**
+ * An MqClient whose queues are held in memory, in this JVM: for single-node deployments and fast tests, where
+ * messages don't need to outlive the process or be shared with other nodes.
+ *
+ * Messages are handed to consumers as the very objects that were sent, with no copying or encoding, so a
+ * message shouldn't be changed once it has been sent.
+ *
+ * Create it through MqClientFactory like any other client; it takes no properties.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class InMemoryMqClient extends LocalMqClient {
+
+    @Override
+    protected LocalQueue newQueue(String name) { return new InMemoryQueue(name); }
+
+}
@@ -0,0 +1,101 @@
+package org.cobbzilla.util.mq.virtual;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A LocalQueue held in memory: lock-free queues of the messages themselves, with no copying or encoding.
+ *
+ * Sending and reading never lock. Only a reader that finds the queue empty (after spinning briefly) takes the
+ * lock, to wait; a writer takes it only when some reader is waiting. The waiting count is raised before the
+ * waiting reader polls one last time, so an item written in between is either seen by that poll or signalled.
+ *
+ * Aborted items go on a queue of their own, which is read first, so they're delivered again before anything
+ * else. Open items are only held by whoever opened them, so acking one costs nothing.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class InMemoryQueue extends LocalQueue {
+
+    /** polls an empty queue gets before its reader goes to sleep */
+    private static final int SPINS = 64;
+
+    private final ConcurrentLinkedQueue<Object> items = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Object> aborted = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger waiting = new AtomicInteger(0);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    InMemoryQueue(String name) { super(name); }
+
+    @Override
+    public void put(Object message) {
+        if (message == null) throw new NullPointerException("put: message can't be null");
+        items.offer(message);
+        signalWaiting();
+    }
+
+    private void signalWaiting() {
+        if (waiting.get() == 0) return;
+        lock.lock();
+        try {
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return the next item without opening it or waiting for one, or null if the queue is empty */
+    Object poll() {
+        final Object message = aborted.poll();
+        return message != null ? message : items.poll();
+    }
+
+    @Override
+    public Item open(long timeoutMillis) throws InterruptedException {
+        Object message = poll();
+        for (int i=0; message == null && i<SPINS; i++) message = poll();
+        if (message == null) message = await(timeoutMillis);
+        return message == null ? null : new Item(message, 0);
+    }
+
+    private Object await(long timeoutMillis) throws InterruptedException {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lockInterruptibly();
+        waiting.incrementAndGet();
+        try {
+            while (true) {
+                final Object message = poll();
+                if (message != null || nanos <= 0) return message;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+        } finally {
+            waiting.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void ack(Item item) {}
+
+    @Override
+    public void abort(Item item) {
+        aborted.offer(item.getMessage());
+        signalWaiting();
+    }
+
+    @Override
+    public void clear() {
+        while (poll() != null) {}
+    }
+
+    /** counts the items one by one, so it's for monitoring, not for every message */
+    @Override
+    public int size() { return aborted.size() + items.size(); }
+
+}
@@ -0,0 +1,115 @@
+package org.cobbzilla.util.mq.virtual;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * An MqClient that keeps its queues on local disk, for single nodes that need messages to survive a restart
+ * but don't want to run a kestrel server. Each queue is an append-only journal of memory-mapped files in a
+ * directory of its own under journalDir (see JournalQueue); queues already there are replayed on init.
+ *
+ * Writes go to the mapped files, so they survive the process dying as soon as send() returns. To survive the
+ * machine going down as well, set journalSyncMillis, and the journals are forced to disk that often.
+ *
+ * Create it through MqClientFactory like any other client. Two clients must never share a journalDir.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+@Slf4j
+public class JournalMqClient extends LocalMqClient {
+
+    public static final String PROP_JOURNAL_DIR = "journalDir";
+    public static final String PROP_SEGMENT_BYTES = "journalSegmentBytes";
+    public static final String PROP_SYNC_MILLIS = "journalSyncMillis";
+    public static final String PROP_COMPACT_MILLIS = "journalCompactMillis";
+    public static final String PROP_COMPACT_LIVE_PERCENT = "journalCompactLivePercent";
+
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    public static final int DEFAULT_COMPACT_MILLIS = 30 * 1000;
+    public static final int DEFAULT_COMPACT_LIVE_PERCENT = 25;
+
+    /** queue names become directory names, so keep them to characters that are safe everywhere */
+    private static final Pattern QUEUE_NAME = Pattern.compile("[A-Za-z0-9_.+\\-]+");
+
+    private File journalDir;
+    private int segmentBytes;
+    private int compactLivePercent;
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public void init(Properties properties) throws IOException {
+        final String dir = properties.getProperty(PROP_JOURNAL_DIR);
+        if (dir == null) throw new IllegalArgumentException("init: "+PROP_JOURNAL_DIR+" is required");
+        journalDir = new File(dir.trim());
+        if (!journalDir.isDirectory() && !journalDir.mkdirs()) throw new IOException("init: couldn't create "+journalDir);
+
+        segmentBytes = intProperty(properties, PROP_SEGMENT_BYTES, DEFAULT_SEGMENT_BYTES);
+        if (segmentBytes < 4096) throw new IllegalArgumentException("init: "+PROP_SEGMENT_BYTES+" must be at least 4096: "+segmentBytes);
+        compactLivePercent = intProperty(properties, PROP_COMPACT_LIVE_PERCENT, DEFAULT_COMPACT_LIVE_PERCENT);
+        final int syncMillis = intProperty(properties, PROP_SYNC_MILLIS, 0);
+        final int compactMillis = intProperty(properties, PROP_COMPACT_MILLIS, DEFAULT_COMPACT_MILLIS);
+
+        // replay every queue now, so that flushAllQueues and new consumers see them
+        final File[] dirs = journalDir.listFiles();
+        if (dirs != null) {
+            for (File d : dirs) {
+                if (d.isDirectory() && QUEUE_NAME.matcher(d.getName()).matches()) getQueue(d.getName());
+            }
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("journal-housekeeping-"));
+        if (syncMillis > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override public void run() { sync(); }
+            }, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        }
+        if (compactMillis > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override public void run() { compact(); }
+            }, compactMillis, compactMillis, TimeUnit.MILLISECONDS);
+        }
+        log.info("init: JournalMqClient initialized in "+journalDir+", segments of "+segmentBytes+" bytes, syncing every "+syncMillis+"ms, compacting every "+compactMillis+"ms");
+    }
+
+    private int intProperty(Properties properties, String name, int defaultValue) {
+        final String value = properties.getProperty(name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    @Override
+    protected LocalQueue newQueue(String name) throws IOException {
+        if (!QUEUE_NAME.matcher(name).matches()) throw new IllegalArgumentException("newQueue: invalid queue name: "+name);
+        return new JournalQueue(name, new File(journalDir, name), segmentBytes);
+    }
+
+    /** forces every queue's journal to disk */
+    public void sync() {
+        for (LocalQueue queue : getQueues()) ((JournalQueue) queue).force();
+    }
+
+    /** deletes dead journal segments, and compacts mostly-dead ones; this runs every journalCompactMillis */
+    public void compact() {
+        for (LocalQueue queue : getQueues()) {
+            try {
+                ((JournalQueue) queue).compact(compactLivePercent);
+            } catch (Exception e) {
+                log.error("compact: error compacting "+queue.getName()+": "+e, e);
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        if (scheduler != null) scheduler.shutdownNow();
+        super.shutdown();
+    }
+
+}
@@ -0,0 +1,403 @@
+package org.cobbzilla.util.mq.virtual;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A LocalQueue kept in an append-only journal of memory-mapped segment files, in a directory of its own.
+ *
+ * Every put appends a PUT record and every ack an ACK record; open and abort only happen in memory. So an item
+ * that was open when the process died has no ACK, and is delivered again when the journal is replayed. Replay
+ * reads the segments in order, drops every item that was acked, and queues the rest in the order they were
+ * first put.
+ *
+ * Only the location of each live item is kept in memory: its payload is read back from the mapped segment when
+ * it's opened. Strings are stored as UTF-8, byte[] as they are, and anything else Serializable serialized.
+ *
+ * A segment is unmapped and deleted once it and every older segment hold no live items. An ACK can only refer to a PUT in
+ * its own or an older segment, so deleting segments oldest first never brings an acked item back. When the
+ * oldest segment is mostly dead but held up by a few long-lived items, compact() copies those items to the
+ * head of the journal (keeping their ids, so replay still sees them in their original order) and deletes it.
+ *
+ * Appends and all segment bookkeeping are serialized by one lock per queue. Waiting for and handing out items
+ * goes through an InMemoryQueue of entries, which doesn't lock.
+ *
+ * It can also be used on its own, as a durable local queue (KestrelClient's send spool is one).
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+@Slf4j
+public class JournalQueue extends LocalQueue {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** bytes each item takes in the journal besides its payload */
+    public static final int RECORD_OVERHEAD = JournalSegment.HEADER_LENGTH;
+
+    private static final byte STRING = 0;
+    private static final byte BYTES = 1;
+    private static final byte SERIALIZED = 2;
+
+    private static class Location {
+        final JournalSegment segment;
+        final int offset;
+        Location(JournalSegment segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    private static class Entry {
+        final long id;
+        final byte encoding;
+        final int length;
+        volatile Location location;
+        Entry(long id, byte encoding, int length, Location location) {
+            this.id = id;
+            this.encoding = encoding;
+            this.length = length;
+            this.location = location;
+        }
+    }
+
+    private final File dir;
+    private final int segmentBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // guarded by lock
+    private final ArrayDeque<JournalSegment> segments = new ArrayDeque<>();
+    private long nextId = 1;
+    private boolean closed = false;
+
+    private volatile JournalSegment head;
+    private final ConcurrentHashMap<Long, Entry> live = new ConcurrentHashMap<>();
+    private final InMemoryQueue pending;
+
+    /** opens the queue's journal in dir, replaying whatever is already there */
+    public JournalQueue(String name, File dir, int segmentBytes) throws IOException {
+        super(name);
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.pending = new InMemoryQueue(name);
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("JournalQueue: couldn't create "+dir);
+        replay();
+    }
+
+    private void replay() throws IOException {
+        final List<File> files = new ArrayList<>();
+        final File[] listed = dir.listFiles();
+        if (listed != null) {
+            for (File f : listed) {
+                if (JournalSegment.numberOf(f) >= 0) files.add(f);
+            }
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override public int compare(File a, File b) { return Long.compare(JournalSegment.numberOf(a), JournalSegment.numberOf(b)); }
+        });
+
+        final Map<Long, Entry> entries = new HashMap<>();
+        long maxId = 0;
+        for (File f : files) {
+            final JournalSegment segment = JournalSegment.open(f);
+            final long[] max = { maxId };
+            final boolean clean = segment.replay(new JournalSegment.RecordHandler() {
+                @Override public void onRecord(byte type, byte encoding, long id, int offset, int payloadLength) {
+                    if (type == JournalSegment.PUT) {
+                        entries.put(id, new Entry(id, encoding, payloadLength, new Location(segment, offset)));
+                    } else {
+                        entries.remove(id);
+                    }
+                    max[0] = Math.max(max[0], id);
+                }
+            });
+            if (!clean) log.warn("replay: "+getName()+"/"+f.getName()+" ends with a damaged record, ignoring everything after it");
+            maxId = max[0];
+            segments.add(segment);
+        }
+        nextId = maxId + 1;
+
+        final Entry[] sorted = entries.values().toArray(new Entry[entries.size()]);
+        Arrays.sort(sorted, new Comparator<Entry>() {
+            @Override public int compare(Entry a, Entry b) { return Long.compare(a.id, b.id); }
+        });
+        for (Entry entry : sorted) {
+            entry.location.segment.addLive(entry.length);
+            live.put(entry.id, entry);
+            pending.put(entry);
+        }
+
+        if (segments.isEmpty()) segments.add(JournalSegment.create(dir, 1, segmentBytes));
+        head = segments.getLast();
+        dropDeadSegments();
+        if (!files.isEmpty()) log.info("replay: "+getName()+" has "+sorted.length+" items in "+segments.size()+" segments");
+    }
+
+    @Override
+    public void put(Object message) throws IOException {
+        offer(message, Long.MAX_VALUE);
+    }
+
+    /**
+     * Puts message, unless that needs a new file and the journal's files would then take up more than
+     * maxDiskBytes. Emptied files are deleted before giving up. The check and the append happen under one lock.
+     * @return false if the message wasn't put, for lack of room
+     */
+    public boolean offer(Object message, long maxDiskBytes) throws IOException {
+        final byte encoding;
+        final byte[] payload;
+        if (message instanceof String) {
+            encoding = STRING;
+            payload = ((String) message).getBytes(UTF8);
+        } else if (message instanceof byte[]) {
+            encoding = BYTES;
+            payload = (byte[]) message;
+        } else if (message instanceof Serializable) {
+            encoding = SERIALIZED;
+            payload = serialize(message);
+        } else {
+            throw new IllegalArgumentException("put: can't store a "+(message == null ? null : message.getClass().getName())+", it isn't Serializable");
+        }
+
+        lock.lock();
+        try {
+            checkOpen();
+            if (!head.fits(payload.length)) {
+                final long needed = newSegmentBytes(payload.length);
+                if (diskBytes() + needed > maxDiskBytes) {
+                    dropDeadSegments();
+                    if (diskBytes() + needed > maxDiskBytes) return false;
+                }
+            }
+            final long id = nextId++;
+            final Location location = append(JournalSegment.PUT, encoding, id, payload);
+            location.segment.addLive(payload.length);
+            final Entry entry = new Entry(id, encoding, payload.length, location);
+            live.put(id, entry);
+            // still under the lock, so items are handed out in the order of their ids
+            pending.put(entry);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int newSegmentBytes(int payloadLength) { return Math.max(segmentBytes, JournalSegment.HEADER_LENGTH + payloadLength); }
+
+    // must hold lock
+    private Location append(byte type, byte encoding, long id, byte[] payload) throws IOException {
+        final int length = payload == null ? 0 : payload.length;
+        JournalSegment segment = head;
+        if (!segment.fits(length)) {
+            segment.force();
+            segment = JournalSegment.create(dir, segment.getNumber() + 1, newSegmentBytes(length));
+            segments.add(segment);
+            head = segment;
+            dropDeadSegments();
+        }
+        return new Location(segment, segment.append(type, encoding, id, payload));
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) throw new IOException("queue "+getName()+" is closed");
+    }
+
+    @Override
+    public Item open(long timeoutMillis) throws InterruptedException, IOException {
+        while (true) {
+            final Item item = pending.open(timeoutMillis);
+            if (item == null) return null;
+            final Entry entry = (Entry) item.getMessage();
+            // skip anything acked or cleared while it waited, e.g. by clear() racing with us
+            if (live.containsKey(entry.id)) return new Item(read(entry), entry.id);
+        }
+    }
+
+    private Object read(Entry entry) throws IOException {
+        byte[] payload;
+        while (true) {
+            final Location location = entry.location;
+            payload = location.segment.readPayload(location.offset);
+            if (payload != null) break;
+            // compact() moved the item and closed the segment it was in while we read: read it from its new place
+            if (entry.location == location) throw new IOException("read: queue "+getName()+" is closed");
+        }
+        switch (entry.encoding) {
+            case STRING: return new String(payload, UTF8);
+            case BYTES: return payload;
+            default:
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+                    return in.readObject();
+                } catch (Exception e) {
+                    // hand over the bytes, so the consumer can fail it to the error queue rather than us losing it
+                    log.error("read: error deserializing item "+entry.id+" of "+getName()+", passing on its bytes: "+e);
+                    return payload;
+                }
+        }
+    }
+
+    private static byte[] serialize(Object message) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public void ack(Item item) throws IOException {
+        lock.lock();
+        try {
+            checkOpen();
+            final Entry entry = live.get(item.getId());
+            if (entry == null) return;
+            append(JournalSegment.ACK, (byte) 0, entry.id, null);
+            live.remove(entry.id);
+            final JournalSegment segment = entry.location.segment;
+            segment.removeLive(entry.length);
+            // give the disk space back as soon as the oldest files are drained, not when the next file is started
+            if (segment.getLiveCount() == 0) dropDeadSegments();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void abort(Item item) {
+        final Entry entry = live.get(item.getId());
+        if (entry != null) pending.abort(new Item(entry, entry.id));
+    }
+
+    @Override
+    public void clear() throws IOException {
+        Entry entry;
+        while ((entry = (Entry) pending.poll()) != null) {
+            ack(new Item(null, entry.id));
+        }
+    }
+
+    @Override
+    public int size() { return pending.size(); }
+
+    /** @return how many segment files the journal is using */
+    public int segmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return the disk space the journal's files take up, in bytes; deleted files are unmapped, so they don't count */
+    public long diskBytes() {
+        lock.lock();
+        try {
+            long total = 0;
+            for (JournalSegment segment : segments) total += segment.size();
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** writes whatever has been appended through to disk */
+    public void force() {
+        final JournalSegment segment = head;
+        if (segment != null) segment.force();
+    }
+
+    // must hold lock
+    private void dropDeadSegments() {
+        while (segments.size() > 1 && segments.getFirst().getLiveCount() == 0) {
+            final JournalSegment dead = segments.removeFirst();
+            dead.close();
+            if (!dead.getFile().delete()) log.warn("dropDeadSegments: couldn't delete "+dead.getFile());
+        }
+    }
+
+    /**
+     * Deletes segments that hold no live items. If the oldest segment is still held up by items that take less
+     * than livePercent of its size, they're copied to the head of the journal and it's deleted too.
+     */
+    public void compact(int livePercent) throws IOException {
+        lock.lock();
+        try {
+            if (closed) return;
+            dropDeadSegments();
+            if (segments.size() < 2) return;
+            final JournalSegment oldest = segments.getFirst();
+            if (oldest.getLiveBytes() * 100 >= (long) oldest.size() * livePercent) return;
+
+            int moved = 0;
+            for (Entry entry : live.values()) {
+                final Location location = entry.location;
+                if (location.segment != oldest) continue;
+                final byte[] payload = location.segment.readPayload(location.offset);
+                final Location copy = append(JournalSegment.PUT, entry.encoding, entry.id, payload);
+                copy.segment.addLive(entry.length);
+                oldest.removeLive(entry.length);
+                entry.location = copy;
+                moved++;
+            }
+            // the copies have to be on disk before the originals go away
+            force();
+            dropDeadSegments();
+            log.info("compact: "+getName()+": moved "+moved+" items out of "+oldest+", "+segments.size()+" segments left");
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            force();
+            for (JournalSegment segment : segments) segment.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void delete() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            for (JournalSegment segment : segments) {
+                segment.close();
+                if (!segment.getFile().delete()) log.warn("delete: couldn't delete "+segment.getFile());
+            }
+            segments.clear();
+            live.clear();
+            pending.clear();
+        } finally {
+            lock.unlock();
+        }
+        if (!dir.delete()) log.warn("delete: couldn't delete "+dir);
+    }
+
+}
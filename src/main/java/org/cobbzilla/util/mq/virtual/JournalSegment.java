@@ -0,0 +1,244 @@
+package org.cobbzilla.util.mq.virtual;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * One file of a queue's journal, mapped into memory in full. Records are appended one after another:
+ *
+ *     type (1 byte) | encoding (1) | id (8) | payload length (4) | CRC32 (4) | payload
+ *
+ * The file is created at its full size, so it's zero-filled past the last record: a type of 0 marks the end.
+ * The CRC covers the header fields and the payload, so a record that was only partly written when the process
+ * died is recognized as the end too.
+ *
+ * Appends must be serialized by the caller; reads are safe from any thread once the record's location has been
+ * published to it.
+ *
+ * A mapping otherwise lives until the garbage collector gets to the buffer, holding on to the disk space of a
+ * file that's already deleted, so close() unmaps it right away. Reads share a lock that close() takes for
+ * itself, so nobody is left reading from a mapping that's gone: once a segment is closed, readPayload
+ * returns null.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+@Slf4j
+class JournalSegment {
+
+    public static final int HEADER_LENGTH = 18;
+    public static final String SUFFIX = ".journal";
+
+    public static final byte PUT = 1;
+    public static final byte ACK = 2;
+
+    private final long number;
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final ReentrantReadWriteLock mapLock = new ReentrantReadWriteLock();
+    private boolean closed = false; // guarded by mapLock
+
+    // guarded by the queue's lock
+    private int position = 0;
+    private int liveCount = 0;
+    private long liveBytes = 0;
+
+    private JournalSegment(long number, File file, MappedByteBuffer buffer) {
+        this.number = number;
+        this.file = file;
+        this.buffer = buffer;
+    }
+
+    public static File fileFor(File dir, long number) { return new File(dir, String.format("%020d", number) + SUFFIX); }
+
+    /** @return the segment's number, or -1 if the file isn't a journal segment */
+    public static long numberOf(File file) {
+        final String name = file.getName();
+        if (!name.endsWith(SUFFIX)) return -1;
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static JournalSegment create(File dir, long number, int size) throws IOException {
+        final File file = fileFor(dir, number);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+            return new JournalSegment(number, file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    public static JournalSegment open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            return new JournalSegment(numberOf(file), file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length()));
+        }
+    }
+
+    public long getNumber() { return number; }
+    public File getFile() { return file; }
+    public int size() { return buffer.capacity(); }
+
+    public int getPosition() { return position; }
+    public void setPosition(int position) { this.position = position; }
+
+    public int getLiveCount() { return liveCount; }
+    public long getLiveBytes() { return liveBytes; }
+
+    public void addLive(int payloadLength) {
+        liveCount++;
+        liveBytes += HEADER_LENGTH + payloadLength;
+    }
+
+    public void removeLive(int payloadLength) {
+        liveCount--;
+        liveBytes -= HEADER_LENGTH + payloadLength;
+    }
+
+    public boolean fits(int payloadLength) { return position + HEADER_LENGTH + payloadLength <= buffer.capacity(); }
+
+    /** @return the offset the record was written at */
+    public int append(byte type, byte encoding, long id, byte[] payload) {
+        final int offset = position;
+        final int length = payload == null ? 0 : payload.length;
+        final ByteBuffer b = buffer.duplicate();
+        b.position(offset + 1);
+        b.put(encoding).putLong(id).putInt(length).putInt(crc(type, encoding, id, length, payload));
+        if (length > 0) b.put(payload);
+        // the type goes in last: until it's there, the record doesn't exist
+        buffer.put(offset, type);
+        position = offset + HEADER_LENGTH + length;
+        return offset;
+    }
+
+    /** @return the payload of the record at offset, or null if the segment has been closed */
+    public byte[] readPayload(int offset) {
+        mapLock.readLock().lock();
+        try {
+            if (closed) return null;
+            final ByteBuffer b = buffer.duplicate();
+            b.position(offset + 10);
+            final byte[] payload = new byte[b.getInt()];
+            b.position(offset + HEADER_LENGTH);
+            b.get(payload);
+            return payload;
+        } finally {
+            mapLock.readLock().unlock();
+        }
+    }
+
+    public void force() {
+        mapLock.readLock().lock();
+        try {
+            if (!closed) buffer.force();
+        } finally {
+            mapLock.readLock().unlock();
+        }
+    }
+
+    /** unmaps the file; the segment can't be used after this */
+    public void close() {
+        mapLock.writeLock().lock();
+        try {
+            if (closed) return;
+            closed = true;
+            unmap(buffer);
+        } finally {
+            mapLock.writeLock().unlock();
+        }
+    }
+
+    public interface RecordHandler {
+        public void onRecord(byte type, byte encoding, long id, int offset, int payloadLength);
+    }
+
+    /**
+     * Reads every record from the start of the segment, up to the first one that's missing or damaged,
+     * and leaves the segment positioned to append after it.
+     * @return false if the scan stopped at a damaged record rather than at the end of what was written
+     */
+    public boolean replay(RecordHandler handler) {
+        final ByteBuffer b = buffer.duplicate();
+        int offset = 0;
+        try {
+            while (offset + HEADER_LENGTH <= b.capacity()) {
+                b.position(offset);
+                final byte type = b.get();
+                if (type == 0) return true;
+                final byte encoding = b.get();
+                final long id = b.getLong();
+                final int length = b.getInt();
+                final int crc = b.getInt();
+                if ((type != PUT && type != ACK) || length < 0 || offset + HEADER_LENGTH + length > b.capacity()) return false;
+                final byte[] payload = new byte[length];
+                b.get(payload);
+                if (crc(type, encoding, id, length, payload) != crc) return false;
+                handler.onRecord(type, encoding, id, offset, length);
+                offset += HEADER_LENGTH + length;
+            }
+            return true;
+
+        } finally {
+            position = offset;
+        }
+    }
+
+    private static int crc(byte type, byte encoding, long id, int length, byte[] payload) {
+        final CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(encoding);
+        for (int shift = 56; shift >= 0; shift -= 8) crc.update((int) (id >>> shift));
+        for (int shift = 24; shift >= 0; shift -= 8) crc.update(length >>> shift);
+        if (payload != null) crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    // there's no public API for unmapping: Java 9 and later have Unsafe.invokeCleaner, older JVMs the buffer's cleaner
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        } catch (Exception e) {
+            invokeCleaner = null; // before Java 9
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } else {
+                final Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                final Object c = cleaner.invoke(buffer);
+                if (c != null) c.getClass().getMethod("clean").invoke(c);
+            }
+        } catch (Exception e) {
+            // not fatal: the mapping goes away when the buffer is collected
+            log.warn("unmap: couldn't unmap, leaving it to the garbage collector: "+e);
+        }
+    }
+
+    @Override public String toString() { return file.getName(); }
+
+}
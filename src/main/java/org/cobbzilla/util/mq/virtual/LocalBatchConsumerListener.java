@@ -0,0 +1,60 @@
+package org.cobbzilla.util.mq.virtual;
+
+import org.cobbzilla.util.mq.MqBatchConsumer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects open items into a batch, until it holds maxBatchSize of them or maxBatchMillis have passed since
+ * the first arrived, then hands the batch over and settles it as a unit.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class LocalBatchConsumerListener extends LocalListener {
+
+    private final MqBatchConsumer callback;
+    private final int maxBatchSize;
+    private final long maxBatchMillis;
+
+    public LocalBatchConsumerListener(LocalMqClient client, MqBatchConsumer callback, String queueName,
+                                      String errorQueueName, int maxBatchSize, long maxBatchMillis) {
+        super(client, queueName, errorQueueName);
+        this.callback = callback;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchMillis = maxBatchMillis;
+    }
+
+    @Override
+    protected void handle(LocalQueue queue, LocalQueue.Item first) throws InterruptedException {
+        final List<LocalQueue.Item> items = new ArrayList<>(Math.min(maxBatchSize, 1024));
+        items.add(first);
+        final long deadline = System.currentTimeMillis() + maxBatchMillis;
+        try {
+            while (items.size() < maxBatchSize) {
+                final long wait = deadline - System.currentTimeMillis();
+                final LocalQueue.Item item = queue.open(Math.max(wait, 0));
+                if (item == null) break;
+                items.add(item);
+            }
+        } catch (IOException e) {
+            // hand over what we have; the next read will run into the same error and deal with it
+        } catch (InterruptedException e) {
+            for (LocalQueue.Item item : items) client.abort(queue, item);
+            throw e;
+        }
+
+        final List<Object> messages = new ArrayList<>(items.size());
+        for (LocalQueue.Item item : items) messages.add(item.getMessage());
+        try {
+            callback.onMessages(messages);
+        } catch (Exception e) {
+            for (LocalQueue.Item item : items) client.fail(queue, errorQueueName, item, e);
+            return;
+        }
+        for (LocalQueue.Item item : items) client.ack(queue, item);
+    }
+
+}
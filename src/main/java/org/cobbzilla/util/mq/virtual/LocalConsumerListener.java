@@ -0,0 +1,31 @@
+package org.cobbzilla.util.mq.virtual;
+
+import org.cobbzilla.util.mq.MqConsumer;
+
+/**
+ * Hands one message at a time to a consumer, acking it once the consumer returns.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+class LocalConsumerListener extends LocalListener {
+
+    private final MqConsumer<Object> callback;
+
+    public LocalConsumerListener(LocalMqClient client, MqConsumer<Object> callback, String queueName, String errorQueueName) {
+        super(client, queueName, errorQueueName);
+        this.callback = callback;
+    }
+
+    @Override
+    protected void handle(LocalQueue queue, LocalQueue.Item item) {
+        try {
+            callback.onMessage(item.getMessage());
+        } catch (Exception e) {
+            client.fail(queue, errorQueueName, item, e);
+            return;
+        }
+        client.ack(queue, item);
+    }
+
+}
@@ -0,0 +1,103 @@
+package org.cobbzilla.util.mq.virtual;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.mq.MqConsumer;
+import org.cobbzilla.util.mq.MqKeyExtractor;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a queue in order on one thread, and runs the consumer on several stripes: every message goes to the
+ * stripe its key hashes to, and each stripe is a single thread, so messages with equal keys are handled in
+ * queue order while different keys run in parallel.
+ *
+ * Messages waiting on or running in a stripe stay open, up to maxOpen of them; after that, reading waits
+ * until one is settled. Each message is acked as soon as it has been handled.
+ *
+ * If the key extractor throws, the message gets the null key, as with kestrel's keyed listener, rather than
+ * failing before its consumer ever sees it.
+ *
+ * Per-key order holds as long as messages succeed. A failed message goes to the error queue; without one it
+ * is aborted, and comes back after later messages with the same key may already have been handled.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+@Slf4j
+class LocalKeyedConsumerListener extends LocalListener {
+
+    private final MqConsumer<Object> callback;
+    private final MqKeyExtractor keyExtractor;
+    private final ExecutorService[] stripes;
+    private final Semaphore open;
+
+    public LocalKeyedConsumerListener(LocalMqClient client, MqConsumer<Object> callback, MqKeyExtractor keyExtractor,
+                                      String queueName, String errorQueueName, int numStripes, int maxOpen) {
+        super(client, queueName, errorQueueName);
+        this.callback = callback;
+        this.keyExtractor = keyExtractor;
+        this.open = new Semaphore(maxOpen);
+        this.stripes = new ExecutorService[numStripes];
+        for (int i=0; i<numStripes; i++) {
+            stripes[i] = Executors.newSingleThreadExecutor(LocalMqClient.daemonThreads("local-keyed-stripe-"));
+        }
+    }
+
+    @Override
+    protected void handle(final LocalQueue queue, final LocalQueue.Item item) throws InterruptedException {
+        Object key;
+        try {
+            key = keyExtractor.getKey(item.getMessage());
+        } catch (RuntimeException e) {
+            log.warn("handle: key extractor failed, using the null key: "+e);
+            key = null;
+        }
+
+        try {
+            open.acquire();
+        } catch (InterruptedException e) {
+            client.abort(queue, item);
+            throw e;
+        }
+
+        final int hash = key == null ? 0 : key.hashCode();
+        final ExecutorService stripe = stripes[(hash & Integer.MAX_VALUE) % stripes.length];
+        try {
+            stripe.execute(new Runnable() {
+                @Override public void run() {
+                    try {
+                        callback.onMessage(item.getMessage());
+                        client.ack(queue, item);
+                    } catch (Exception e) {
+                        client.fail(queue, errorQueueName, item, e);
+                    } finally {
+                        open.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            open.release();
+            client.abort(queue, item);
+        }
+    }
+
+    /** lets each stripe finish the messages already handed to it */
+    @Override
+    protected void finish() {
+        for (ExecutorService stripe : stripes) stripe.shutdown();
+        try {
+            for (ExecutorService stripe : stripes) {
+                if (!stripe.awaitTermination(POLL_WAIT, TimeUnit.MILLISECONDS)) {
+                    log.warn("finish: a stripe of "+queueName+" didn't finish in time");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
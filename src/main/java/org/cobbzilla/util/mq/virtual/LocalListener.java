@@ -0,0 +1,76 @@
+package org.cobbzilla.util.mq.virtual;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+
+/**
+ * Base class for the threads that read a LocalQueue on behalf of a consumer.
+ *
+ * The queue is looked up again for every read, so a listener whose queue was deleted goes on reading the
+ * new one. A read waits at most POLL_WAIT, so a stopped listener exits within that long.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+@Slf4j
+abstract class LocalListener implements Runnable {
+
+    /** how long a read waits before the listener checks whether it should stop */
+    public static final long POLL_WAIT = 1000;
+
+    protected final LocalMqClient client;
+    protected final String queueName;
+    protected final String errorQueueName;
+
+    protected volatile boolean alive = true;
+
+    protected LocalListener(LocalMqClient client, String queueName, String errorQueueName) {
+        this.client = client;
+        this.queueName = queueName;
+        this.errorQueueName = errorQueueName;
+    }
+
+    public void stop() { alive = false; }
+
+    @Override
+    public void run() {
+        try {
+            while (alive) {
+                final LocalQueue queue = client.getQueue(queueName);
+                final LocalQueue.Item item;
+                try {
+                    item = queue.open(POLL_WAIT);
+                } catch (IOException e) {
+                    log.error("run: error reading "+queueName+": "+e, e);
+                    // sleep for a bit so we don't spin if the queue is broken
+                    Thread.sleep(2000);
+                    continue;
+                }
+                if (item == null) continue;
+                if (!alive) {
+                    client.abort(queue, item);
+                    break;
+                }
+                handle(queue, item);
+            }
+        } catch (InterruptedException e) {
+            log.info("run: interrupted, exiting");
+
+        } catch (IllegalStateException e) {
+            // the client shut down between our last check and the read
+            if (alive) {
+                log.error("run: "+e, e);
+            }
+
+        } finally {
+            finish();
+        }
+    }
+
+    /** handles an open item, and settles it (or arranges for it to be settled) */
+    protected abstract void handle(LocalQueue queue, LocalQueue.Item item) throws InterruptedException;
+
+    protected void finish() {}
+
+}
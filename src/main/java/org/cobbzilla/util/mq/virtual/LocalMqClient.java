@@ -0,0 +1,274 @@
+package org.cobbzilla.util.mq.virtual;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.mq.MqBatchConsumer;
+import org.cobbzilla.util.mq.MqClient;
+import org.cobbzilla.util.mq.MqCodec;
+import org.cobbzilla.util.mq.MqConsumer;
+import org.cobbzilla.util.mq.MqDelivery;
+import org.cobbzilla.util.mq.MqKeyExtractor;
+import org.cobbzilla.util.mq.MqProducer;
+import org.cobbzilla.util.mq.MqStreamConsumer;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An MqClient whose queues live in this JVM, for single-node deployments and tests: no server, no network
+ * hop. Subclasses decide where the queues are kept (see InMemoryMqClient).
+ *
+ * Reads are reliable as with kestrel: a listener opens an item, hands it to the consumer, and acks it once
+ * the consumer returns. If the consumer throws, the item goes to the error queue, or back to the head of the
+ * queue if there is none. Queues are created when first used, and every client sees only its own queues.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+@Slf4j
+public abstract class LocalMqClient implements MqClient {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final AtomicInteger threadCount = new AtomicInteger(0);
+
+    /** how many messages a keyed consumer holds open at once, across all of its stripes */
+    public static final int KEYED_MAX_OPEN = 1024;
+
+    private final ConcurrentHashMap<String, LocalQueue> queues = new ConcurrentHashMap<>();
+
+    // guarded by listeners
+    private final List<LocalListener> listeners = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean shutdown = false;
+
+    /** creates the named queue; called at most once per name until the queue is deleted */
+    protected abstract LocalQueue newQueue(String name) throws IOException;
+
+    @Override public void init(Properties properties) throws IOException {}
+
+    public LocalQueue getQueue(String name) {
+        final LocalQueue queue = queues.get(name);
+        if (queue != null) return queue;
+        synchronized (queues) {
+            final LocalQueue existing = queues.get(name);
+            if (existing != null) return existing;
+            if (shutdown) throw new IllegalStateException("getQueue: client has been shut down");
+            final LocalQueue created;
+            try {
+                created = newQueue(name);
+            } catch (IOException e) {
+                throw new IllegalStateException("getQueue: error creating queue "+name+": "+e, e);
+            }
+            queues.put(name, created);
+            return created;
+        }
+    }
+
+    protected List<LocalQueue> getQueues() { return new ArrayList<>(queues.values()); }
+
+    void put(String queueName, Object message) throws IOException { getQueue(queueName).put(message); }
+
+    @Override
+    public MqProducer<Object> getProducer(final String queueName) {
+        return new MqProducer<Object>() {
+            @Override public void send(Object message) throws IOException { put(queueName, message); }
+        };
+    }
+
+    @Override
+    public <T> MqProducer<T> getProducer(final String queueName, final MqCodec<T> codec) {
+        return new MqProducer<T>() {
+            @Override public void send(T message) throws IOException { put(queueName, codec.encode(message)); }
+        };
+    }
+
+    @Override
+    public void registerConsumer(MqConsumer<Object> callback, String queueName, String errorQueueName) {
+        registerConsumer(callback, queueName, errorQueueName, 1);
+    }
+
+    @Override
+    public void registerConsumer(MqConsumer<Object> callback, String queueName, String errorQueueName, int concurrency) {
+        if (concurrency < 1) throw new IllegalArgumentException("registerConsumer: concurrency must be at least 1: "+concurrency);
+        for (int i=0; i<concurrency; i++) {
+            startListener(new LocalConsumerListener(this, callback, queueName, errorQueueName), "local-consumer-");
+        }
+    }
+
+    @Override
+    public <T> void registerConsumer(final MqConsumer<T> callback, final MqCodec<T> codec,
+                                     String queueName, String errorQueueName, int concurrency) {
+        registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception {
+                callback.onMessage(codec.decode(toBytes(message)));
+            }
+        }, queueName, errorQueueName, concurrency);
+    }
+
+    @Override
+    public void registerStreamConsumer(final MqStreamConsumer callback, String queueName, String errorQueueName, int concurrency) {
+        registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception {
+                final byte[] bytes = toBytes(message);
+                callback.onMessage(new ByteArrayInputStream(bytes), bytes.length);
+            }
+        }, queueName, errorQueueName, concurrency);
+    }
+
+    private static byte[] toBytes(Object message) {
+        if (message instanceof byte[]) return (byte[]) message;
+        if (message instanceof String) return ((String) message).getBytes(UTF8);
+        throw new IllegalArgumentException("toBytes: expected raw bytes, got "+(message == null ? null : message.getClass().getName()));
+    }
+
+    @Override
+    public void registerBatchConsumer(MqBatchConsumer callback, String queueName, String errorQueueName, int maxBatchSize, long maxBatchMillis) {
+        if (maxBatchSize < 1) throw new IllegalArgumentException("registerBatchConsumer: maxBatchSize must be at least 1: "+maxBatchSize);
+        startListener(new LocalBatchConsumerListener(this, callback, queueName, errorQueueName, maxBatchSize, maxBatchMillis), "local-batch-consumer-");
+    }
+
+    @Override
+    public void registerKeyedConsumer(MqConsumer<Object> callback, MqKeyExtractor keyExtractor, String queueName, String errorQueueName, int numStripes) {
+        if (numStripes < 1) throw new IllegalArgumentException("registerKeyedConsumer: numStripes must be at least 1: "+numStripes);
+        startListener(new LocalKeyedConsumerListener(this, callback, keyExtractor, queueName, errorQueueName, numStripes, KEYED_MAX_OPEN), "local-keyed-consumer-");
+    }
+
+    @Override
+    public Publisher<MqDelivery> getPublisher(final String queueName, final String errorQueueName) {
+        return new Publisher<MqDelivery>() {
+            @Override public void subscribe(Subscriber<? super MqDelivery> subscriber) {
+                if (subscriber == null) throw new NullPointerException("subscribe: subscriber can't be null");
+                final LocalSubscription subscription = new LocalSubscription(LocalMqClient.this, subscriber, queueName, errorQueueName);
+                subscriber.onSubscribe(subscription);
+                startListener(subscription, "local-subscription-");
+            }
+        };
+    }
+
+    void startListener(LocalListener listener, String threadPrefix) {
+        final Thread thread = daemonThreads(threadPrefix).newThread(listener);
+        synchronized (listeners) {
+            if (shutdown) throw new IllegalStateException("startListener: client has been shut down");
+            listeners.add(listener);
+            threads.add(thread);
+        }
+        thread.start();
+    }
+
+    static ThreadFactory daemonThreads(final String prefix) {
+        return new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r);
+                t.setDaemon(true);
+                t.setName(prefix + threadCount.getAndIncrement());
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Settles an item the consumer failed: it moves to the error queue, or back onto its own queue if there
+     * is no error queue, or if it couldn't be written there.
+     */
+    void fail(LocalQueue queue, String errorQueueName, LocalQueue.Item item, Exception e) {
+        log.error("fail: message from "+queue.getName()+" failed: "+e, e);
+        if (errorQueueName != null) {
+            try {
+                getQueue(errorQueueName).put(item.getMessage());
+                queue.ack(item);
+                return;
+            } catch (Exception fatal) {
+                log.error("fail: error moving message to "+errorQueueName+", putting it back on "+queue.getName()+": "+fatal, fatal);
+            }
+        }
+        abort(queue, item);
+    }
+
+    void ack(LocalQueue queue, LocalQueue.Item item) {
+        try {
+            queue.ack(item);
+        } catch (IOException e) {
+            // the item stays in the queue and will be delivered again when it's reopened
+            log.error("ack: error acking message from "+queue.getName()+": "+e, e);
+        }
+    }
+
+    void abort(LocalQueue queue, LocalQueue.Item item) {
+        try {
+            queue.abort(item);
+        } catch (IOException e) {
+            log.error("abort: error aborting message from "+queue.getName()+": "+e, e);
+        }
+    }
+
+    @Override
+    public void flushAllQueues() {
+        for (LocalQueue queue : getQueues()) {
+            try {
+                queue.clear();
+            } catch (IOException e) {
+                log.error("flushAllQueues: error clearing "+queue.getName()+": "+e, e);
+            }
+        }
+    }
+
+    /** Drops the queue and everything in it. Listeners on it keep listening, to a new, empty queue. */
+    @Override
+    public void deleteQueue(String queueName) {
+        final LocalQueue queue;
+        synchronized (queues) {
+            queue = queues.remove(queueName);
+        }
+        if (queue == null) return;
+        try {
+            queue.delete();
+        } catch (IOException e) {
+            log.error("deleteQueue: error deleting "+queueName+": "+e, e);
+        }
+    }
+
+    /**
+     * Stops all registered consumers, waiting for each to finish the message it's on, then closes the queues.
+     * Messages still in the queues are left where they are.
+     */
+    @Override
+    public void shutdown() throws IOException {
+        final List<LocalListener> stopping;
+        final List<Thread> joining;
+        synchronized (listeners) {
+            shutdown = true;
+            stopping = new ArrayList<>(listeners);
+            joining = new ArrayList<>(threads);
+            listeners.clear();
+            threads.clear();
+        }
+        for (LocalListener listener : stopping) listener.stop();
+        for (Thread thread : joining) {
+            try {
+                thread.join(2 * LocalListener.POLL_WAIT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        synchronized (queues) {
+            for (LocalQueue queue : queues.values()) {
+                try {
+                    queue.close();
+                } catch (IOException e) {
+                    log.error("shutdown: error closing "+queue.getName()+": "+e, e);
+                }
+            }
+            queues.clear();
+        }
+    }
+
+}
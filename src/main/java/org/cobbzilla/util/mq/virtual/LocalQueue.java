@@ -0,0 +1,64 @@
+package org.cobbzilla.util.mq.virtual;
+
+import java.io.IOException;
+
+/**
+ * One queue of a LocalMqClient, with kestrel's reliable-read semantics: open() takes the item at the head of
+ * the queue and holds it open; ack() drops it for good, and abort() puts it back at the head, to be delivered
+ * again before anything else.
+ *
+ * All methods are safe to call from any thread, and an open item can be settled from any thread.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public abstract class LocalQueue {
+
+    /** An open item. Settle it exactly once, with ack or abort. */
+    public static class Item {
+
+        private final Object message;
+        private final long id;
+
+        public Item(Object message, long id) {
+            this.message = message;
+            this.id = id;
+        }
+
+        public Object getMessage() { return message; }
+
+        /** for implementations that need to find the item again when it's settled */
+        public long getId() { return id; }
+    }
+
+    private final String name;
+
+    protected LocalQueue(String name) { this.name = name; }
+
+    public String getName() { return name; }
+
+    public abstract void put(Object message) throws IOException;
+
+    /** @return the next item, opened, or null if none arrived within the timeout */
+    public abstract Item open(long timeoutMillis) throws InterruptedException, IOException;
+
+    public abstract void ack(Item item) throws IOException;
+
+    public abstract void abort(Item item) throws IOException;
+
+    /** drops every item that isn't open */
+    public abstract void clear() throws IOException;
+
+    /** @return the number of items waiting, not counting open ones */
+    public abstract int size();
+
+    /** called once the client shuts down */
+    public void close() throws IOException {}
+
+    /** drops the queue for good, along with everything in it; called instead of close when the queue is deleted */
+    public void delete() throws IOException {
+        clear();
+        close();
+    }
+
+}
@@ -0,0 +1,156 @@
+package org.cobbzilla.util.mq.virtual;
+
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.mq.MqDelivery;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reads a queue for one subscriber, only as fast as it asks for messages: an item is opened only while the
+ * subscriber has unfilled demand, and stays open until the subscriber settles its delivery.
+ *
+ * All signals to the subscriber come from the subscription's own thread. onComplete is sent when the client
+ * shuts down.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+@Slf4j
+class LocalSubscription extends LocalListener implements Subscription {
+
+    private final Subscriber<? super MqDelivery> subscriber;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+
+    // guarded by lock
+    private long demand = 0;
+
+    private volatile boolean cancelled = false;
+    private volatile Throwable error = null;
+
+    public LocalSubscription(LocalMqClient client, Subscriber<? super MqDelivery> subscriber, String queueName, String errorQueueName) {
+        super(client, queueName, errorQueueName);
+        this.subscriber = subscriber;
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            // rule 3.9: signal an error; it goes out from our own thread, so signals stay serial
+            error = new IllegalArgumentException("request must be positive: "+n);
+            cancel();
+            return;
+        }
+        lock.lock();
+        try {
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        stop();
+        lock.lock();
+        try {
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        lock.lock();
+        try {
+            // wait for the first request before reading anything
+            while (alive && demand == 0) ready.await(POLL_WAIT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            finish();
+            return;
+        } finally {
+            lock.unlock();
+        }
+        super.run();
+    }
+
+    @Override
+    protected void handle(LocalQueue queue, LocalQueue.Item item) throws InterruptedException {
+        final Delivery delivery = new Delivery(queue, item);
+        try {
+            subscriber.onNext(delivery);
+        } catch (Throwable t) {
+            // rule 2.13 says onNext must not throw; if it does, treat it as a cancellation
+            log.error("handle: subscriber threw from onNext, cancelling: "+t, t);
+            cancel();
+            delivery.abortIfUnsettled();
+        }
+
+        lock.lock();
+        try {
+            demand--;
+            while (alive && demand == 0) ready.await(POLL_WAIT, TimeUnit.MILLISECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected void finish() {
+        stop();
+        if (error != null) {
+            subscriber.onError(error);
+        } else if (!cancelled) {
+            subscriber.onComplete();
+        }
+    }
+
+    private class Delivery implements MqDelivery {
+
+        private final LocalQueue queue;
+        private final LocalQueue.Item item;
+        private final AtomicBoolean settled = new AtomicBoolean(false);
+
+        Delivery(LocalQueue queue, LocalQueue.Item item) {
+            this.queue = queue;
+            this.item = item;
+        }
+
+        private void settle() {
+            if (!settled.compareAndSet(false, true)) {
+                throw new IllegalStateException("delivery from "+queueName+" was already acked, aborted or failed");
+            }
+        }
+
+        void abortIfUnsettled() {
+            if (settled.compareAndSet(false, true)) client.abort(queue, item);
+        }
+
+        @Override public Object getMessage() { return item.getMessage(); }
+
+        @Override public void ack() {
+            settle();
+            client.ack(queue, item);
+        }
+
+        @Override public void abort() {
+            settle();
+            client.abort(queue, item);
+        }
+
+        @Override public void fail(Exception e) {
+            settle();
+            client.fail(queue, errorQueueName, item, e);
+        }
+    }
+
+}
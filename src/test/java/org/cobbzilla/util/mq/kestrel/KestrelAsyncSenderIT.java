@@ -0,0 +1,127 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.cobbzilla.util.mq.MqAsyncProducer;
+import org.cobbzilla.util.mq.MqConsumer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class KestrelAsyncSenderIT extends KestrelBasicIT {
+
+    private KestrelServer server;
+
+    @Before
+    @Override
+    public void setUp () throws Exception {
+        super.setUp();
+        server = new KestrelServer();
+        server.start();
+    }
+
+    @After
+    @Override
+    public void tearDown () throws Exception {
+        super.tearDown();
+        server.shutdown();
+    }
+
+    @Override
+    protected String getKestrelHosts() { return server.getHosts(); }
+
+    private KestrelClient getClient(int senderThreads, int maxInFlight) {
+        final Properties properties = new Properties();
+        properties.setProperty(KestrelClient.PROP_ASYNC_SEND_THREADS, String.valueOf(senderThreads));
+        properties.setProperty(KestrelClient.PROP_ASYNC_MAX_IN_FLIGHT, String.valueOf(maxInFlight));
+        return getClient(properties);
+    }
+
+    @Test
+    public void testSingleSenderKeepsOrder () throws Exception {
+
+        final KestrelClient client = getClient(1, 100);
+        final MqAsyncProducer producer = (MqAsyncProducer) client.getProducer(queueName);
+        final List<String> sent = new ArrayList<>();
+        final List<ListenableFuture<Void>> results = new ArrayList<>();
+        for (int i=0; i<50; i++) {
+            final String message = "message "+i;
+            results.add(producer.sendAsync(message));
+            sent.add(message);
+        }
+        for (ListenableFuture<Void> result : results) result.get(WAIT_FOR_MILLIS, TimeUnit.MILLISECONDS);
+
+        final List<String> received = new CopyOnWriteArrayList<>();
+        client.registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception { received.add((String) message); }
+        }, queueName, errorQueueName);
+        waitFor(received, sent.size());
+        assertEquals(sent, new ArrayList<>(received));
+    }
+
+    @Test
+    public void testSendAsyncBlocksWhenTooManyAreInFlight () throws Exception {
+
+        server.setLatencyMillis(300);
+        final MqAsyncProducer producer = (MqAsyncProducer) getClient(1, 2).getProducer(queueName);
+
+        long start = System.currentTimeMillis();
+        producer.sendAsync("first");
+        producer.sendAsync("second");
+        assertTrue("sendAsync waited with permits left", System.currentTimeMillis() - start < 250);
+
+        // both permits are taken until the first set comes back
+        start = System.currentTimeMillis();
+        final ListenableFuture<Void> third = producer.sendAsync("third");
+        assertTrue("sendAsync didn't wait for a permit", System.currentTimeMillis() - start >= 250);
+
+        third.get(WAIT_FOR_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(3, server.size(queueName));
+    }
+
+    @Test
+    public void testShutdownCompletesEveryFuture () throws Exception {
+
+        server.setLatencyMillis(500);
+        final KestrelClient client = getClient(1, 100);
+        final MqAsyncProducer producer = (MqAsyncProducer) client.getProducer(queueName);
+        final List<ListenableFuture<Void>> results = new ArrayList<>();
+        for (int i=0; i<10; i++) results.add(producer.sendAsync("message "+i));
+
+        client.shutdown();
+        clients.remove(client);
+
+        // nothing is left hanging: each send either made it or failed
+        int failed = 0;
+        for (ListenableFuture<Void> result : results) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                failed++;
+            }
+        }
+        assertTrue("queued sends weren't failed", failed > 0);
+
+        try {
+            producer.sendAsync("too late");
+            fail("sendAsync worked on a client that was shut down");
+        } catch (IllegalStateException expected) {
+            // noop
+        }
+    }
+
+}
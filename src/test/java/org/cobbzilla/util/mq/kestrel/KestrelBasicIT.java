@@ -28,7 +28,12 @@ public class KestrelBasicIT {
     private static final Logger LOG = LoggerFactory.getLogger(KestrelBasicIT.class);
 
     public static final String TEST_KESTREL_HOST = "localhost:22133";
+
+    /** run with -Dkestrel.test.embedded=true to test against an embedded KestrelServer instead of TEST_KESTREL_HOST */
+    public static final String SYSPROP_EMBEDDED = "kestrel.test.embedded";
+    private static KestrelServer embeddedServer;
     public static final int WAIT_TIME = 100;
+    public static final int WAIT_FOR_MILLIS = 30 * 1000;
 
     protected MqClientFactory clientFactory = new MqClientFactory();
     protected List<MqClient> clients = new ArrayList<>();
@@ -46,9 +51,31 @@ public class KestrelBasicIT {
         errorQueueName = queueName+"_error";
     }
 
+    /** @return the kestrel the tests run against */
+    protected String getKestrelHosts() throws IOException {
+        if (!Boolean.getBoolean(SYSPROP_EMBEDDED)) return TEST_KESTREL_HOST;
+        synchronized (KestrelBasicIT.class) {
+            // shared by every test in the run; its threads are daemons, so it goes away with the JVM
+            if (embeddedServer == null) {
+                embeddedServer = new KestrelServer();
+                embeddedServer.start();
+            }
+            return embeddedServer.getHosts();
+        }
+    }
+
     protected KestrelClient getClient() {
+        return getClient(new Properties());
+    }
+
+    protected KestrelClient getClient(Properties extraProperties) {
         Properties clientProperties = new Properties();
-        clientProperties.setProperty(KestrelClient.PROP_KESTREL_HOSTS, TEST_KESTREL_HOST);
+        clientProperties.putAll(extraProperties);
+        try {
+            clientProperties.setProperty(KestrelClient.PROP_KESTREL_HOSTS, getKestrelHosts());
+        } catch (IOException e) {
+            throw new IllegalStateException("getClient: can't start embedded kestrel: "+e, e);
+        }
         final KestrelClient client = (KestrelClient) clientFactory.createClient(KestrelClient.class.getCanonicalName(), clientProperties);
         clients.add(client);
         return client;
@@ -67,6 +94,21 @@ public class KestrelBasicIT {
         shutdownClients();
     }
 
+    /** waits up to WAIT_FOR_MILLIS for count items to arrive; the caller asserts on what it got */
+    protected void waitFor(List<?> received, int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + WAIT_FOR_MILLIS;
+        while (received.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(WAIT_TIME);
+        }
+    }
+
+    protected void waitFor(AtomicInteger count, int expected) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + WAIT_FOR_MILLIS;
+        while (count.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(WAIT_TIME);
+        }
+    }
+
     public void shutdownClients() throws IOException {
         for (MqClient client : clients) {
             client.shutdown();
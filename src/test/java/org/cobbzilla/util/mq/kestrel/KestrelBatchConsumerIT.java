@@ -0,0 +1,123 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.cobbzilla.util.mq.MqBatchConsumer;
+import org.cobbzilla.util.mq.MqProducer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class KestrelBatchConsumerIT extends KestrelBasicIT {
+
+    public static final int MAX_BATCH_SIZE = 10;
+    public static final long MAX_BATCH_MILLIS = 500;
+
+    private KestrelServer server;
+
+    @Before
+    @Override
+    public void setUp () throws Exception {
+        super.setUp();
+        server = new KestrelServer();
+        server.start();
+    }
+
+    @After
+    @Override
+    public void tearDown () throws Exception {
+        super.tearDown();
+        server.shutdown();
+    }
+
+    @Override
+    protected String getKestrelHosts() { return server.getHosts(); }
+
+    private class BatchRecorder implements MqBatchConsumer {
+        final List<List<Object>> batches = new CopyOnWriteArrayList<>();
+        final List<Object> received = new CopyOnWriteArrayList<>();
+        final List<Long> deliveredAt = new CopyOnWriteArrayList<>();
+        @Override public void onMessage(Object message) throws Exception { onMessages(Arrays.asList(message)); }
+        @Override public void onMessages(List<Object> messages) throws Exception {
+            batches.add(new ArrayList<>(messages));
+            deliveredAt.add(System.currentTimeMillis());
+            received.addAll(messages);
+        }
+    }
+
+    private BatchRecorder register() {
+        final BatchRecorder recorder = new BatchRecorder();
+        getClient().registerBatchConsumer(recorder, queueName, errorQueueName, MAX_BATCH_SIZE, MAX_BATCH_MILLIS);
+        return recorder;
+    }
+
+    @Test
+    public void testFullBatchesGoRightAway () throws Exception {
+
+        final List<String> sent = new ArrayList<>();
+        final MqProducer<Object> producer = getClient().getProducer(queueName);
+        for (int i=0; i<25; i++) {
+            final String message = "message "+i;
+            producer.send(message);
+            sent.add(message);
+        }
+
+        final BatchRecorder recorder = register();
+        waitFor(recorder.received, sent.size());
+        assertEquals(sent, new ArrayList<>(recorder.received));
+
+        // everything was waiting, so the first two batches filled up; the rest went when time ran out
+        assertEquals(3, recorder.batches.size());
+        assertEquals(MAX_BATCH_SIZE, recorder.batches.get(0).size());
+        assertEquals(MAX_BATCH_SIZE, recorder.batches.get(1).size());
+        assertEquals(5, recorder.batches.get(2).size());
+    }
+
+    @Test
+    public void testPartialBatchGoesAfterMaxBatchMillis () throws Exception {
+
+        final BatchRecorder recorder = register();
+        Thread.sleep(500); // let the listener start its poll
+
+        final long start = System.currentTimeMillis();
+        final MqProducer<Object> producer = getClient().getProducer(queueName);
+        for (int i=0; i<3; i++) producer.send("message "+i);
+        waitFor(recorder.received, 3);
+
+        assertEquals(1, recorder.batches.size());
+        assertEquals(3, recorder.batches.get(0).size());
+        final long waited = recorder.deliveredAt.get(0) - start;
+        assertTrue("partial batch went after "+waited+"ms", waited >= MAX_BATCH_MILLIS - 50 && waited < MAX_BATCH_MILLIS + 1500);
+    }
+
+    @Test
+    public void testEnvelopesAreNeverSplit () throws Exception {
+
+        // two envelopes of 8: the consumer batch has room for 2 more after the first, and takes the second whole
+        final KestrelBatchingProducer batcher = getClient().getBatchingProducer(queueName, 8, 64*1024, 60*1000);
+        final List<String> sent = new ArrayList<>();
+        for (int i=0; i<16; i++) {
+            final String message = "message "+i;
+            batcher.send(message);
+            sent.add(message);
+        }
+        assertEquals(2, server.size(queueName));
+
+        final BatchRecorder recorder = register();
+        waitFor(recorder.received, sent.size());
+        assertEquals(sent, new ArrayList<>(recorder.received));
+        assertEquals(1, recorder.batches.size());
+        assertEquals(16, recorder.batches.get(0).size());
+    }
+
+}
@@ -0,0 +1,149 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.cobbzilla.util.mq.MqConsumer;
+import org.cobbzilla.util.mq.metrics.MqMetrics;
+import org.cobbzilla.util.mq.metrics.MqMetricsExporter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class KestrelBatchingProducerIT extends KestrelBasicIT {
+
+    private KestrelServer server;
+
+    @Before
+    @Override
+    public void setUp () throws Exception {
+        super.setUp();
+        server = new KestrelServer();
+        server.start();
+    }
+
+    @After
+    @Override
+    public void tearDown () throws Exception {
+        super.tearDown();
+        server.shutdown();
+    }
+
+    @Override
+    protected String getKestrelHosts() { return server.getHosts(); }
+
+    @Test
+    public void testSizeAndTimedFlush () throws Exception {
+
+        final KestrelBatchingProducer batcher = getClient().getBatchingProducer(queueName, 10, 64*1024, 200);
+        final List<String> sent = new ArrayList<>();
+        for (int i=0; i<25; i++) {
+            final String message = "message "+i;
+            batcher.send(message);
+            sent.add(message);
+        }
+        // two full batches went out on this thread; the last 5 wait for the timer
+        assertEquals(2, server.size(queueName));
+        assertEquals(5, batcher.getPending());
+        Thread.sleep(600);
+        assertEquals(3, server.size(queueName));
+
+        assertEquals(sent, receive(25));
+    }
+
+    @Test
+    public void testStuckFlushDoesNotHoldUpTheScheduler () throws Exception {
+
+        final AtomicInteger exports = new AtomicInteger(0);
+        final Properties properties = new Properties();
+        properties.setProperty(KestrelClient.PROP_METRICS_EXPORT_MILLIS, "100");
+        final KestrelClient client = getClient(properties);
+        client.addMetricsExporter(new MqMetricsExporter() {
+            @Override public void export(MqMetrics metrics) { exports.incrementAndGet(); }
+        });
+
+        // the timed flush retries for as long as every set fails
+        server.setErrorPercent(100);
+        final KestrelBatchingProducer batcher = client.getBatchingProducer(queueName, 10, 64*1024, 50);
+        batcher.send("stuck");
+        Thread.sleep(300);
+        final int before = exports.get();
+        Thread.sleep(1000);
+        assertTrue("scheduler stalled behind a flush", exports.get() >= before + 5);
+        assertEquals(0, server.size(queueName));
+
+        server.setErrorPercent(0);
+        final long deadline = System.currentTimeMillis() + WAIT_FOR_MILLIS;
+        while (server.size(queueName) == 0 && System.currentTimeMillis() < deadline) Thread.sleep(WAIT_TIME);
+        assertEquals(1, server.size(queueName));
+    }
+
+    @Test
+    public void testInterruptedFlushPutsTheBatchBack () throws Exception {
+
+        final KestrelBatchingProducer batcher = getClient().getBatchingProducer(queueName, 10, 64*1024, 60*1000);
+        batcher.send("one");
+        batcher.send("two");
+
+        server.setErrorPercent(100);
+        final Thread flusher = new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    batcher.flush();
+                } catch (Exception e) {
+                    // interrupted, as planned
+                }
+            }
+        });
+        flusher.start();
+        Thread.sleep(300);
+        flusher.interrupt();
+        flusher.join(5000);
+
+        batcher.send("three");
+        assertEquals(3, batcher.getPending());
+        server.setErrorPercent(0);
+        batcher.flush();
+        assertEquals(1, server.size(queueName));
+
+        final List<String> expected = new ArrayList<>();
+        expected.add("one");
+        expected.add("two");
+        expected.add("three");
+        assertEquals(expected, receive(3));
+    }
+
+    @Test
+    public void testShutdownFlushesWhatIsBuffered () throws Exception {
+
+        final KestrelClient client = getClient();
+        final KestrelBatchingProducer batcher = client.getBatchingProducer(queueName, 10, 64*1024, 60*1000);
+        batcher.send("one");
+        batcher.send("two");
+        client.shutdown();
+        clients.remove(client);
+
+        assertEquals(0, batcher.getPending());
+        assertEquals(1, server.size(queueName));
+    }
+
+    private List<String> receive(int count) throws InterruptedException {
+        final List<String> received = new CopyOnWriteArrayList<>();
+        getClient().registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception { received.add((String) message); }
+        }, queueName, errorQueueName);
+        waitFor(received, count);
+        return new ArrayList<>(received);
+    }
+
+}
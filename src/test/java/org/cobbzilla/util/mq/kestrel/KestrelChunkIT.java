@@ -0,0 +1,105 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.cobbzilla.util.mq.MqConsumer;
+import org.cobbzilla.util.mq.MqStreamConsumer;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class KestrelChunkIT extends KestrelBasicIT {
+
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private KestrelClient getChunkingClient(boolean compress) {
+        final Properties properties = new Properties();
+        properties.setProperty(KestrelClient.PROP_CHUNK_SIZE_BYTES, String.valueOf(CHUNK_SIZE));
+        if (compress) properties.setProperty(KestrelClient.PROP_COMPRESS_THRESHOLD_BYTES, "1024");
+        return getClient(properties);
+    }
+
+    private static String bigText(int size) {
+        final StringBuilder b = new StringBuilder();
+        for (int i=0; b.length() < size; i++) b.append("line ").append(i).append(": ").append(randomToken()).append('\n');
+        return b.toString();
+    }
+
+    @Test
+    public void testChunkedMessageIsReassembled () throws Exception {
+
+        final String big = bigText(1024 * 1024);
+        final String small = randomToken();
+        final KestrelClient producerClient = getChunkingClient(false);
+        producerClient.getProducer(queueName).send(big);
+        producerClient.getProducer(queueName).send(small);
+
+        final List<String> received = new CopyOnWriteArrayList<>();
+        getClient().registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception { received.add((String) message); }
+        }, queueName, errorQueueName);
+
+        waitFor(received, 2);
+        assertEquals(Arrays.asList(big, small), received);
+    }
+
+    @Test
+    public void testFailedMessageComesBackWhole () throws Exception {
+
+        final String big = bigText(512 * 1024);
+        getChunkingClient(true).getProducer(queueName).send(big);
+
+        // the first delivery fails after the chunks were read; without an error queue it's aborted, and the
+        // next delivery has to find every chunk still there
+        final AtomicInteger attempts = new AtomicInteger(0);
+        final List<String> received = new CopyOnWriteArrayList<>();
+        getClient().registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception {
+                if (attempts.incrementAndGet() == 1) throw new IllegalStateException("failing the first delivery on purpose");
+                received.add((String) message);
+            }
+        }, queueName, null);
+
+        waitFor(received, 1);
+        assertEquals(2, attempts.get());
+        assertEquals(big, received.get(0));
+    }
+
+    @Test
+    public void testStreamConsumer () throws Exception {
+
+        final byte[] payload = new byte[CHUNK_SIZE * 10 + 123];
+        new Random(7).nextBytes(payload);
+        getChunkingClient(false).set(queueName, payload);
+
+        final List<byte[]> received = new CopyOnWriteArrayList<>();
+        final List<Long> lengths = new CopyOnWriteArrayList<>();
+        getClient().registerStreamConsumer(new MqStreamConsumer() {
+            @Override public void onMessage(InputStream message, long length) throws Exception {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[4096];
+                int n;
+                while ((n = message.read(buffer)) != -1) out.write(buffer, 0, n);
+                lengths.add(length);
+                received.add(out.toByteArray());
+            }
+        }, queueName, errorQueueName, 1);
+
+        waitFor(received, 1);
+        assertEquals(Long.valueOf(payload.length), lengths.get(0));
+        assertTrue(Arrays.equals(payload, received.get(0)));
+    }
+
+}
@@ -0,0 +1,78 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.cobbzilla.util.mq.MqConsumer;
+import org.cobbzilla.util.mq.MqProducer;
+import org.cobbzilla.util.mq.codec.BytesCodec;
+import org.cobbzilla.util.mq.codec.JsonCodec;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class KestrelCodecIT extends KestrelBasicIT {
+
+    public static final int NUM_MESSAGES = 50;
+
+    public static class Order {
+        public String id;
+        public int quantity;
+        public List<String> items;
+    }
+
+    @Test
+    public void testJsonRoundTrip () throws Exception {
+
+        final JsonCodec<Order> codec = new JsonCodec<>(Order.class);
+        final MqProducer<Order> producer = getClient().getProducer(queueName, codec);
+        for (int i=0; i<NUM_MESSAGES; i++) {
+            final Order order = new Order();
+            order.id = "order-" + i;
+            order.quantity = i;
+            order.items = Arrays.asList("a" + i, "b" + i);
+            producer.send(order);
+        }
+
+        final List<Order> received = new CopyOnWriteArrayList<>();
+        getClient().registerConsumer(new MqConsumer<Order>() {
+            @Override public void onMessage(Order message) throws Exception { received.add(message); }
+        }, codec, queueName, errorQueueName, 2);
+
+        waitFor(received, NUM_MESSAGES);
+        assertEquals(NUM_MESSAGES, received.size());
+        final boolean[] seen = new boolean[NUM_MESSAGES];
+        for (Order order : received) {
+            assertEquals("order-" + order.quantity, order.id);
+            assertEquals(Arrays.asList("a" + order.quantity, "b" + order.quantity), order.items);
+            seen[order.quantity] = true;
+        }
+        for (boolean b : seen) assertTrue(b);
+    }
+
+    @Test
+    public void testLargeBytesArriveUntouched () throws Exception {
+
+        // well past the size where the default transcoder would compress
+        final byte[] payload = new byte[64 * 1024];
+        new Random(42).nextBytes(payload);
+        getClient().getProducer(queueName, BytesCodec.INSTANCE).send(payload);
+
+        final List<byte[]> received = new CopyOnWriteArrayList<>();
+        getClient().registerConsumer(new MqConsumer<byte[]>() {
+            @Override public void onMessage(byte[] message) throws Exception { received.add(message); }
+        }, BytesCodec.INSTANCE, queueName, errorQueueName, 1);
+
+        waitFor(received, 1);
+        assertEquals(1, received.size());
+        assertTrue(Arrays.equals(payload, received.get(0)));
+    }
+
+}
@@ -0,0 +1,74 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.cobbzilla.util.mq.MqConsumer;
+import org.cobbzilla.util.mq.codec.BytesCodec;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class KestrelCompressionIT extends KestrelBasicIT {
+
+    private KestrelClient getCompressingClient() {
+        final Properties properties = new Properties();
+        properties.setProperty(KestrelClient.PROP_COMPRESS_THRESHOLD_BYTES, "1024");
+        return getClient(properties);
+    }
+
+    private static String bigDocument() {
+        final StringBuilder b = new StringBuilder("[");
+        for (int i=0; b.length() < 200*1024; i++) {
+            b.append("{\"id\":").append(i).append(",\"name\":\"item-").append(i).append("\",\"tags\":[\"a\",\"b\"]},");
+        }
+        return b.append("{}]").toString();
+    }
+
+    @Test
+    public void testLargeMessagesAreCompressedAndReadBack () throws Exception {
+
+        final String big = bigDocument();
+        final String small = randomToken();
+        final KestrelClient producerClient = getCompressingClient();
+        producerClient.getProducer(queueName).send(big);
+        producerClient.getProducer(queueName).send(small);
+
+        // what's on the server is a lot smaller than what was sent
+        final Object raw = producerClient.compress(big);
+        assertTrue(raw instanceof byte[]);
+        assertTrue(((byte[]) raw).length < big.length() / 4);
+
+        // a consumer that doesn't compress itself still reads compressed items, and plain ones
+        final List<String> received = new CopyOnWriteArrayList<>();
+        getClient().registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception { received.add((String) message); }
+        }, queueName, errorQueueName);
+
+        waitFor(received, 2);
+        assertEquals(Arrays.asList(big, small), received);
+    }
+
+    @Test
+    public void testCompressedBytesThroughCodec () throws Exception {
+
+        final byte[] payload = bigDocument().getBytes("UTF-8");
+        getCompressingClient().getProducer(queueName, BytesCodec.INSTANCE).send(payload);
+
+        final List<byte[]> received = new CopyOnWriteArrayList<>();
+        getClient().registerConsumer(new MqConsumer<byte[]>() {
+            @Override public void onMessage(byte[] message) throws Exception { received.add(message); }
+        }, BytesCodec.INSTANCE, queueName, errorQueueName, 1);
+
+        waitFor(received, 1);
+        assertTrue(Arrays.equals(payload, received.get(0)));
+    }
+
+}
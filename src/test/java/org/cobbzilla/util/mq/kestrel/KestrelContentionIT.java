@@ -0,0 +1,88 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.cobbzilla.util.mq.MqConsumer;
+import org.cobbzilla.util.mq.MqProducer;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Measures send latency on a client whose consumers are long-polling an empty queue.
+ * Before the client-wide lock was removed, every send here waited behind a 500ms poll, and while producers
+ * shared a connection pool with consumers, sends slowed down as more consumers were added.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class KestrelContentionIT extends KestrelBasicIT {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KestrelContentionIT.class);
+
+    public static final int NUM_CONSUMERS = 4;
+    public static final int NUM_SENDS = 200;
+    public static final int[] CONSUMER_COUNTS = {1, 4, 16, 64};
+
+    @Test
+    public void testSendLatencyWhileLongPolling () throws Exception {
+
+        final long p99 = measureSendLatency(getClient(), NUM_CONSUMERS)[1];
+
+        // a send that waited behind a long-poll would take ~500ms
+        assertTrue("p99 send latency too high: "+p99+"us", p99 < 250*1000);
+    }
+
+    /**
+     * Producers have their own connections, so send latency shouldn't care how many consumers are
+     * parked on the server. Each round uses a fresh client, so idle pollers don't pile up across rounds.
+     */
+    @Test
+    public void testSendLatencyFlatAsConsumersGrow () throws Exception {
+
+        long baseline = 0;
+        for (int consumers : CONSUMER_COUNTS) {
+            final KestrelClient client = getClient();
+            final long p99 = measureSendLatency(client, consumers)[1];
+            client.shutdown();
+            clients.remove(client);
+
+            if (baseline == 0) {
+                baseline = p99;
+            } else {
+                // generous, since a shared test box is noisy: what we're guarding against is ~500ms stalls
+                assertTrue("p99 send latency grew from "+baseline+"us to "+p99+"us with "+consumers+" consumers",
+                           p99 < Math.max(4 * baseline, 50*1000));
+            }
+        }
+    }
+
+    /** @return p50, p99 and max send latency in microseconds */
+    private long[] measureSendLatency(KestrelClient client, int numConsumers) throws Exception {
+
+        // these consumers sit in long-polls on a queue that never gets anything
+        client.registerConsumer(new MqConsumer() {
+            @Override public void onMessage(Object message) throws Exception {}
+        }, queueName + "_idle", null, numConsumers);
+        Thread.sleep(250);
+
+        final MqProducer producer = client.getProducer(queueName);
+        final long[] latencies = new long[NUM_SENDS];
+        for (int i=0; i<NUM_SENDS; i++) {
+            final long start = System.nanoTime();
+            producer.send("message"+i);
+            latencies[i] = System.nanoTime() - start;
+        }
+        client.deleteQueue(queueName + "_idle");
+
+        Arrays.sort(latencies);
+        final long p50 = latencies[NUM_SENDS / 2] / 1000;
+        final long p99 = latencies[NUM_SENDS * 99 / 100] / 1000;
+        final long max = latencies[NUM_SENDS - 1] / 1000;
+        LOG.info("send latency with "+numConsumers+" long-polling consumers: p50="+p50+"us p99="+p99+"us max="+max+"us");
+        return new long[] { p50, p99, max };
+    }
+
+}
@@ -0,0 +1,136 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.cobbzilla.util.mq.MqConsumer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Registers many queues on one client in EVENT_LOOP mode, and checks that every queue is served
+ * without starting a thread per queue.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class KestrelEventLoopIT extends KestrelBasicIT {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KestrelEventLoopIT.class);
+
+    public static final int NUM_QUEUES = 200;
+    public static final int NUM_THREADS = 2;
+    public static final int NUM_WORKERS = 4;
+    public static final long MAX_IDLE_MILLIS = 1000;
+
+    private KestrelServer server;
+
+    @Before
+    @Override
+    public void setUp () throws Exception {
+        super.setUp();
+        server = new KestrelServer();
+        server.start();
+    }
+
+    @After
+    @Override
+    public void tearDown () throws Exception {
+        super.tearDown();
+        server.shutdown();
+    }
+
+    @Override
+    protected String getKestrelHosts() { return server.getHosts(); }
+
+    private KestrelClient getEventLoopClient() {
+        final Properties properties = new Properties();
+        properties.setProperty(KestrelClient.PROP_CONSUMER_MODE, KestrelConsumerMode.EVENT_LOOP.name());
+        properties.setProperty(KestrelClient.PROP_EVENT_LOOP_THREADS, String.valueOf(NUM_THREADS));
+        properties.setProperty(KestrelClient.PROP_EVENT_LOOP_WORKERS, String.valueOf(NUM_WORKERS));
+        properties.setProperty(KestrelClient.PROP_EVENT_LOOP_MAX_IDLE_MILLIS, String.valueOf(MAX_IDLE_MILLIS));
+        return getClient(properties);
+    }
+
+    @Test
+    public void testManyQueuesOnFewThreads () throws Exception {
+
+        final KestrelClient client = getEventLoopClient();
+
+        final int threadsBefore = Thread.activeCount();
+        final Set<String> received = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        for (int i=0; i<NUM_QUEUES; i++) {
+            client.registerConsumer(new MqConsumer() {
+                @Override public void onMessage(Object message) throws Exception {
+                    received.add(message.toString());
+                    synchronized (received) { received.notify(); }
+                }
+            }, queueName(i), null);
+        }
+        final int threadsAdded = Thread.activeCount() - threadsBefore;
+        LOG.info("registering "+NUM_QUEUES+" queues added "+threadsAdded+" threads");
+        assertTrue("too many threads for "+NUM_QUEUES+" queues: "+threadsAdded, threadsAdded <= NUM_THREADS + NUM_WORKERS + 2);
+
+        // let every queue go idle, then wake a few of them up
+        Thread.sleep(2000);
+        for (int i=0; i<NUM_QUEUES; i+=20) {
+            client.getProducer(queueName(i)).send("message"+i);
+        }
+        final int expected = NUM_QUEUES / 20;
+        final long deadline = System.currentTimeMillis() + 10*1000;
+        while (received.size() < expected && System.currentTimeMillis() < deadline) {
+            synchronized (received) { received.wait(WAIT_TIME); }
+        }
+        assertEquals(expected, received.size());
+
+        for (int i=0; i<NUM_QUEUES; i++) {
+            client.deleteQueue(queueName(i));
+        }
+    }
+
+    /**
+     * Idle queues are still read, with a 1ms read each time their back-off runs out: once they've backed off
+     * all the way, that's one small request per queue per MAX_IDLE_MILLIS, however many queues there are.
+     */
+    @Test
+    public void testIdleQueuesCostOneReadPerMaxIdle () throws Exception {
+
+        final KestrelClient client = getEventLoopClient();
+        for (int i=0; i<NUM_QUEUES; i++) {
+            client.registerConsumer(new MqConsumer() {
+                @Override public void onMessage(Object message) throws Exception {}
+            }, queueName(i), null);
+        }
+
+        // 10ms doubling up to 1000ms: every queue is at the maximum back-off after about 2.3s
+        Thread.sleep(3000);
+        final long seconds = 5;
+        final long before = readCount(server);
+        Thread.sleep(seconds * 1000);
+        final double perQueuePerSecond = (double) (readCount(server) - before) / NUM_QUEUES / seconds;
+        LOG.info("each idle queue was read "+perQueuePerSecond+" times a second");
+
+        final double expected = 1000.0 / MAX_IDLE_MILLIS;
+        assertTrue("idle queues read too often: "+perQueuePerSecond+"/s each", perQueuePerSecond <= expected * 1.5);
+        assertTrue("idle queues not read at all: "+perQueuePerSecond+"/s each", perQueuePerSecond >= expected / 2);
+
+        for (int i=0; i<NUM_QUEUES; i++) {
+            client.deleteQueue(queueName(i));
+        }
+    }
+
+    private static long readCount(KestrelServer server) {
+        return ((Number) server.getStats().get("cmd_get")).longValue();
+    }
+
+    private String queueName(int i) { return queueName + "_" + i; }
+
+}
@@ -0,0 +1,72 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.cobbzilla.util.mq.MqConsumer;
+import org.cobbzilla.util.mq.MqKeyExtractor;
+import org.cobbzilla.util.mq.MqProducer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class KestrelKeyedIT extends KestrelBasicIT {
+
+    public static final int NUM_KEYS = 8;
+    public static final int NUM_MESSAGES = 200;
+    public static final int NUM_STRIPES = 4;
+
+    @Test
+    public void testPerKeyOrderWithParallelStripes () throws Exception {
+
+        final MqProducer producer = getProducer();
+        for (int i=0; i<NUM_MESSAGES; i++) {
+            producer.send("k" + (i % NUM_KEYS) + ":" + i);
+        }
+
+        final Map<String, List<Integer>> byKey = new ConcurrentHashMap<>();
+        final Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final AtomicInteger counter = new AtomicInteger(0);
+
+        getClient().registerKeyedConsumer(new MqConsumer() {
+            @Override public void onMessage(Object message) throws Exception {
+                final String[] parts = message.toString().split(":");
+                List<Integer> seen = byKey.get(parts[0]);
+                if (seen == null) {
+                    byKey.put(parts[0], seen = Collections.synchronizedList(new ArrayList<Integer>()));
+                }
+                seen.add(Integer.parseInt(parts[1]));
+                threads.add(Thread.currentThread().getName());
+                Thread.sleep(5);
+                counter.incrementAndGet();
+            }
+        }, new MqKeyExtractor() {
+            @Override public Object getKey(Object message) { return message.toString().split(":")[0]; }
+        }, queueName, errorQueueName, NUM_STRIPES);
+
+        final long deadline = System.currentTimeMillis() + 30*1000;
+        while (counter.get() < NUM_MESSAGES && System.currentTimeMillis() < deadline) {
+            Thread.sleep(WAIT_TIME);
+        }
+        assertEquals(NUM_MESSAGES, counter.get());
+        assertEquals(NUM_KEYS, byKey.size());
+        for (Map.Entry<String, List<Integer>> entry : byKey.entrySet()) {
+            final List<Integer> seen = entry.getValue();
+            for (int i=1; i<seen.size(); i++) {
+                assertTrue("key "+entry.getKey()+" out of order: "+seen, seen.get(i-1) < seen.get(i));
+            }
+        }
+        assertTrue("expected messages on several stripes: "+threads, threads.size() > 1);
+    }
+
+}
@@ -0,0 +1,226 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.cobbzilla.util.mq.MqConsumer;
+import org.cobbzilla.util.mq.MqProducer;
+import org.cobbzilla.util.mq.metrics.MqHistogram;
+import org.cobbzilla.util.mq.metrics.MqHistogramSnapshot;
+import org.cobbzilla.util.mq.metrics.MqMetrics;
+import org.cobbzilla.util.mq.metrics.MqMetricsExporter;
+import org.cobbzilla.util.mq.metrics.MqQueueMetrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class KestrelMetricsIT extends KestrelBasicIT {
+
+    private KestrelServer server;
+
+    @Before
+    @Override
+    public void setUp () throws Exception {
+        super.setUp();
+        server = new KestrelServer();
+        server.start();
+    }
+
+    @After
+    @Override
+    public void tearDown () throws Exception {
+        super.tearDown();
+        server.shutdown();
+    }
+
+    @Override
+    protected String getKestrelHosts() { return server.getHosts(); }
+
+    @Test
+    public void testHistogramPercentiles () throws Exception {
+
+        final MqHistogram histogram = new MqHistogram();
+        assertFalse(histogram.isAllocated());
+        assertEquals(0, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().getValueAtPercentile(99));
+        for (long i=1; i<=10000; i++) histogram.record(i * 1000); // 1us to 10ms
+        final MqHistogramSnapshot snapshot = histogram.snapshot();
+
+        assertTrue(histogram.isAllocated());
+        assertEquals(10000, snapshot.getCount());
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000000, snapshot.getMaxNanos());
+        assertWithin(5000500, snapshot.getMeanNanos(), 0.001);
+        assertWithin(5000000, snapshot.getValueAtPercentile(50), 0.02);
+        assertWithin(9900000, snapshot.getValueAtPercentile(99), 0.02);
+        assertWithin(9990000, snapshot.getValueAtPercentile(99.9), 0.02);
+
+        // the interval between two snapshots only holds what was recorded in between
+        for (int i=0; i<100; i++) histogram.record(50 * 1000 * 1000);
+        final MqHistogramSnapshot interval = histogram.snapshot().minus(snapshot);
+        assertEquals(100, interval.getCount());
+        assertWithin(50000000, interval.getValueAtPercentile(50), 0.02);
+    }
+
+    @Test
+    public void testSendPollAndCallbackMetrics () throws Exception {
+
+        final KestrelClient client = getClient();
+        final MqProducer<Object> producer = client.getProducer(queueName);
+        for (int i=0; i<20; i++) producer.send("message "+i);
+
+        final AtomicInteger received = new AtomicInteger(0);
+        client.registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception {
+                Thread.sleep(5);
+                received.incrementAndGet();
+            }
+        }, queueName, errorQueueName);
+        waitFor(received, 20);
+
+        // the callback's time is recorded just after it returns
+        final MqQueueMetrics metrics = client.getMetrics().queue(queueName);
+        final long deadline = System.currentTimeMillis() + 10*1000;
+        while (metrics.getCallbackDuration().getCount() < 20 && System.currentTimeMillis() < deadline) Thread.sleep(WAIT_TIME);
+        assertEquals(20, metrics.getSendLatency().getCount());
+        assertEquals(0, metrics.getSendErrors());
+        assertEquals(20, metrics.getPollLatency().getCount() + metrics.getPollWait().getCount());
+        assertEquals(20, metrics.getCallbackDuration().getCount());
+        assertTrue(metrics.getCallbackDuration().getValueAtPercentile(50) >= 5 * 1000 * 1000);
+        assertEquals(0, metrics.getErrorQueueDiversions());
+
+        // every send went to the one server
+        assertEquals(20, client.getMetrics().host(server.getHosts()).getSendLatency().getCount());
+    }
+
+    @Test
+    public void testPollWaitIsKeptApartFromPollLatency () throws Exception {
+
+        final KestrelClient client = getClient();
+        final KestrelReader reader = new KestrelReader(client, client.newReaderConnections().get(0), queueName, errorQueueName);
+        final MqQueueMetrics metrics = reader.getMetrics();
+
+        client.set(queueName, "waiting");
+        assertEquals("waiting", reader.open(0));
+        reader.ack();
+        assertEquals(1, metrics.getPollLatency().getCount());
+
+        // the item turns up while the poll waits for it on the server: that's not poll latency
+        final Thread late = new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    Thread.sleep(300);
+                    client.set(queueName, "late");
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        late.start();
+        assertEquals("late", reader.open(5000));
+        reader.ack();
+        late.join();
+        assertEquals(1, metrics.getPollLatency().getCount());
+        assertEquals(1, metrics.getPollWait().getCount());
+        assertTrue(metrics.getPollWait().getMaxNanos() >= 250 * 1000 * 1000);
+        assertEquals(2, metrics.getPolls());
+        assertEquals(2, metrics.getAckLatency().getCount());
+    }
+
+    @Test
+    public void testFailedAcksAreCountedNotTimed () throws Exception {
+
+        final MqQueueMetrics metrics = new MqQueueMetrics(queueName);
+        metrics.recordAck(1000, 0);
+        metrics.recordAck(2000, 3);
+        metrics.recordAck(60L * 1000 * 1000 * 1000, -1);
+        metrics.recordAbort(1000, 2);
+        metrics.recordAbort(60L * 1000 * 1000 * 1000, -1);
+
+        assertEquals(2, metrics.getAckLatency().getCount());
+        assertEquals(3, metrics.getAckRetries());
+        assertEquals(1, metrics.getAckFailures());
+        assertEquals(1, metrics.getAbortLatency().getCount());
+        assertEquals(2, metrics.getAbortRetries());
+        assertEquals(1, metrics.getAbortFailures());
+    }
+
+    @Test
+    public void testErrorQueueDiversionsAndRetries () throws Exception {
+
+        final KestrelClient client = getClient();
+        client.set(queueName, "bad");
+        final AtomicInteger calls = new AtomicInteger(0);
+        client.registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception {
+                calls.incrementAndGet();
+                throw new IllegalStateException("failing on purpose");
+            }
+        }, queueName, errorQueueName);
+        waitFor(calls, 1);
+
+        final MqQueueMetrics metrics = client.getMetrics().queue(queueName);
+        final long deadline = System.currentTimeMillis() + 10*1000;
+        while (metrics.getErrorQueueDiversions() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(WAIT_TIME);
+        assertEquals(1, metrics.getErrorQueueDiversions());
+        assertEquals(1, metrics.getAckLatency().getCount());
+        assertEquals(1, server.size(errorQueueName));
+
+        // injected errors fail sends, and the producer retries them
+        server.setErrorPercent(50);
+        final MqProducer<Object> producer = client.getProducer(queueName+"_retried");
+        for (int i=0; i<20; i++) producer.send("message "+i);
+        server.setErrorPercent(0);
+        final MqQueueMetrics retried = client.getMetrics().queue(queueName+"_retried");
+        assertEquals(20, retried.getSendLatency().getCount());
+        assertEquals(retried.getSendErrors(), retried.getSendRetries());
+        assertTrue(retried.getSendRetries() > 0);
+    }
+
+    @Test
+    public void testJmxAndExporters () throws Exception {
+
+        final List<MqMetrics> exported = new CopyOnWriteArrayList<>();
+        final Properties properties = new Properties();
+        properties.setProperty(KestrelClient.PROP_METRICS_EXPORT_MILLIS, "100");
+        final KestrelClient client = getClient(properties);
+        client.addMetricsExporter(new MqMetricsExporter() {
+            @Override public void export(MqMetrics metrics) { exported.add(metrics); }
+        });
+        client.getProducer(queueName).send("hello");
+
+        final MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(MqMetrics.JMX_DOMAIN+":type=Queue,client="
+                + ObjectName.quote(client.getMetrics().getClientName())+",name="+ObjectName.quote(queueName));
+        assertTrue(mbeans.isRegistered(name));
+        final CompositeData send = (CompositeData) mbeans.getAttribute(name, "SendLatency");
+        assertEquals(1L, send.get("count"));
+
+        final long deadline = System.currentTimeMillis() + 10*1000;
+        while (exported.isEmpty() && System.currentTimeMillis() < deadline) Thread.sleep(WAIT_TIME);
+        assertFalse(exported.isEmpty());
+
+        client.shutdown();
+        clients.remove(client);
+        assertFalse(mbeans.isRegistered(name));
+    }
+
+    private void assertWithin(long expected, long actual, double fraction) {
+        assertTrue("expected "+expected+" but was "+actual, Math.abs(actual - expected) <= expected * fraction);
+    }
+
+}
@@ -0,0 +1,170 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.cobbzilla.util.mq.MqConsumer;
+import org.cobbzilla.util.mq.MqProducer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Runs against two embedded KestrelServers.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class KestrelMultiHostIT extends KestrelBasicIT {
+
+    public static final long EJECT_MILLIS = 2000;
+
+    private KestrelServer serverA;
+    private KestrelServer serverB;
+
+    @Before
+    @Override
+    public void setUp () throws Exception {
+        super.setUp();
+        serverA = new KestrelServer();
+        serverA.start();
+        serverB = new KestrelServer();
+        serverB.start();
+    }
+
+    @After
+    @Override
+    public void tearDown () throws Exception {
+        super.tearDown();
+        serverA.shutdown();
+        serverB.shutdown();
+    }
+
+    @Override
+    protected String getKestrelHosts() { return serverA.getHosts()+", "+serverB.getHosts(); }
+
+    private KestrelClient getClient(KestrelHostDistribution distribution) {
+        final Properties properties = new Properties();
+        properties.setProperty(KestrelClient.PROP_HOST_DISTRIBUTION, distribution.name());
+        properties.setProperty(KestrelClient.PROP_HOST_MAX_ERROR_PERCENT, "50");
+        properties.setProperty(KestrelClient.PROP_HOST_EJECT_MILLIS, String.valueOf(EJECT_MILLIS));
+        return getClient(properties);
+    }
+
+    @Test
+    public void testHashKeepsAQueueOnOneHost () throws Exception {
+        final MqProducer<Object> producer = getClient(KestrelHostDistribution.HASH).getProducer(queueName);
+        for (int i=0; i<20; i++) producer.send("message "+i);
+        assertTrue(serverA.size(queueName) == 0 || serverB.size(queueName) == 0);
+        assertEquals(20, serverA.size(queueName) + serverB.size(queueName));
+    }
+
+    @Test
+    public void testRoundRobinSpreadsOneQueue () throws Exception {
+        assertSpread(KestrelHostDistribution.ROUND_ROBIN);
+        assertEquals(50, serverA.size(queueName));
+        assertEquals(50, serverB.size(queueName));
+        assertConsumerDrainsEveryHost(KestrelHostDistribution.ROUND_ROBIN);
+    }
+
+    @Test
+    public void testLeastLoadedSpreadsOneQueue () throws Exception {
+        assertSpread(KestrelHostDistribution.LEAST_LOADED);
+        assertConsumerDrainsEveryHost(KestrelHostDistribution.LEAST_LOADED);
+    }
+
+    /** sends 100 messages to one queue, and checks that both servers got some */
+    private void assertSpread(KestrelHostDistribution distribution) throws Exception {
+        final MqProducer<Object> producer = getClient(distribution).getProducer(queueName);
+        for (int i=0; i<100; i++) producer.send("message "+i);
+        assertTrue(distribution+": nothing sent to A", serverA.size(queueName) > 0);
+        assertTrue(distribution+": nothing sent to B", serverB.size(queueName) > 0);
+        assertEquals(100, serverA.size(queueName) + serverB.size(queueName));
+    }
+
+    /** a single consumer polls both servers, and gets every message from each of them */
+    private void assertConsumerDrainsEveryHost(KestrelHostDistribution distribution) throws Exception {
+        final List<Object> received = new CopyOnWriteArrayList<>();
+        getClient(distribution).registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception { received.add(message); }
+        }, queueName, errorQueueName);
+        waitFor(received, 100);
+
+        final Set<Object> expected = new HashSet<>();
+        for (int i=0; i<100; i++) expected.add("message "+i);
+        assertEquals(100, received.size());
+        assertEquals(expected, new HashSet<>(received));
+        assertEquals(0, serverA.size(queueName));
+        assertEquals(0, serverB.size(queueName));
+    }
+
+    @Test
+    public void testEjectedHostComesBackRoundRobin () throws Exception { assertEjectedHostComesBack(KestrelHostDistribution.ROUND_ROBIN); }
+
+    @Test
+    public void testEjectedHostComesBackLeastLoaded () throws Exception { assertEjectedHostComesBack(KestrelHostDistribution.LEAST_LOADED); }
+
+    @Test
+    public void testEjectedHostComesBackFastest () throws Exception { assertEjectedHostComesBack(KestrelHostDistribution.FASTEST); }
+
+    /** a producer-only client: nothing but its own sends can probe the failing host back in */
+    private void assertEjectedHostComesBack(KestrelHostDistribution distribution) throws Exception {
+
+        final KestrelClient client = getClient(distribution);
+        final MqProducer<Object> producer = client.getProducer(queueName);
+
+        // every send to A fails and is retried, until A is ejected and everything goes to B
+        serverA.setErrorPercent(100);
+        for (int i=0; i<40; i++) producer.send("message "+i);
+        assertEquals(0, serverA.size(queueName));
+        assertEquals(40, serverB.size(queueName));
+
+        final long setsOnA = setCount(serverA);
+        for (int i=0; i<20; i++) producer.send("ejected "+i);
+        assertEquals("sent to A while it was ejected", setsOnA, setCount(serverA));
+
+        // once the ejection runs out, a send probes A, finds it healthy, and A is back in
+        serverA.setErrorPercent(0);
+        Thread.sleep(EJECT_MILLIS + 100);
+        for (int i=0; i<20; i++) producer.send("recovered "+i);
+        assertTrue(distribution+": A never came back", serverA.size(queueName) > 0);
+        assertEquals(80, serverA.size(queueName) + serverB.size(queueName));
+    }
+
+    @Test
+    public void testOnlyTheProbeEndsAnEjection () throws Exception {
+
+        final KestrelHostHealth health = new KestrelHostHealth("test", 500, 50, EJECT_MILLIS);
+        for (int i=0; i<20; i++) health.recordError();
+        assertTrue(health.isEjected());
+        assertFalse(health.isAvailable());
+
+        Thread.sleep(EJECT_MILLIS + 100);
+        assertTrue(health.isAvailable()); // this thread is the probe
+        assertFalse(health.isAvailable()); // and nobody else gets through meanwhile
+
+        // a long-poll finishing on another thread says nothing about the probe
+        final Thread other = new Thread(new Runnable() {
+            @Override public void run() { health.recordSuccess(); }
+        });
+        other.start();
+        other.join();
+        assertTrue(health.isEjected());
+
+        health.recordSuccess(1000);
+        assertFalse(health.isEjected());
+        assertTrue(health.isAvailable());
+    }
+
+    private static long setCount(KestrelServer server) {
+        return ((Number) server.getStats().get("cmd_set")).longValue();
+    }
+
+}
@@ -0,0 +1,71 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.cobbzilla.util.mq.MqDelivery;
+import org.cobbzilla.util.mq.MqProducer;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+
+/**
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class KestrelPublisherIT extends KestrelBasicIT {
+
+    public static final int NUM_MESSAGES = 10;
+
+    @Test
+    public void testDeliveriesFollowDemand () throws Exception {
+
+        final MqProducer producer = getProducer();
+        for (int i=0; i<NUM_MESSAGES; i++) {
+            producer.send("message"+i);
+        }
+
+        final LinkedBlockingQueue<MqDelivery> received = new LinkedBlockingQueue<>();
+        final Subscription[] subscription = new Subscription[1];
+        getClient().getPublisher(queueName, errorQueueName).subscribe(new Subscriber<MqDelivery>() {
+            @Override public void onSubscribe(Subscription s) { subscription[0] = s; }
+            @Override public void onNext(MqDelivery delivery) { received.add(delivery); }
+            @Override public void onError(Throwable t) {}
+            @Override public void onComplete() {}
+        });
+
+        // ask for 3, and get exactly 3
+        subscription[0].request(3);
+        final Set<Object> seen = new HashSet<>();
+        for (int i=0; i<3; i++) {
+            final MqDelivery delivery = received.poll(5, TimeUnit.SECONDS);
+            assertNotNull(delivery);
+            seen.add(delivery.getMessage());
+            if (i == 0) {
+                delivery.abort(); // comes back later
+                seen.clear();
+            } else {
+                delivery.ack();
+            }
+        }
+        assertNull(received.poll(1, TimeUnit.SECONDS));
+
+        // ask for the rest, including the one we aborted
+        subscription[0].request(NUM_MESSAGES - 2);
+        for (int i=2; i<NUM_MESSAGES; i++) {
+            final MqDelivery delivery = received.poll(5, TimeUnit.SECONDS);
+            assertNotNull(delivery);
+            seen.add(delivery.getMessage());
+            delivery.ack();
+        }
+        assertEquals(NUM_MESSAGES, seen.size());
+        subscription[0].cancel();
+    }
+
+}
@@ -0,0 +1,196 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.cobbzilla.util.mq.MqConsumer;
+import org.cobbzilla.util.mq.MqProducer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class KestrelServerIT extends KestrelBasicIT {
+
+    private KestrelServer server;
+
+    @Before
+    @Override
+    public void setUp () throws Exception {
+        super.setUp();
+        server = new KestrelServer();
+        server.start();
+    }
+
+    @After
+    @Override
+    public void tearDown () throws Exception {
+        super.tearDown();
+        server.shutdown();
+    }
+
+    @Override
+    protected String getKestrelHosts() { return server.getHosts(); }
+
+    @Test
+    public void testSendAndReceiveInOrder () throws Exception {
+
+        final List<String> sent = new ArrayList<>();
+        final MqProducer<Object> producer = getClient().getProducer(queueName);
+        for (int i=0; i<100; i++) {
+            final String message = "message "+i+" "+randomToken();
+            producer.send(message);
+            sent.add(message);
+        }
+        assertEquals(100, server.size(queueName));
+
+        final List<String> received = new CopyOnWriteArrayList<>();
+        getClient().registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception { received.add((String) message); }
+        }, queueName, errorQueueName);
+
+        waitFor(received, sent.size());
+        assertEquals(sent, received);
+    }
+
+    @Test
+    public void testInjectedErrorsAreRetried () throws Exception {
+
+        server.setErrorPercent(30);
+        final List<String> sent = new ArrayList<>();
+        final MqProducer<Object> producer = getClient().getProducer(queueName);
+        for (int i=0; i<50; i++) {
+            final String message = "message "+i+" "+randomToken();
+            producer.send(message);
+            sent.add(message);
+        }
+
+        // a SERVER_ERROR stores nothing, so every message arrives exactly once
+        final List<String> received = new CopyOnWriteArrayList<>();
+        getClient().registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception { received.add((String) message); }
+        }, queueName, errorQueueName);
+
+        waitFor(received, sent.size());
+        server.setErrorPercent(0);
+        assertEquals(sent, received);
+        assertTrue(((Number) server.getStats().get("cmd_set")).longValue() > sent.size());
+    }
+
+    @Test
+    public void testInjectedLatency () throws Exception {
+
+        final MqProducer<Object> producer = getClient().getProducer(queueName);
+        producer.send(randomToken());
+
+        server.setLatencyMillis(200);
+        final long start = System.currentTimeMillis();
+        producer.send(randomToken());
+        assertTrue(System.currentTimeMillis() - start >= 200);
+        server.setLatencyMillis(0);
+    }
+
+    @Test
+    public void testOpenItemComesBackWhenClientGoesAway () throws Exception {
+
+        final String message = randomToken();
+        getClient().set(queueName, message);
+
+        final Properties properties = new Properties();
+        properties.setProperty(KestrelClient.PROP_CONSUMER_CONNECTIONS, "1");
+        final KestrelClient reader = getClient(properties);
+        assertEquals(message, reader.get(queueName, KestrelClient.KPARAM_OPEN, 1000));
+        assertEquals(0, server.size(queueName));
+        assertEquals(1, server.getStats().get("queue_"+queueName+"_open_transactions"));
+
+        // a plain read can't see it while it's open, and gets it once the reader is gone
+        final KestrelClient other = getClient();
+        assertNull(other.get(queueName, "", 100));
+        reader.shutdown();
+        assertEquals(message, other.get(queueName, "", 5000));
+    }
+
+    @Test
+    public void testConcurrentConsumer () throws Exception {
+        final int concurrency = 4;
+        final int totalMessages = 20;
+
+        final MqProducer<Object> producer = getClient().getProducer(queueName);
+        for (int i=0; i<totalMessages; i++) {
+            producer.send("message"+i+"_"+randomToken());
+        }
+
+        // one client, several listeners, each with its own open read
+        final AtomicInteger received = new AtomicInteger(0);
+        final AtomicInteger active = new AtomicInteger(0);
+        final AtomicInteger maxActive = new AtomicInteger(0);
+        getClient().registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception {
+                final int now = active.incrementAndGet();
+                synchronized (maxActive) { maxActive.set(Math.max(maxActive.get(), now)); }
+                Thread.sleep(100);
+                active.decrementAndGet();
+                received.incrementAndGet();
+            }
+        }, queueName, null, concurrency);
+
+        waitFor(received, totalMessages);
+        assertEquals(totalMessages, received.get());
+        assertTrue("messages were never handled concurrently", maxActive.get() > 1);
+        assertTrue(maxActive.get() <= concurrency);
+    }
+
+    /** over xmemcached's 16KB compression threshold; kestrel drops the flags that would say it was compressed */
+    public static final int BIG_MESSAGE_CHARS = 20 * 1024;
+
+    @Test
+    public void testLargeStringIsNotCompressedBehindOurBack () throws Exception {
+
+        // compression is off (the default), so this has to arrive exactly as it was sent
+        final String big = RandomStringUtils.randomAlphanumeric(BIG_MESSAGE_CHARS);
+        getClient().getProducer(queueName).send(big);
+        assertEquals(1, server.size(queueName));
+        assertEquals(BIG_MESSAGE_CHARS, ((Number) server.getStats().get("queue_"+queueName+"_bytes")).intValue());
+
+        final List<String> received = new CopyOnWriteArrayList<>();
+        getClient().registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception { received.add((String) message); }
+        }, queueName, errorQueueName);
+        waitFor(received, 1);
+        assertEquals(big, received.get(0));
+    }
+
+    @Test
+    public void testLargeEnvelopeRoundTrips () throws Exception {
+
+        final KestrelBatchingProducer batcher = getClient().getBatchingProducer(queueName, 40, 1024*1024, 60*1000);
+        final List<String> sent = new ArrayList<>();
+        for (int i=0; i<40; i++) {
+            final String message = i+" "+RandomStringUtils.randomAlphanumeric(1024);
+            batcher.send(message);
+            sent.add(message);
+        }
+        // one envelope, well over 16KB
+        assertEquals(1, server.size(queueName));
+
+        final List<String> received = new CopyOnWriteArrayList<>();
+        getClient().registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception { received.add((String) message); }
+        }, queueName, errorQueueName);
+        waitFor(received, sent.size());
+        assertEquals(sent, new ArrayList<>(received));
+        assertEquals(0, server.size(errorQueueName));
+    }
+
+}
@@ -0,0 +1,149 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.cobbzilla.util.mq.MqAsyncProducer;
+import org.cobbzilla.util.mq.MqConsumer;
+import org.cobbzilla.util.mq.MqProducer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class KestrelSpoolIT extends KestrelBasicIT {
+
+    /** nothing listens here, so every send fails */
+    public static final String DEAD_KESTREL_HOST = "localhost:1";
+
+    private File spoolDir;
+
+    private Properties spoolProperties() throws IOException {
+        if (spoolDir == null) {
+            spoolDir = File.createTempFile("spool", ".test");
+            spoolDir.delete();
+        }
+        final Properties properties = new Properties();
+        properties.setProperty(KestrelClient.PROP_SPOOL_DIR, spoolDir.getAbsolutePath());
+        return properties;
+    }
+
+    private KestrelClient getDeadClient(Properties extraProperties) {
+        final Properties properties = new Properties();
+        properties.putAll(extraProperties);
+        properties.setProperty(KestrelClient.PROP_KESTREL_HOSTS, DEAD_KESTREL_HOST);
+        return (KestrelClient) clientFactory.createClient(KestrelClient.class.getCanonicalName(), properties);
+    }
+
+    @After
+    @Override
+    public void tearDown () throws Exception {
+        super.tearDown();
+        final File[] files = spoolDir == null ? null : spoolDir.listFiles();
+        if (files != null) {
+            for (File dir : files) {
+                final File[] segments = dir.listFiles();
+                if (segments != null) for (File f : segments) f.delete();
+                dir.delete();
+            }
+        }
+        if (spoolDir != null) spoolDir.delete();
+    }
+
+    @Test
+    public void testSpoolWhileDownAndDrainInOrder () throws Exception {
+
+        final List<String> sent = new ArrayList<>();
+        final KestrelClient deadClient = getDeadClient(spoolProperties());
+        final MqProducer<Object> producer = deadClient.getProducer(queueName);
+        final long start = System.currentTimeMillis();
+        for (int i=0; i<100; i++) {
+            final String message = "message "+i+" "+randomToken();
+            producer.send(message);
+            sent.add(message);
+        }
+        // only the first send waited on kestrel, for no more than the latency budget
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(100, deadClient.getSpool().getOutstanding());
+        deadClient.shutdown();
+
+        // a client with the same spool that can reach kestrel drains it, in order
+        final List<String> received = new CopyOnWriteArrayList<>();
+        final KestrelClient client = getClient(spoolProperties());
+        client.registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception { received.add((String) message); }
+        }, queueName, errorQueueName);
+
+        final long deadline = System.currentTimeMillis() + 30*1000;
+        while (received.size() < sent.size() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(WAIT_TIME);
+        }
+        assertEquals(sent, received);
+        assertEquals(0, client.getSpool().getOutstanding());
+    }
+
+    @Test
+    public void testFullSpoolFails () throws Exception {
+
+        final Properties properties = spoolProperties();
+        properties.setProperty(KestrelClient.PROP_SPOOL_MAX_BYTES, String.valueOf(1024 * 1024));
+        final KestrelClient deadClient = getDeadClient(properties);
+        final MqProducer<Object> producer = deadClient.getProducer(queueName);
+        final char[] filler = new char[10 * 1024];
+        Arrays.fill(filler, 'x');
+        final String message = new String(filler);
+
+        int spooled = 0;
+        try {
+            for (int i=0; i<200; i++) {
+                producer.send(message);
+                spooled++;
+            }
+        } catch (IOException e) {
+            // expected once the spool is full
+        }
+        assertTrue(spooled > 50);
+        assertTrue(spooled < 200);
+        assertEquals(spooled, deadClient.getSpool().getOutstanding());
+        deadClient.shutdown();
+    }
+
+    @Test
+    public void testSendAsyncSpoolsWhileDown () throws Exception {
+
+        final KestrelClient deadClient = getDeadClient(spoolProperties());
+        final MqAsyncProducer producer = (MqAsyncProducer) deadClient.getProducer(queueName);
+        for (int i=0; i<10; i++) {
+            // completes once the message is spooled, instead of retrying against a dead host
+            producer.sendAsync("message "+i+" "+randomToken()).get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(10, deadClient.getSpool().getOutstanding());
+        deadClient.shutdown();
+    }
+
+    @Test
+    public void testBatchesSpoolWhileDown () throws Exception {
+
+        final KestrelClient deadClient = getDeadClient(spoolProperties());
+        final KestrelBatchingProducer batcher = deadClient.getBatchingProducer(queueName, 10, 64*1024, 60*1000);
+        for (int i=0; i<30; i++) {
+            batcher.send("message "+i+" "+randomToken());
+        }
+        // every full batch was written to the spool rather than retried, so nothing is left buffered
+        assertEquals(3, deadClient.getSpool().getOutstanding());
+        batcher.close();
+        deadClient.shutdown();
+    }
+
+}
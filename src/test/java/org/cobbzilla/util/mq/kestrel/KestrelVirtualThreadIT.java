@@ -0,0 +1,66 @@
+package org.cobbzilla.util.mq.kestrel;
+
+import org.cobbzilla.util.mq.MqConsumer;
+import org.cobbzilla.util.mq.MqProducer;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that THREAD_PER_LISTENER consumers run on virtual threads when kestrelVirtualThreads is set, and that
+ * every one of them gets its message. Skipped on JVMs without virtual threads. How platform and virtual
+ * threads compare with many listeners is measured by KestrelListenerThreadsBenchmark, under the bench profile.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class KestrelVirtualThreadIT extends KestrelBasicIT {
+
+    public static final int NUM_CONSUMERS = 200;
+    public static final long HANDLER_MILLIS = 50;
+    public static final long MAX_WAIT = 60 * 1000;
+
+    @Test
+    public void testListenersRunOnVirtualThreads () throws Exception {
+        assumeTrue(KestrelThreads.isVirtualAvailable());
+        final Method isVirtual = Thread.class.getMethod("isVirtual");
+
+        final Properties properties = new Properties();
+        properties.setProperty(KestrelClient.PROP_VIRTUAL_THREADS, "true");
+        properties.setProperty(KestrelClient.PROP_CONSUMER_MODE, KestrelConsumerMode.THREAD_PER_LISTENER.name());
+        final KestrelClient client = getClient(properties);
+
+        final AtomicInteger handled = new AtomicInteger(0);
+        final AtomicInteger onVirtual = new AtomicInteger(0);
+        final MqConsumer<Object> consumer = new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception {
+                if ((Boolean) isVirtual.invoke(Thread.currentThread())) onVirtual.incrementAndGet();
+                Thread.sleep(HANDLER_MILLIS);
+                handled.incrementAndGet();
+            }
+        };
+        for (int i=0; i<NUM_CONSUMERS; i++) {
+            final String queue = queueName + "_" + i;
+            final MqProducer<Object> producer = client.getProducer(queue);
+            producer.send("message"+i);
+            client.registerConsumer(consumer, queue, null);
+        }
+
+        final long start = System.currentTimeMillis();
+        while (handled.get() < NUM_CONSUMERS && System.currentTimeMillis() - start < MAX_WAIT) {
+            Thread.sleep(WAIT_TIME);
+        }
+        assertEquals(NUM_CONSUMERS, handled.get());
+        assertEquals(NUM_CONSUMERS, onVirtual.get());
+
+        for (int i=0; i<NUM_CONSUMERS; i++) {
+            client.deleteQueue(queueName + "_" + i);
+        }
+    }
+
+}
@@ -0,0 +1,212 @@
+package org.cobbzilla.util.mq.virtual;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.cobbzilla.util.mq.MqBatchConsumer;
+import org.cobbzilla.util.mq.MqClient;
+import org.cobbzilla.util.mq.MqClientFactory;
+import org.cobbzilla.util.mq.MqConsumer;
+import org.cobbzilla.util.mq.MqKeyExtractor;
+import org.cobbzilla.util.mq.MqProducer;
+import org.cobbzilla.util.mq.codec.StringCodec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class InMemoryMqClientIT {
+
+    public static final int WAIT_TIME = 100;
+    public static final int WAIT_FOR_MILLIS = 30 * 1000;
+
+    protected MqClientFactory clientFactory = new MqClientFactory();
+    protected List<MqClient> clients = new ArrayList<>();
+    protected LocalMqClient client;
+
+    protected String queueName;
+    protected String errorQueueName;
+
+    @Before
+    public void setUp () throws Exception {
+        client = (LocalMqClient) getClient();
+        queueName = "q_"+RandomStringUtils.randomAlphabetic(6).toLowerCase();
+        errorQueueName = queueName+"_error";
+    }
+
+    protected MqClient getClient() {
+        final MqClient client = clientFactory.createClient(InMemoryMqClient.class.getCanonicalName(), new Properties());
+        clients.add(client);
+        return client;
+    }
+
+    @After
+    public void tearDown () throws Exception {
+        for (MqClient client : clients) client.shutdown();
+        clients.clear();
+    }
+
+    @Test
+    public void testSendAndReceiveInOrder () throws Exception {
+        final MqProducer<Object> producer = client.getProducer(queueName);
+        final List<Object> sent = new ArrayList<>();
+        for (int i=0; i<100; i++) {
+            sent.add("message "+i);
+            producer.send("message "+i);
+        }
+        final List<Object> received = new CopyOnWriteArrayList<>();
+        client.registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception { received.add(message); }
+        }, queueName, errorQueueName);
+
+        waitFor(received, sent.size());
+        assertEquals(sent, received);
+        assertEquals(0, client.getQueue(queueName).size());
+    }
+
+    @Test
+    public void testFailedMessageGoesToErrorQueue () throws Exception {
+        client.getProducer(queueName).send("bad");
+        client.getProducer(queueName).send("good");
+
+        final List<Object> received = new CopyOnWriteArrayList<>();
+        client.registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception {
+                if (message.equals("bad")) throw new IllegalStateException("failing on purpose");
+                received.add(message);
+            }
+        }, queueName, errorQueueName);
+
+        final List<Object> errors = new CopyOnWriteArrayList<>();
+        client.registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception { errors.add(message); }
+        }, errorQueueName, null);
+
+        waitFor(errors, 1);
+        assertEquals(Arrays.asList((Object) "good"), received);
+        assertEquals(Arrays.asList((Object) "bad"), errors);
+    }
+
+    @Test
+    public void testFailedMessageIsRedeliveredFirst () throws Exception {
+        client.getProducer(queueName).send("first");
+        client.getProducer(queueName).send("second");
+
+        final AtomicInteger attempts = new AtomicInteger(0);
+        final List<Object> received = new CopyOnWriteArrayList<>();
+        client.registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception {
+                if (attempts.incrementAndGet() == 1) throw new IllegalStateException("failing the first delivery on purpose");
+                received.add(message);
+            }
+        }, queueName, null);
+
+        waitFor(received, 2);
+        assertEquals(Arrays.asList((Object) "first", "second"), received);
+    }
+
+    @Test
+    public void testBatchesAndCodec () throws Exception {
+        final MqProducer<String> producer = client.getProducer(queueName, StringCodec.INSTANCE);
+        for (int i=0; i<25; i++) producer.send("message "+i);
+
+        final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        final List<Object> received = new CopyOnWriteArrayList<>();
+        client.registerBatchConsumer(new MqBatchConsumer() {
+            @Override public void onMessage(Object message) throws Exception { onMessages(Arrays.asList(message)); }
+            @Override public void onMessages(List<Object> messages) throws Exception {
+                batchSizes.add(messages.size());
+                received.addAll(messages);
+            }
+        }, queueName, errorQueueName, 10, 1000);
+
+        waitFor(received, 25);
+        assertEquals(Arrays.asList(10, 10, 5), batchSizes);
+        assertTrue(received.get(0) instanceof byte[]);
+    }
+
+    @Test
+    public void testFlushAndDelete () throws Exception {
+        for (int i=0; i<10; i++) client.getProducer(queueName).send("message "+i);
+        client.getProducer(errorQueueName).send("error");
+        assertEquals(10, client.getQueue(queueName).size());
+
+        client.flushAllQueues();
+        assertEquals(0, client.getQueue(queueName).size());
+        assertEquals(0, client.getQueue(errorQueueName).size());
+
+        client.getProducer(queueName).send("again");
+        client.deleteQueue(queueName);
+        assertEquals(0, client.getQueue(queueName).size());
+    }
+
+    /** a lot of messages through several listeners: each one is handled exactly once (the bench profile times this) */
+    @Test
+    public void testManyMessagesExactlyOnce () throws Exception {
+        final int count = 200000;
+        final Set<Object> received = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+        final AtomicInteger calls = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(count);
+        client.registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception {
+                calls.incrementAndGet();
+                received.add(message);
+                latch.countDown();
+            }
+        }, queueName, errorQueueName, 4);
+
+        final MqProducer<Object> producer = client.getProducer(queueName);
+        for (int i=0; i<count; i++) producer.send("message "+i);
+        assertTrue(latch.await(60, TimeUnit.SECONDS));
+
+        Thread.sleep(5 * WAIT_TIME); // anything delivered twice would turn up by now
+        assertEquals(count, calls.get());
+        assertEquals(count, received.size());
+        assertEquals(0, client.getQueue(queueName).size());
+        assertEquals(0, client.getQueue(errorQueueName).size());
+    }
+
+    @Test
+    public void testKeyExtractorFailureUsesTheNullKey () throws Exception {
+        final MqProducer<Object> producer = client.getProducer(queueName);
+        for (int i=0; i<10; i++) producer.send("message "+i);
+
+        final List<Object> received = new CopyOnWriteArrayList<>();
+        client.registerKeyedConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception { received.add(message); }
+        }, new MqKeyExtractor() {
+            @Override public Object getKey(Object message) { throw new IllegalArgumentException("no key in "+message); }
+        }, queueName, errorQueueName, 4);
+
+        // every message shares the null key's stripe, so they're still handled in order, and none is failed
+        waitFor(received, 10);
+        assertEquals(10, received.size());
+        for (int i=0; i<10; i++) assertEquals("message "+i, received.get(i));
+        assertEquals(0, client.getQueue(errorQueueName).size());
+    }
+
+    /** waits up to WAIT_FOR_MILLIS for count items to arrive; the caller asserts on what it got */
+    protected void waitFor(List<?> received, int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + WAIT_FOR_MILLIS;
+        while (received.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(WAIT_TIME);
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+package org.cobbzilla.util.mq.virtual;
+
+import org.cobbzilla.util.mq.MqClient;
+import org.cobbzilla.util.mq.MqConsumer;
+import org.cobbzilla.util.mq.MqProducer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Runs every InMemoryMqClientIT test against a JournalMqClient too, with small segments so they roll over.
+ *
+ * (c) Copyright 2013 Jonathan Cobb
+ * This code is available under the Apache License, version 2: http://www.apache.org/licenses/LICENSE-2.0.html
+ */
+public class JournalMqClientIT extends InMemoryMqClientIT {
+
+    public static final int SEGMENT_BYTES = 64 * 1024;
+
+    private File journalDir;
+
+    @Override
+    protected MqClient getClient() {
+        try {
+            if (journalDir == null) {
+                journalDir = File.createTempFile("journal", ".test");
+                journalDir.delete();
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("getClient: couldn't create journal dir: "+e, e);
+        }
+        final Properties properties = new Properties();
+        properties.setProperty(JournalMqClient.PROP_JOURNAL_DIR, journalDir.getAbsolutePath());
+        properties.setProperty(JournalMqClient.PROP_SEGMENT_BYTES, String.valueOf(SEGMENT_BYTES));
+        properties.setProperty(JournalMqClient.PROP_COMPACT_MILLIS, "0");
+        final MqClient client = clientFactory.createClient(JournalMqClient.class.getCanonicalName(), properties);
+        clients.add(client);
+        return client;
+    }
+
+    @After
+    @Override
+    public void tearDown () throws Exception {
+        super.tearDown();
+        deleteAll(journalDir);
+    }
+
+    private static void deleteAll(File f) {
+        final File[] children = f.listFiles();
+        if (children != null) for (File child : children) deleteAll(child);
+        f.delete();
+    }
+
+    private JournalMqClient restart() throws Exception {
+        client.shutdown();
+        clients.remove(client);
+        client = (LocalMqClient) getClient();
+        return (JournalMqClient) client;
+    }
+
+    @Test
+    public void testUnackedMessagesSurviveRestart () throws Exception {
+        final MqProducer<Object> producer = client.getProducer(queueName);
+        for (int i=0; i<10; i++) producer.send("message "+i);
+        producer.send(new byte[] { 1, 2, 3 });
+        producer.send(Arrays.asList("a", "b"));
+
+        // ack the first two, and leave the third open when the client goes away
+        final LocalQueue queue = client.getQueue(queueName);
+        queue.ack(queue.open(0));
+        queue.ack(queue.open(0));
+        assertEquals("message 2", queue.open(0).getMessage());
+
+        final List<Object> received = new CopyOnWriteArrayList<>();
+        restart().registerConsumer(new MqConsumer<Object>() {
+            @Override public void onMessage(Object message) throws Exception { received.add(message); }
+        }, queueName, errorQueueName);
+
+        waitFor(received, 10);
+        assertEquals(10, received.size());
+        for (int i=0; i<8; i++) assertEquals("message "+(i+2), received.get(i));
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, (byte[]) received.get(8)));
+        assertEquals(Arrays.asList("a", "b"), received.get(9));
+    }
+
+    @Test
+    public void testDeadSegmentsAreDeleted () throws Exception {
+        final MqProducer<Object> producer = client.getProducer(queueName);
+        final char[] filler = new char[1000];
+        Arrays.fill(filler, 'x');
+        final String message = new String(filler);
+        for (int i=0; i<500; i++) producer.send(message);
+
+        final JournalQueue queue = (JournalQueue) client.getQueue(queueName);
+        assertTrue(queue.segmentCount() > 5);
+
+        // everything read and acked: only the head segment is left
+        for (int i=0; i<500; i++) queue.ack(queue.open(0));
+        producer.send("last");
+        ((JournalMqClient) client).compact();
+        assertEquals(1, queue.segmentCount());
+        assertEquals("last", restart().getQueue(queueName).open(0).getMessage());
+    }
+
+    @Test
+    public void testCompactionMovesLongLivedItems () throws Exception {
+        final MqProducer<Object> producer = client.getProducer(queueName);
+        final char[] filler = new char[1000];
+        Arrays.fill(filler, 'x');
+        final String message = new String(filler);
+        producer.send("long-lived");
+        for (int i=0; i<500; i++) producer.send(message);
+
+        // hold the first item open, and ack everything after it
+        final JournalQueue queue = (JournalQueue) client.getQueue(queueName);
+        final LocalQueue.Item longLived = queue.open(0);
+        for (int i=0; i<500; i++) queue.ack(queue.open(0));
+        final int before = queue.segmentCount();
+
+        // the first segment held everything up; each compaction frees the oldest segment
+        for (int i=0; i<before; i++) ((JournalMqClient) client).compact();
+        assertTrue(queue.segmentCount() < before);
+
+        queue.abort(longLived);
+        assertEquals("long-lived", restart().getQueue(queueName).open(0).getMessage());
+    }
+
+    @Test
+    public void testOfferStopsAtTheDiskLimit () throws Exception {
+        final JournalQueue queue = (JournalQueue) client.getQueue(queueName);
+        final byte[] message = new byte[1000];
+        final long limit = 3 * SEGMENT_BYTES;
+        int put = 0;
+        while (queue.offer(message, limit)) put++;
+        assertTrue(put > 100);
+        assertTrue(queue.diskBytes() <= limit);
+
+        // once they're drained, the full files are unmapped and deleted, which makes room again
+        for (int i=0; i<put; i++) queue.ack(queue.open(0));
+        assertTrue(queue.offer(message, limit));
+        assertTrue(queue.diskBytes() <= limit);
+    }
+
+    @Test
+    public void testClosedSegmentIsUnmapped () throws Exception {
+        final File dir = new File(journalDir, "segment");
+        assertTrue(dir.mkdirs());
+        final JournalSegment segment = JournalSegment.create(dir, 1, SEGMENT_BYTES);
+        final int offset = segment.append(JournalSegment.PUT, (byte) 0, 1, new byte[] { 1, 2, 3 });
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, segment.readPayload(offset)));
+
+        segment.close();
+        assertEquals(null, segment.readPayload(offset));
+        segment.force(); // a no-op now, rather than touching a mapping that's gone
+        assertTrue(segment.getFile().delete());
+    }
+
+}